@@ -0,0 +1,89 @@
+package com.github.myzhan.locust4j.rpc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.github.myzhan.locust4j.message.Message;
+import com.github.myzhan.locust4j.stats.StatsEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Serializing stats messages with hundreds of entries, with a new packer per message and with a reused buffer.
+ *
+ * @author myzhan
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BenchmarkSerialise {
+
+    @Param({"100", "500"})
+    private int entries;
+
+    private Message message;
+    private MessageSerializer serializer;
+
+    @Setup
+    public void setup() {
+        List<Map<String, Object>> stats = new ArrayList<>(entries);
+        StatsEntry total = new StatsEntry("Aggregated");
+        total.reset();
+        for (int i = 0; i < entries; i++) {
+            StatsEntry entry = new StatsEntry("/api/resource/" + i, "GET");
+            entry.reset();
+            for (int j = 0; j < 200; j++) {
+                long responseTime = ThreadLocalRandom.current().nextLong(1, 2000);
+                entry.log(responseTime, 1024);
+                total.log(responseTime, 1024);
+            }
+            stats.add(entry.getStrippedReport());
+        }
+        Map<String, Object> statsTotal = total.getStrippedReport();
+        message = Message.create(s -> s
+            .type("stats")
+            .putData("stats", stats)
+            .putData("stats_total", statsTotal)
+            .putData("errors", Map.of())
+            .putData("user_count", 100)
+            .nodeId("benchmark"));
+        serializer = new MessageSerializer();
+    }
+
+    @Benchmark
+    public byte[] newPacker() throws IOException {
+        return MessageDeser.serialise(message);
+    }
+
+    @Benchmark
+    public byte[] reusedBuffer() throws IOException {
+        serializer.serialise(message);
+        return serializer.toByteArray();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+            .include(BenchmarkSerialise.class.getSimpleName())
+            .forks(1)
+            .warmupIterations(1)
+            .measurementIterations(3)
+            .addProfiler("gc")
+            .build();
+
+        new Runner(opt).run();
+    }
+}
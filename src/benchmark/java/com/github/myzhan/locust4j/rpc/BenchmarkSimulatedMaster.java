@@ -0,0 +1,111 @@
+package com.github.myzhan.locust4j.rpc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.github.myzhan.locust4j.message.Message;
+import com.github.myzhan.locust4j.stats.StatsEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * One report interval of many workers sending stats to a simulated master in memory, including serialization,
+ * deserialization and aggregation. Needs the test classes on the classpath.
+ *
+ * @author myzhan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BenchmarkSimulatedMaster {
+
+    @Param({"10", "100", "500"})
+    private int workers;
+
+    @Param({"100"})
+    private int entries;
+
+    private SimulatedMaster master;
+    private final List<Client> clients = new ArrayList<>();
+    private final List<Message> reports = new ArrayList<>();
+
+    @Setup
+    public void setup() throws IOException {
+        master = new SimulatedMaster();
+        for (int i = 0; i < workers; i++) {
+            String nodeID = "worker-" + i;
+            Client client = master.newClient(nodeID);
+            client.send(Message.create(s -> s.type("client_ready").nodeId(nodeID)));
+            client.recv();
+            clients.add(client);
+            reports.add(report(nodeID));
+        }
+    }
+
+    private Message report(String nodeID) {
+        List<Map<String, Object>> stats = new ArrayList<>(entries);
+        StatsEntry total = new StatsEntry("Aggregated");
+        total.reset();
+        for (int i = 0; i < entries; i++) {
+            StatsEntry entry = new StatsEntry("/api/resource/" + i, "GET");
+            entry.reset();
+            for (int j = 0; j < 200; j++) {
+                long responseTime = ThreadLocalRandom.current().nextLong(1, 2000);
+                entry.log(responseTime, 1024);
+                total.log(responseTime, 1024);
+            }
+            stats.add(entry.getStrippedReport());
+        }
+        Map<String, Object> statsTotal = total.getStrippedReport();
+        return Message.create(s -> s
+            .type("stats")
+            .putData("stats", stats)
+            .putData("stats_total", statsTotal)
+            .putData("errors", Map.of())
+            .putData("user_count", 100)
+            .nodeId(nodeID));
+    }
+
+    @Benchmark
+    public long reportInterval() throws IOException {
+        for (int i = 0; i < workers; i++) {
+            clients.get(i).send(reports.get(i));
+        }
+        return master.getNumReports();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.printf("%nmean report %d bytes, mean latency %dus, max latency %dus%n",
+            master.getReportBytes() / Math.max(1, master.getNumReports()),
+            master.getMeanReportLatencyNanos() / 1000, master.getMaxReportLatencyNanos() / 1000);
+        master.close();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+            .include(BenchmarkSimulatedMaster.class.getSimpleName())
+            .forks(1)
+            .warmupIterations(1)
+            .measurementIterations(3)
+            .addProfiler("gc")
+            .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.myzhan.locust4j.stats;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Throughput of recording test results while the stats thread consumes them, with 1, 8 and 64 producer threads.
+ *
+ * @author myzhan
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BenchmarkRecording {
+
+    private Stats stats;
+
+    @Setup
+    public void setup() {
+        stats = new Stats();
+        stats.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        stats.stop();
+    }
+
+    @Benchmark
+    public void recordSuccess() {
+        stats.recordSuccess("GET", "/benchmark", 10, 100);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[] {1, 8, 64}) {
+            Options opt = new OptionsBuilder()
+                .include(BenchmarkRecording.class.getSimpleName())
+                .threads(threads)
+                .forks(1)
+                .warmupIterations(1)
+                .measurementIterations(3)
+                .build();
+
+            new Runner(opt).run();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.github.myzhan.locust4j;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * An {@link AbstractAsyncTask} is a task of non-blocking clients, like netty or java.net.http.HttpClient, which
+ * requires subtypes to start a test scenario in {@link #executeAsync()} and return when it completes.
+ *
+ * The runner doesn't give every user of an async task its own thread. Users are kept in flight on a small event loop
+ * pool, each user starts the next scenario when the last one completes, so a worker can run tens of thousands of
+ * users. The completion time of every scenario is recorded with {@link #getRequestType()} and {@link #getName()},
+ * from the intended start time of the permit if rate limit and coordinated omission correction are enabled.
+ *
+ * {@link #executeAsync()}, {@link #onStart()} and {@link #onStop()} are called on the event loop, they must not
+ * block. Like {@link AbstractTask}, one instance is shared by all the users and must be thread-safe.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+public abstract class AbstractAsyncTask extends AbstractTask {
+
+    /**
+     * Start the test scenario, like sending a http request, without waiting for it.
+     *
+     * @return completes when the scenario completes, exceptionally if it failed
+     * @throws Exception test scenarios may throw exception, it's recorded as a failure
+     */
+    public abstract CompletionStage<?> executeAsync() throws Exception;
+
+    /**
+     * Get the request type which completions are recorded with, "async" by default.
+     *
+     * @return the request type
+     */
+    public String getRequestType() {
+        return "async";
+    }
+
+    /**
+     * Wait for {@link #executeAsync()} to complete, when the task is called like a blocking one, by a task set.
+     *
+     * @throws Exception if the scenario failed
+     */
+    @Override
+    public final void execute() throws Exception {
+        executeAsync().toCompletableFuture().get();
+    }
+}
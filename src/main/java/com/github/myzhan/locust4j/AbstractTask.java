@@ -1,7 +1,10 @@
 package com.github.myzhan.locust4j;
 
+import com.github.myzhan.locust4j.ratelimit.AbstractRateLimiter;
 import com.github.myzhan.locust4j.runtime.Runner;
 import com.github.myzhan.locust4j.runtime.RunnerState;
+import com.github.myzhan.locust4j.runtime.UserHandle;
+import com.github.myzhan.locust4j.stats.Stats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -85,12 +88,24 @@ public abstract class AbstractTask implements Runnable {
                     return;
                 }
 
+                if (UserHandle.isCurrentStopRequested()) {
+                    // The runner scales down, leave after the last iteration.
+                    return;
+                }
+
                 try {
                     if (Locust.getInstance().isRateLimitEnabled()) {
                         // block and wait for next permit
-                        boolean blocked = Locust.getInstance().getRateLimiter().acquire();
+                        AbstractRateLimiter rateLimiter = Locust.getInstance().getRateLimiter();
+                        boolean blocked = rateLimiter.acquire();
                         if (!blocked) {
-                            this.execute();
+                            Stats.getInstance().setIntendedStartNanos(rateLimiter.getIntendedStartNanos(),
+                                rateLimiter.getMissedPermits(), rateLimiter.getMissedSpanNanos());
+                            try {
+                                this.execute();
+                            } finally {
+                                rateLimiter.release();
+                            }
                         }
                     } else {
                         this.execute();
@@ -3,15 +3,25 @@ package com.github.myzhan.locust4j;
 import com.github.myzhan.locust4j.ratelimit.AbstractRateLimiter;
 import com.github.myzhan.locust4j.ratelimit.StableRateLimiter;
 import com.github.myzhan.locust4j.rpc.Client;
+import com.github.myzhan.locust4j.rpc.LocalClient;
 import com.github.myzhan.locust4j.rpc.ZeromqClient;
+import com.github.myzhan.locust4j.runtime.MetricsServer;
 import com.github.myzhan.locust4j.runtime.Runner;
-import com.github.myzhan.locust4j.stats.RequestFailure;
-import com.github.myzhan.locust4j.stats.RequestSuccess;
+import com.github.myzhan.locust4j.stats.PipelineMetrics;
+import com.github.myzhan.locust4j.stats.RequestKey;
+import com.github.myzhan.locust4j.stats.RequestTimer;
 import com.github.myzhan.locust4j.stats.Stats;
+import com.github.myzhan.locust4j.stats.TimedTask;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 
 import com.github.myzhan.locust4j.utils.Utils;
 import org.slf4j.Logger;
@@ -32,6 +42,9 @@ public class Locust {
     private boolean started = false;
     private boolean verbose = false;
     private boolean rateLimitEnabled;
+    private double spawnRate = Double.parseDouble(Utils.getSystemEnvWithDefault("LOCUST_SPAWN_RATE", "0"));
+    private boolean virtualThreads = Boolean.parseBoolean(Utils.getSystemEnvWithDefault("LOCUST_VIRTUAL_THREADS",
+        "false"));
     private AbstractRateLimiter rateLimiter;
     private Runner runner;
 
@@ -111,6 +124,91 @@ public class Locust {
         return this.rateLimitEnabled;
     }
 
+    /**
+     * Record test results into per-thread shards of stats, which are merged every report interval.
+     * It avoids the single stats thread becoming a bottleneck when there are lots of cores and a very high RPS.
+     *
+     * @param striped set true to enable striped recording
+     * @since 2.3.0
+     */
+    public void setStripedStats(boolean striped) {
+        Stats.getInstance().setStriped(striped);
+    }
+
+    /**
+     * Set the number of users spawned per second, defaults to LOCUST_SPAWN_RATE.
+     * Locust masters send their spawn rate among the parsed options of spawn messages, which wins. They ramp up by
+     * sending spawn messages in steps, and the users of a step are spawned at that rate. Without a spawn rate from
+     * the master, users are spawned at this rate, or at once by default.
+     * It must be called before {@link #run}.
+     *
+     * @param spawnRate users per second, 0 to spawn them at once
+     * @since 2.3.0
+     */
+    public void setSpawnRate(double spawnRate) {
+        this.spawnRate = spawnRate;
+    }
+
+    /**
+     * Run every user on a virtual thread instead of a platform thread, defaults to LOCUST_VIRTUAL_THREADS.
+     * Tasks blocking on I/O don't hold an OS thread each, so a worker can run many more users.
+     * It must be called before {@link #run}.
+     *
+     * @param virtualThreads set true to use virtual threads
+     * @since 2.3.0
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Record response times into high-resolution histograms, so sub-millisecond requests don't collapse into 0 or 1
+     * millis. Percentiles can be queried locally with {@link Stats#getHistogram(String, String)}.
+     *
+     * @param enabled set true to enable high-resolution histograms
+     * @since 2.3.0
+     */
+    public void setHistogramEnabled(boolean enabled) {
+        Stats.getInstance().setHistogramEnabled(enabled);
+    }
+
+    /**
+     * With a rate limiter, measure requests from the intended start time of their permits, so a stall of the system
+     * under test shows up in response times like it would for an open-loop client.
+     * It only affects requests measured by {@link #time} and {@link #timer}.
+     *
+     * @param enabled set true to correct coordinated omission
+     * @since 2.3.0
+     */
+    public void setCoordinatedOmissionCorrection(boolean enabled) {
+        Stats.getInstance().setCoordinatedOmissionCorrection(enabled);
+    }
+
+    /**
+     * Check whether locust4j itself is the bottleneck, the same metrics are sent with every heartbeat.
+     *
+     * @return how well the stats pipeline keeps up with the test results
+     * @since 2.3.0
+     */
+    public PipelineMetrics getPipelineMetrics() {
+        return Stats.getInstance().getPipelineMetrics();
+    }
+
+    /**
+     * Serve the live stats of this worker at http://host:port/metrics in the Prometheus text format, like request
+     * counts, response time buckets, users, runner state, stats queue depth and CPU usage.
+     *
+     * @param port the port to listen on, 0 picks a free port
+     * @return the started server, stop it when it's not needed any more
+     * @throws IOException if the port can't be bound
+     * @since 2.3.0
+     */
+    public MetricsServer startMetricsServer(int port) throws IOException {
+        MetricsServer server = new MetricsServer(Stats.getInstance(), this::getRunner);
+        server.start(port);
+        return server;
+    }
+
     /**
      * @return is it verbose?
      * @since 1.0.2
@@ -177,6 +275,8 @@ public class Locust {
 
         runner = new Runner();
         runner.setStats(Stats.getInstance());
+        runner.setVirtualThreads(virtualThreads);
+        runner.setSpawnRate(spawnRate);
 
         Client client = new ZeromqClient(masterHost, masterPort, runner.getNodeID());
         runner.setRPCClient(client);
@@ -224,6 +324,76 @@ public class Locust {
         }
     }
 
+    /**
+     * Run tasks without a master, users are spawned at the spawn rate and stopped after the duration.
+     * Stats are summarized in the log every report interval, and the final summary is logged and returned.
+     * If LOCUST_STANDALONE_CSV is set, the final summary is also written to it as CSV.
+     * It blocks until the run is over.
+     *
+     * @param users     number of users to spawn
+     * @param spawnRate number of users to spawn per second
+     * @param duration  how long to run after spawning completes
+     * @param tasks     test tasks
+     * @return summary of every request, followed by the aggregated summary
+     * @since 2.3.0
+     */
+    public List<Map<String, Object>> runStandalone(int users, double spawnRate, Duration duration,
+                                                   AbstractTask... tasks) {
+        return runStandalone(users, spawnRate, duration, Arrays.asList(tasks));
+    }
+
+    /**
+     * Run tasks without a master, see {@link #runStandalone(int, double, Duration, AbstractTask...)}.
+     *
+     * @param users     number of users to spawn
+     * @param spawnRate number of users to spawn per second
+     * @param duration  how long to run after spawning completes
+     * @param tasks     test tasks
+     * @return summary of every request, followed by the aggregated summary
+     * @since 2.3.0
+     */
+    public List<Map<String, Object>> runStandalone(int users, double spawnRate, Duration duration,
+                                                   List<AbstractTask> tasks) {
+        LocalClient client = new LocalClient(users, spawnRate, duration);
+        synchronized (this) {
+            if (this.started) {
+                throw new IllegalStateException("Locust is already running");
+            }
+            removeInvalidTasks(tasks);
+
+            Stats.getInstance().start();
+
+            runner = new Runner();
+            runner.setStats(Stats.getInstance());
+            runner.setVirtualThreads(virtualThreads);
+            runner.setSpawnRate(spawnRate);
+            runner.setRPCClient(client);
+            runner.setTasks(tasks);
+            this.started = true;
+        }
+        try {
+            runner.getReady();
+            // leave time for the runner to stop workers and switch back to ready
+            client.awaitStopped(duration.plusSeconds(30 + (long) Math.ceil(users / spawnRate)));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.stop();
+            Stats.getInstance().stop();
+        }
+
+        client.logSummary();
+        String csv = Utils.getSystemEnvWithDefault("LOCUST_STANDALONE_CSV", "");
+        if (!csv.isEmpty()) {
+            try (Writer writer = Files.newBufferedWriter(Paths.get(csv))) {
+                client.writeCsv(writer);
+            } catch (IOException ex) {
+                logger.error("Failed to write the summary to {}", csv, ex);
+            }
+        }
+        return client.getSummary();
+    }
+
     /**
      * Stop locust
      *
@@ -265,13 +435,7 @@ public class Locust {
      * @since 1.0.0
      */
     public void recordSuccess(String requestType, String name, long responseTime, long contentLength) {
-        var success = RequestSuccess.create(s -> s
-            .requestType(requestType)
-            .name(name)
-            .responseTime(responseTime)
-            .contentLength(contentLength));
-        Stats.getInstance().successes().offer(success);
-        Stats.getInstance().wakeMeUp();
+        Stats.getInstance().recordSuccess(requestType, name, responseTime, contentLength);
     }
 
     /**
@@ -284,13 +448,49 @@ public class Locust {
      * @since 1.0.0
      */
     public void recordFailure(String requestType, String name, long responseTime, String error) {
-        var failure = RequestFailure.create(s -> s
-            .requestType(requestType)
-            .name(name)
-            .responseTime(responseTime)
-            .error(error));
-        Stats.getInstance().failures().offer(failure);
-        Stats.getInstance().wakeMeUp();
+        Stats.getInstance().recordFailure(requestType, name, responseTime, error);
+    }
+
+    /**
+     * Get a reusable handle of the request type and name, then record test results through it.
+     * Resolve the handle once, like in {@link AbstractTask#onStart()} or a static field, it saves looking up and
+     * allocating for every request compared to {@link #recordSuccess} and {@link #recordFailure}.
+     *
+     * @param requestType locust use request type to classify test results
+     * @param name        like request type, used by locust to classify test results
+     * @return the handle
+     * @since 2.3.0
+     */
+    public RequestKey requestKey(String requestType, String name) {
+        return Stats.getInstance().requestKey(requestType, name);
+    }
+
+    /**
+     * Run the task, measure it with {@link System#nanoTime()} and record the result. If the task throws, it's
+     * recorded as a failure and the exception isn't rethrown.
+     * To avoid looking up the request for every call, keep a {@link RequestKey} and use {@link RequestKey#time}.
+     *
+     * @param requestType locust use request type to classify test results
+     * @param name        like request type, used by locust to classify test results
+     * @param task        the task to time
+     * @return true if the task succeeded
+     * @since 2.3.0
+     */
+    public boolean time(String requestType, String name, TimedTask task) {
+        return Stats.getInstance().requestKey(requestType, name).time(task);
+    }
+
+    /**
+     * Create a reusable timer of the request type and name, for requests which report content length or can't be
+     * wrapped in a lambda.
+     *
+     * @param requestType locust use request type to classify test results
+     * @param name        like request type, used by locust to classify test results
+     * @return a new timer, not started
+     * @since 2.3.0
+     */
+    public RequestTimer timer(String requestType, String name) {
+        return Stats.getInstance().requestKey(requestType, name).newTimer();
     }
 
     /**
@@ -0,0 +1,75 @@
+package com.github.myzhan.locust4j.jfr;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import jdk.jfr.SettingControl;
+
+/**
+ * The latencyThreshold setting of {@link RequestEvent}, like "20 ms". When several recordings set it, the lowest
+ * threshold wins.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+public final class LatencyThresholdSetting extends SettingControl {
+
+    private static final String DEFAULT_VALUE = "20 ms";
+
+    private volatile String value = DEFAULT_VALUE;
+    private volatile long thresholdNanos = parse(DEFAULT_VALUE);
+
+    @Override
+    public String combine(Set<String> values) {
+        String lowest = null;
+        long lowestNanos = Long.MAX_VALUE;
+        for (String candidate : values) {
+            long nanos = parse(candidate);
+            if (nanos < lowestNanos) {
+                lowest = candidate;
+                lowestNanos = nanos;
+            }
+        }
+        return null == lowest ? DEFAULT_VALUE : lowest;
+    }
+
+    @Override
+    public void setValue(String value) {
+        this.thresholdNanos = parse(value);
+        this.value = value;
+    }
+
+    @Override
+    public String getValue() {
+        return this.value;
+    }
+
+    long getThresholdNanos() {
+        return this.thresholdNanos;
+    }
+
+    /**
+     * Parse thresholds like "0", "500 us", "20 ms" or "1 s", an invalid value is treated as 0.
+     */
+    static long parse(String value) {
+        String trimmed = value.trim();
+        int split = 0;
+        while (split < trimmed.length() && Character.isDigit(trimmed.charAt(split))) {
+            split++;
+        }
+        if (split == 0) {
+            return 0;
+        }
+        long amount = Long.parseLong(trimmed.substring(0, split));
+        switch (trimmed.substring(split).trim()) {
+            case "s":
+                return TimeUnit.SECONDS.toNanos(amount);
+            case "ms":
+                return TimeUnit.MILLISECONDS.toNanos(amount);
+            case "us":
+                return TimeUnit.MICROSECONDS.toNanos(amount);
+            default:
+                return amount;
+        }
+    }
+}
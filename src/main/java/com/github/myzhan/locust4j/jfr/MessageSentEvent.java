@@ -0,0 +1,58 @@
+package com.github.myzhan.locust4j.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A message was serialized and sent to the master, the duration includes serialization.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+@Name("locust4j.MessageSent")
+@Label("Message Sent")
+@Category({"Locust4j", "RPC"})
+@Description("A message sent to the master")
+@StackTrace(false)
+public final class MessageSentEvent extends Event {
+
+    @Label("Type")
+    private String type;
+
+    @Label("Payload Size")
+    @DataAmount
+    private long size;
+
+    /**
+     * @return an event which is begun, or null if it's disabled
+     */
+    public static MessageSentEvent start() {
+        MessageSentEvent event = new MessageSentEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @param event an event returned by {@link #start()}, may be null
+     * @param type  type of the message
+     * @param size  size of the serialized message in bytes
+     */
+    public static void finish(MessageSentEvent event, String type, long size) {
+        if (null != event) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.type = type;
+                event.size = size;
+                event.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.github.myzhan.locust4j.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A thread waited for the rate limiter to refill its permits.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+@Name("locust4j.RateLimiterWait")
+@Label("Rate Limiter Wait")
+@Category({"Locust4j", "Rate Limiter"})
+@Description("A thread ran out of permits and waited for the rate limiter")
+@StackTrace(false)
+public final class RateLimiterWaitEvent extends Event {
+
+    @Label("Rate Limiter")
+    private String rateLimiter;
+
+    /**
+     * @return an event which is begun, or null if it's disabled
+     */
+    public static RateLimiterWaitEvent start(String rateLimiter) {
+        RateLimiterWaitEvent event = new RateLimiterWaitEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.rateLimiter = rateLimiter;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @param event an event returned by {@link #start(String)}, may be null
+     */
+    public static void finish(RateLimiterWaitEvent event) {
+        if (null != event) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.github.myzhan.locust4j.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Stats serialized a report, the duration is the serialization time.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+@Name("locust4j.Report")
+@Label("Stats Report")
+@Category({"Locust4j", "Stats"})
+@Description("Stats serialized a report for the master")
+@StackTrace(false)
+public final class ReportEvent extends Event {
+
+    @Label("Entries")
+    private int entries;
+
+    @Label("Errors")
+    private int errors;
+
+    /**
+     * @return an event which is begun, or null if it's disabled
+     */
+    public static ReportEvent start() {
+        ReportEvent event = new ReportEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @param event   an event returned by {@link #start()}, may be null
+     * @param entries number of reported entries
+     * @param errors  number of reported errors
+     */
+    public static void finish(ReportEvent event, int entries, int errors) {
+        if (null != event) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.entries = entries;
+                event.errors = errors;
+                event.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.github.myzhan.locust4j.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.SettingDefinition;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A recorded test result. Only results which took at least the latencyThreshold setting are committed, it defaults
+ * to 20 ms.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+@Name("locust4j.Request")
+@Label("Request")
+@Category({"Locust4j", "Stats"})
+@Description("A test result recorded by locust4j")
+@StackTrace(false)
+public final class RequestEvent extends Event {
+
+    @Label("Method")
+    private String method;
+
+    @Label("Name")
+    private String name;
+
+    @Label("Response Time")
+    @Timespan(Timespan.NANOSECONDS)
+    private long responseTime;
+
+    @Label("Error")
+    private String error;
+
+    /**
+     * Commit an event if it's enabled and slow enough, it costs next to nothing when it's disabled.
+     *
+     * @param method            request type
+     * @param name              request name
+     * @param responseTimeNanos response time in nanoseconds
+     * @param error             error message, null for a success
+     */
+    public static void commit(String method, String name, long responseTimeNanos, String error) {
+        RequestEvent event = new RequestEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        event.responseTime = responseTimeNanos;
+        if (event.shouldCommit()) {
+            event.method = method;
+            event.name = name;
+            event.error = error;
+            event.commit();
+        }
+    }
+
+    @Label("Latency Threshold")
+    @Description("Only commit results which took at least this long, like 20 ms")
+    @Name("latencyThreshold")
+    @SettingDefinition
+    protected boolean latencyThreshold(LatencyThresholdSetting setting) {
+        return this.responseTime >= setting.getThresholdNanos();
+    }
+}
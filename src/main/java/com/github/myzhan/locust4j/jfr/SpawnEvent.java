@@ -0,0 +1,57 @@
+package com.github.myzhan.locust4j.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The runner spawned or stopped users.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+@Name("locust4j.Spawn")
+@Label("Spawn")
+@Category({"Locust4j", "Runner"})
+@Description("The runner changed the number of users")
+@StackTrace(false)
+public final class SpawnEvent extends Event {
+
+    @Label("State")
+    private String state;
+
+    @Label("Users Before")
+    private int usersBefore;
+
+    @Label("Users")
+    private int users;
+
+    /**
+     * @return an event which is begun, or null if it's disabled
+     */
+    public static SpawnEvent start(String state, int usersBefore) {
+        SpawnEvent event = new SpawnEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.state = state;
+        event.usersBefore = usersBefore;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @param event an event returned by {@link #start(String, int)}, may be null
+     * @param users number of users afterwards
+     */
+    public static void finish(SpawnEvent event, int users) {
+        if (null != event) {
+            event.end();
+            event.users = users;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,547 @@
+package com.github.myzhan.locust4j.master;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import com.github.myzhan.locust4j.message.Message;
+import com.github.myzhan.locust4j.message.Null;
+import com.github.myzhan.locust4j.rpc.MessageDeser;
+import com.github.myzhan.locust4j.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zeromq.SocketType;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+
+/**
+ * A {@link Master} plays the locust master for locust4j and python workers, without the web UI.
+ *
+ * The ROUTER socket is owned by a single I/O thread. Received messages are handed to aggregation threads, every
+ * worker is pinned to one of them, so its messages are handled in order while different workers are aggregated in
+ * parallel. Users are distributed across ready and running workers as evenly as possible, and redistributed when a
+ * worker joins, quits or goes missing.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+public class Master implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(Master.class);
+
+    private static final long HEARTBEAT_INTERVAL = 1000;
+    private static final long WORKER_HEARTBEAT_TIMEOUT = Long.parseLong(Utils.getSystemEnvWithDefault(
+        "LOCUST_WORKER_HEARTBEAT_TIMEOUT", "3000"));
+    private static final int AGGREGATION_THREADS = Integer.parseInt(Utils.getSystemEnvWithDefault(
+        "LOCUST_MASTER_AGGREGATION_THREADS", String.valueOf(Runtime.getRuntime().availableProcessors())));
+    private static final AtomicInteger masterNumber = new AtomicInteger();
+
+    private final String bindHost;
+    private final int bindPort;
+    private final ZMQ.Context context = ZMQ.context(1);
+    private ZMQ.Socket routerSocket;
+    private ZMQ.Socket wakeupReceiver;
+    /**
+     * Written by senders, guarded by itself.
+     */
+    private ZMQ.Socket wakeupSender;
+    private boolean wakeupSenderClosed;
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    private final Queue<byte[][]> outbox = new ConcurrentLinkedQueue<>();
+    private Thread ioThread;
+    private final ExecutorService[] aggregators = new ExecutorService[Math.max(1, AGGREGATION_THREADS)];
+    private ScheduledExecutorService heartbeater;
+
+    private final Map<String, WorkerNode> workers = new ConcurrentHashMap<>();
+    private final AtomicInteger workerIndex = new AtomicInteger();
+    private final StatsAggregator stats = new StatsAggregator();
+    private final List<Consumer<Map<String, Object>>> statsListeners = new CopyOnWriteArrayList<>();
+    private final List<Runnable> spawnedListeners = new CopyOnWriteArrayList<>();
+    /**
+     * Users required by the last spawn, or null if the test isn't running.
+     */
+    private Map<String, Integer> targetUserClassesCount;
+    /**
+     * Whether spawned listeners were notified of the last spawn, guarded by this.
+     */
+    private boolean spawnedNotified;
+    private String host = "";
+    private volatile boolean aggregateStats = true;
+    private volatile boolean closed;
+
+    public Master(String bindHost, int bindPort) {
+        this.bindHost = bindHost;
+        this.bindPort = bindPort;
+    }
+
+    /**
+     * Bind the port and start handling workers.
+     *
+     * @return this master
+     */
+    public Master start() {
+        this.routerSocket = this.context.socket(SocketType.ROUTER);
+        this.routerSocket.bind(String.format("tcp://%s:%d", this.bindHost, this.bindPort));
+        String wakeupEndpoint = "inproc://locust4j-master-wakeup-" + masterNumber.incrementAndGet();
+        this.wakeupReceiver = this.context.socket(SocketType.PAIR);
+        this.wakeupReceiver.bind(wakeupEndpoint);
+        this.wakeupSender = this.context.socket(SocketType.PAIR);
+        this.wakeupSender.connect(wakeupEndpoint);
+
+        for (int i = 0; i < this.aggregators.length; i++) {
+            int aggregator = i;
+            this.aggregators[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r);
+                    thread.setName("locust4j-master-aggregator#" + aggregator);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        this.heartbeater = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setName("locust4j-master-heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.heartbeater.scheduleAtFixedRate(this::checkHeartbeats, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL,
+            TimeUnit.MILLISECONDS);
+
+        this.ioThread = new Thread(this::loop);
+        this.ioThread.setName("locust4j-master-io");
+        this.ioThread.setDaemon(true);
+        this.ioThread.start();
+        logger.info("Locust4j master is listening on {}:{}", this.bindHost, this.bindPort);
+        return this;
+    }
+
+    /**
+     * @param host the host sent to workers with spawn messages
+     */
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    /**
+     * @return workers which are registered, including stopped and missing ones
+     */
+    public Collection<WorkerNode> getWorkers() {
+        return Collections.unmodifiableCollection(this.workers.values());
+    }
+
+    /**
+     * Whether to aggregate the stats of the workers into {@link #getStats()}, it's on by default. Turn it off if stats
+     * listeners consume the reports instead.
+     *
+     * @param aggregateStats aggregate stats or not
+     */
+    public void setAggregateStats(boolean aggregateStats) {
+        this.aggregateStats = aggregateStats;
+    }
+
+    /**
+     * @return stats aggregated from every worker, empty if aggregation is turned off
+     */
+    public StatsAggregator getStats() {
+        return this.stats;
+    }
+
+    /**
+     * Listen to the data of every stats message, it's called by the aggregation threads.
+     *
+     * @param listener the listener
+     */
+    public void addStatsListener(Consumer<Map<String, Object>> listener) {
+        this.statsListeners.add(listener);
+    }
+
+    /**
+     * Listen to every available worker reporting spawning_complete for the last spawn, it's called once per spawn by
+     * the aggregation threads.
+     *
+     * @param listener the listener
+     */
+    public void addSpawnedListener(Runnable listener) {
+        this.spawnedListeners.add(listener);
+    }
+
+    /**
+     * @return sum of users reported by the workers
+     */
+    public int getUserCount() {
+        return this.workers.values().stream().mapToInt(WorkerNode::getUserCount).sum();
+    }
+
+    public boolean awaitWorkers(int count, Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (this.workers.size() < count) {
+            if (System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Spawn users of one class.
+     *
+     * @param userClass name of the user class, which is the task name for locust4j workers
+     * @param users     total number of users
+     */
+    public void spawn(String userClass, int users) {
+        this.spawn(Collections.singletonMap(userClass, users));
+    }
+
+    /**
+     * Spawn users across the workers, stats are reset when a test starts.
+     *
+     * @param userClassesCount total number of users by user class
+     */
+    public synchronized void spawn(Map<String, Integer> userClassesCount) {
+        if (null == this.targetUserClassesCount) {
+            this.stats.reset();
+        }
+        this.targetUserClassesCount = new LinkedHashMap<>(userClassesCount);
+        this.rebalance();
+    }
+
+    /**
+     * Stop every worker, they register again with client_ready afterwards.
+     */
+    public synchronized void stop() {
+        this.targetUserClassesCount = null;
+        for (WorkerNode worker : this.workers.values()) {
+            if (worker.getState() != WorkerState.Missing) {
+                this.send(worker, Message.create(s -> s.type("stop").nodeId(worker.getNodeID())));
+            }
+        }
+    }
+
+    /**
+     * Ask every worker to quit.
+     */
+    public synchronized void quit() {
+        this.targetUserClassesCount = null;
+        for (WorkerNode worker : this.workers.values()) {
+            this.send(worker, Message.create(s -> s.type("quit").nodeId(worker.getNodeID())));
+        }
+    }
+
+    /**
+     * Split the users of every class across the workers, the remainder of a class goes to the workers after the ones
+     * which got the remainder of the previous class, so totals differ by one at most.
+     *
+     * @return users by user class for every worker, in the same order
+     */
+    static List<Map<String, Integer>> distribute(Map<String, Integer> userClassesCount, int workers) {
+        List<Map<String, Integer>> result = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            result.add(new TreeMap<>());
+        }
+        int offset = 0;
+        for (Map.Entry<String, Integer> entry : new TreeMap<>(userClassesCount).entrySet()) {
+            int users = entry.getValue();
+            for (int i = 0; i < workers; i++) {
+                int extra = Math.floorMod(i - offset, workers) < users % workers ? 1 : 0;
+                result.get(i).put(entry.getKey(), users / workers + extra);
+            }
+            offset = (offset + users % workers) % workers;
+        }
+        return result;
+    }
+
+    /**
+     * Send spawn messages for the target users to the available workers.
+     */
+    private synchronized void rebalance() {
+        if (null == this.targetUserClassesCount) {
+            return;
+        }
+        List<WorkerNode> available = new ArrayList<>();
+        for (WorkerNode worker : this.workers.values()) {
+            if (worker.getState() != WorkerState.Missing) {
+                available.add(worker);
+            }
+        }
+        if (available.isEmpty()) {
+            logger.warn("No worker is available to spawn {}", this.targetUserClassesCount);
+            // nothing to wait for, the spawn is complete with no users until workers join
+            this.spawnedNotified = false;
+            this.checkSpawned();
+            return;
+        }
+        available.sort((a, b) -> Integer.compare(a.getIndex(), b.getIndex()));
+        List<Map<String, Integer>> distribution = distribute(this.targetUserClassesCount, available.size());
+        double timestamp = System.currentTimeMillis() / 1000.0;
+        for (int i = 0; i < available.size(); i++) {
+            WorkerNode worker = available.get(i);
+            Map<String, Integer> userClassesCount = distribution.get(i);
+            if (userClassesCount.equals(worker.getUserClassesCount()) && worker.getState() != WorkerState.Ready
+                && worker.getState() != WorkerState.Stopped) {
+                continue;
+            }
+            worker.setUserClassesCount(userClassesCount);
+            // until it reports spawning_complete
+            worker.setState(WorkerState.Spawning);
+            this.spawnedNotified = false;
+            this.send(worker, Message.create(s -> s
+                .type("spawn")
+                .putData("user_classes_count", userClassesCount)
+                .putData("host", this.host)
+                .putData("stop_timeout", Null.TYPE)
+                .putData("timestamp", timestamp)
+                .nodeId(worker.getNodeID())));
+        }
+    }
+
+    /**
+     * Notify spawned listeners once every available worker has completed the last spawn.
+     */
+    private synchronized void checkSpawned() {
+        if (null == this.targetUserClassesCount || this.spawnedNotified) {
+            return;
+        }
+        for (WorkerNode worker : this.workers.values()) {
+            if (worker.getState() != WorkerState.Missing && worker.getState() != WorkerState.Running) {
+                return;
+            }
+        }
+        this.spawnedNotified = true;
+        for (Runnable listener : this.spawnedListeners) {
+            try {
+                listener.run();
+            } catch (Exception ex) {
+                logger.error("Error in a spawned listener", ex);
+            }
+        }
+    }
+
+    private void checkHeartbeats() {
+        long now = System.currentTimeMillis();
+        boolean lost = false;
+        for (WorkerNode worker : this.workers.values()) {
+            if (worker.getState() != WorkerState.Missing && now - worker.getLastHeartbeatMillis() > WORKER_HEARTBEAT_TIMEOUT) {
+                logger.warn("Worker {} hasn't sent a heartbeat in over {}ms, marked as missing", worker.getNodeID(),
+                    WORKER_HEARTBEAT_TIMEOUT);
+                worker.setState(WorkerState.Missing);
+                worker.setUserCount(0);
+                lost = true;
+            }
+        }
+        if (lost) {
+            this.rebalance();
+        }
+    }
+
+    private void dispatch(byte[] identity, byte[] bytes) {
+        int aggregator = Math.floorMod(Arrays.hashCode(identity), this.aggregators.length);
+        this.aggregators[aggregator].execute(() -> {
+            try {
+                this.onMessage(identity, MessageDeser.deserialise(bytes));
+            } catch (RuntimeException ex) {
+                logger.error("Error while handling a message from worker {}", new String(identity), ex);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private void onMessage(byte[] identity, Message message) {
+        String nodeID = message.nodeId().orElse(new String(identity));
+        Map<String, Object> data = message.data();
+        WorkerNode worker = this.workers.get(nodeID);
+        switch (message.type()) {
+            case "client_ready" -> {
+                WorkerNode registered = this.workers.compute(nodeID, (key, existing) ->
+                    new WorkerNode(nodeID, identity,
+                        null == existing ? this.workerIndex.getAndIncrement() : existing.getIndex()));
+                this.send(registered, Message.create(s -> s
+                    .type("ack")
+                    .putData("index", registered.getIndex())
+                    .nodeId(nodeID)));
+                logger.info("Worker {} is ready, {} workers connected", nodeID, this.workers.size());
+                this.rebalance();
+            }
+            case "heartbeat" -> {
+                if (null == worker) {
+                    // the worker was registered to a previous master
+                    this.send(new WorkerNode(nodeID, identity, -1), Message.create(s -> s.type("reconnect").nodeId(nodeID)));
+                    return;
+                }
+                boolean missing = worker.getState() == WorkerState.Missing;
+                worker.onHeartbeat(data.get("current_cpu_usage") instanceof Number cpu ? cpu.doubleValue() : 0);
+                if (missing) {
+                    worker.setState(stateOf(data.get("state")));
+                    logger.info("Worker {} is back", nodeID);
+                    this.rebalance();
+                }
+                this.send(worker, Message.create(s -> s.type("heartbeat").nodeId(nodeID)));
+            }
+            case "spawning" -> {
+                if (null != worker) {
+                    worker.setState(WorkerState.Spawning);
+                }
+            }
+            case "spawning_complete" -> {
+                if (null != worker) {
+                    worker.setState(WorkerState.Running);
+                    if (data.get("count") instanceof Number count) {
+                        worker.setUserCount(count.intValue());
+                    }
+                    if (data.get("user_classes_count") instanceof Map<?, ?> spawned) {
+                        worker.setUserClassesCount((Map<String, Integer>) spawned);
+                    }
+                    this.checkSpawned();
+                }
+            }
+            case "client_stopped" -> {
+                if (null != worker) {
+                    worker.setState(WorkerState.Stopped);
+                    worker.setUserCount(0);
+                    worker.setUserClassesCount(Collections.emptyMap());
+                }
+            }
+            case "stats" -> {
+                if (null != worker && data.get("user_count") instanceof Number count) {
+                    worker.setUserCount(count.intValue());
+                }
+                if (this.aggregateStats) {
+                    this.stats.add(data);
+                }
+                for (Consumer<Map<String, Object>> listener : this.statsListeners) {
+                    listener.accept(data);
+                }
+            }
+            case "quit" -> {
+                if (null != this.workers.remove(nodeID)) {
+                    logger.info("Worker {} quit, {} workers connected", nodeID, this.workers.size());
+                    this.rebalance();
+                }
+            }
+            case "exception" -> logger.warn("Worker {} reported an exception: {}", nodeID, data.get("msg"));
+            default -> logger.debug("Got {} message from worker {}, ignored", message.type(), nodeID);
+        }
+    }
+
+    private static WorkerState stateOf(Object state) {
+        String name = String.valueOf(state);
+        for (WorkerState value : WorkerState.values()) {
+            if (value.name().equalsIgnoreCase(name)) {
+                return value;
+            }
+        }
+        return WorkerState.Ready;
+    }
+
+    private void send(WorkerNode worker, Message message) {
+        byte[] bytes;
+        try {
+            bytes = MessageDeser.serialise(message);
+        } catch (IOException ex) {
+            logger.error("Failed to serialize a {} message, dropped", message.type(), ex);
+            return;
+        }
+        this.outbox.offer(new byte[][] {worker.identity(), bytes});
+        // one wake-up is enough for everything queued before the I/O thread looks at the outbox
+        if (this.wakeupPending.compareAndSet(false, true)) {
+            this.wakeUp();
+        }
+    }
+
+    private void wakeUp() {
+        synchronized (this.wakeupSender) {
+            if (!this.wakeupSenderClosed) {
+                this.wakeupSender.send(new byte[0], ZMQ.DONTWAIT);
+            }
+        }
+    }
+
+    /**
+     * The I/O loop, it receives frames from workers and sends queued messages when it's woken up.
+     */
+    private void loop() {
+        ZMQ.Poller poller = this.context.poller(2);
+        int router = poller.register(this.routerSocket, ZMQ.Poller.POLLIN);
+        int wakeup = poller.register(this.wakeupReceiver, ZMQ.Poller.POLLIN);
+        try {
+            while (!this.closed) {
+                poller.poll(-1);
+                if (poller.pollin(wakeup)) {
+                    while (null != this.wakeupReceiver.recv(ZMQ.DONTWAIT)) {
+                        // drain the wake-ups
+                    }
+                }
+                // reset before draining the outbox, anything queued afterwards wakes us up again
+                this.wakeupPending.set(false);
+                byte[][] outgoing;
+                while (null != (outgoing = this.outbox.poll())) {
+                    this.routerSocket.sendMore(outgoing[0]);
+                    // a message to a worker which is gone is dropped by the ROUTER socket
+                    this.routerSocket.send(outgoing[1], ZMQ.DONTWAIT);
+                }
+                if (poller.pollin(router)) {
+                    byte[] identity;
+                    while (null != (identity = this.routerSocket.recv(ZMQ.DONTWAIT))) {
+                        this.dispatch(identity, this.routerSocket.recv());
+                    }
+                }
+            }
+        } catch (ZMQException ex) {
+            if (!this.closed) {
+                logger.error("Master I/O thread failed, no more messages will be sent or received", ex);
+            }
+        } finally {
+            poller.close();
+            this.routerSocket.close();
+            this.wakeupReceiver.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        if (null == this.ioThread) {
+            this.context.close();
+            return;
+        }
+        this.wakeUp();
+        try {
+            this.ioThread.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this.wakeupSender) {
+            this.wakeupSenderClosed = true;
+            this.wakeupSender.close();
+        }
+        this.heartbeater.shutdownNow();
+        for (ExecutorService aggregator : this.aggregators) {
+            aggregator.shutdownNow();
+        }
+        this.context.close();
+    }
+}
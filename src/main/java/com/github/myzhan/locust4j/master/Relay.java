@@ -0,0 +1,241 @@
+package com.github.myzhan.locust4j.master;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.github.myzhan.locust4j.message.Message;
+import com.github.myzhan.locust4j.rpc.Client;
+import com.github.myzhan.locust4j.rpc.ZeromqClient;
+import com.github.myzhan.locust4j.runtime.ReportBuffer;
+import com.github.myzhan.locust4j.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link Relay} registers many local workers to the master as one worker.
+ *
+ * It's a {@link Master} toward the local workers and a worker toward the real master. Spawn counts from the master
+ * are split across the local workers, and their stats reports are merged into one report every interval, so the
+ * master handles one report per relay instead of one per worker.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+public class Relay implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(Relay.class);
+
+    private static final long HEARTBEAT_INTERVAL = 1000;
+    private static final long REPORT_INTERVAL = 3000;
+
+    private final String nodeID;
+    private final Master master;
+    private final Client upstream;
+    private final ReportBuffer reportBuffer = new ReportBuffer();
+    private final ScheduledExecutorService scheduler;
+    private final long reportInterval;
+    private Thread receiver;
+    private volatile WorkerState state = WorkerState.Ready;
+    private volatile Map<String, Integer> userClassesCount = Collections.emptyMap();
+
+    /**
+     * @param masterHost host of the real master
+     * @param masterPort port of the real master
+     * @param bindHost   host to bind for local workers
+     * @param bindPort   port to bind for local workers
+     */
+    public Relay(String masterHost, int masterPort, String bindHost, int bindPort) {
+        this(masterHost, masterPort, bindHost, bindPort, REPORT_INTERVAL);
+    }
+
+    /**
+     * @param reportInterval millis between merged reports, or 0 to report only when {@link #report()} is called
+     */
+    Relay(String masterHost, int masterPort, String bindHost, int bindPort, long reportInterval) {
+        this.reportInterval = reportInterval;
+        this.nodeID = Utils.getNodeID();
+        this.master = new Master(bindHost, bindPort);
+        // local reports are merged by the report buffer only
+        this.master.setAggregateStats(false);
+        this.upstream = new ZeromqClient(masterHost, masterPort, this.nodeID);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setName("locust4j-relay");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Start accepting local workers and register to the master.
+     *
+     * @return this relay
+     */
+    public Relay start() {
+        this.master.addStatsListener(this.reportBuffer::add);
+        this.master.addSpawnedListener(this::spawned);
+        this.master.start();
+
+        this.receiver = new Thread(this::receive);
+        this.receiver.setName("locust4j-relay-receiver");
+        this.receiver.setDaemon(true);
+        this.receiver.start();
+
+        this.send(Message.create(s -> s.type("client_ready").nodeId(this.nodeID)));
+        this.scheduler.scheduleAtFixedRate(this::heartbeat, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL,
+            TimeUnit.MILLISECONDS);
+        if (this.reportInterval > 0) {
+            this.scheduler.scheduleAtFixedRate(this::report, this.reportInterval, this.reportInterval,
+                TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * @return the master of the local workers
+     */
+    public Master getMaster() {
+        return this.master;
+    }
+
+    public String getNodeID() {
+        return this.nodeID;
+    }
+
+    private void receive() {
+        while (true) {
+            Message message;
+            try {
+                message = this.upstream.recv();
+            } catch (IOException ex) {
+                // the relay is closed
+                return;
+            }
+            try {
+                this.onMessage(message);
+            } catch (Exception ex) {
+                logger.error("Error while handling a {} message from master", message.type(), ex);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void onMessage(Message message) {
+        switch (message.type()) {
+            case "ack" -> logger.info("Relay {} is registered to master with {} local workers", this.nodeID,
+                this.master.getWorkers().size());
+            case "spawn" -> {
+                this.state = WorkerState.Spawning;
+                this.send(Message.create(s -> s.type("spawning").nodeId(this.nodeID)));
+                Map<String, Integer> required = new LinkedHashMap<>(
+                    (Map<String, Integer>) message.data().get("user_classes_count"));
+                Object host = message.data().get("host");
+                if (host instanceof String) {
+                    this.master.setHost((String) host);
+                }
+                this.userClassesCount = required;
+                // spawning_complete is sent once the local workers have completed it
+                this.master.spawn(required);
+            }
+            case "stop" -> {
+                this.master.stop();
+                this.report();
+                this.state = WorkerState.Stopped;
+                this.send(Message.create(s -> s.type("client_stopped").nodeId(this.nodeID)));
+                this.send(Message.create(s -> s.type("client_ready").nodeId(this.nodeID)));
+                this.state = WorkerState.Ready;
+            }
+            case "reconnect" -> {
+                this.upstream.reconnect();
+                this.send(Message.create(s -> s.type("client_ready").nodeId(this.nodeID)));
+            }
+            case "quit" -> {
+                logger.info("Got quit message from master, asking local workers to quit");
+                this.master.quit();
+            }
+            default -> {
+                // heartbeats need no reply
+            }
+        }
+    }
+
+    /**
+     * Report spawning_complete to the master with the users the local workers reported, with no users if there is no
+     * local worker, and again whenever local workers join and complete their spawn.
+     */
+    private void spawned() {
+        if (this.state != WorkerState.Spawning && this.state != WorkerState.Running) {
+            // stopped while the local workers were spawning
+            return;
+        }
+        Map<String, Integer> spawned = new LinkedHashMap<>();
+        for (WorkerNode worker : this.master.getWorkers()) {
+            if (worker.getState() == WorkerState.Running) {
+                worker.getUserClassesCount().forEach((userClass, users) ->
+                    spawned.merge(userClass, users, Integer::sum));
+            }
+        }
+        int count = this.master.getUserCount();
+        this.send(Message.create(s -> s
+            .type("spawning_complete")
+            .putData("count", count)
+            .putData("user_classes_count", spawned)
+            .nodeId(this.nodeID)));
+        this.state = WorkerState.Running;
+    }
+
+    private void heartbeat() {
+        double cpuUsage = this.master.getWorkers().stream().mapToDouble(WorkerNode::getCpuUsage).max().orElse(0);
+        this.send(Message.create(s -> s
+            .type("heartbeat")
+            .putData("state", this.state.name().toLowerCase())
+            .putData("current_cpu_usage", cpuUsage)
+            .nodeId(this.nodeID)));
+    }
+
+    /**
+     * Send the reports of local workers since the last interval as one.
+     */
+    void report() {
+        if (this.state == WorkerState.Ready || this.state == WorkerState.Stopped) {
+            // like a worker, don't report before spawning, drop whatever stopped workers sent last
+            this.reportBuffer.drain();
+            return;
+        }
+        Map<String, Object> data = this.reportBuffer.drain();
+        if (null == data) {
+            return;
+        }
+        this.send(Message.create(s -> s
+            .type("stats")
+            .putAllData(data)
+            .putData("user_count", this.master.getUserCount())
+            .putData("user_classes_count", this.userClassesCount)
+            .nodeId(this.nodeID)));
+    }
+
+    private void send(Message message) {
+        try {
+            this.upstream.send(message);
+        } catch (IOException ex) {
+            logger.error("Error while sending a {} message to master", message.type(), ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.send(Message.create(s -> s.type("quit").nodeId(this.nodeID)));
+        this.scheduler.shutdownNow();
+        this.upstream.close();
+        this.master.close();
+    }
+}
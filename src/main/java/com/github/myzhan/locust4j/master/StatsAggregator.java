@@ -0,0 +1,211 @@
+package com.github.myzhan.locust4j.master;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.myzhan.locust4j.message.LongIntMap;
+
+/**
+ * A {@link StatsAggregator} sums the stats reported by every worker, it's called by many threads at once.
+ *
+ * Entries are locked one by one, so reports of different workers are aggregated in parallel and only meet on the
+ * entries they share.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+public class StatsAggregator {
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Entry total = new Entry("Aggregated", "");
+    private final Map<String, Map<String, Object>> errors = new ConcurrentHashMap<>();
+    private final LongAdder numReports = new LongAdder();
+
+    /**
+     * Add the data of a stats message.
+     *
+     * @param data data of the stats message
+     */
+    @SuppressWarnings("unchecked")
+    public void add(Map<String, Object> data) {
+        Object stats = data.get("stats");
+        if (stats instanceof List) {
+            for (Map<String, Object> report : (List<Map<String, Object>>) stats) {
+                String name = String.valueOf(report.get("name"));
+                String method = String.valueOf(report.get("method"));
+                this.entries.computeIfAbsent(method + " " + name, k -> new Entry(name, method)).add(report);
+            }
+        }
+        Object statsTotal = data.get("stats_total");
+        if (statsTotal instanceof Map) {
+            this.total.add((Map<String, Object>) statsTotal);
+        }
+        Object errorReport = data.get("errors");
+        if (errorReport instanceof Map) {
+            for (Map.Entry<String, Map<String, Object>> error : ((Map<String, Map<String, Object>>) errorReport).entrySet()) {
+                this.errors.merge(error.getKey(), new LinkedHashMap<>(error.getValue()), (existing, added) -> {
+                    Map<String, Object> merged = new LinkedHashMap<>(existing);
+                    merged.put("occurrences", toLong(existing.get("occurrences")) + toLong(added.get("occurrences")));
+                    return merged;
+                });
+            }
+        }
+        this.numReports.increment();
+    }
+
+    public long getNumReports() {
+        return this.numReports.sum();
+    }
+
+    public long getNumRequests() {
+        return this.total.numRequests();
+    }
+
+    /**
+     * @return summary of every request, followed by the aggregated summary
+     */
+    public List<Map<String, Object>> getSummary() {
+        List<Entry> sorted = new ArrayList<>(this.entries.values());
+        sorted.sort((a, b) -> a.key().compareTo(b.key()));
+        List<Map<String, Object>> summary = new ArrayList<>(sorted.size() + 1);
+        for (Entry entry : sorted) {
+            summary.add(entry.summary());
+        }
+        summary.add(this.total.summary());
+        return summary;
+    }
+
+    /**
+     * @return the aggregated summary
+     */
+    public Map<String, Object> getTotal() {
+        return this.total.summary();
+    }
+
+    public Map<String, Map<String, Object>> getErrors() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(this.errors));
+    }
+
+    /**
+     * Forget everything, like the master does when a new test starts.
+     */
+    public void reset() {
+        this.entries.clear();
+        this.total.reset();
+        this.errors.clear();
+        this.numReports.reset();
+    }
+
+    private static long toLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static double toDouble(Object value) {
+        return value instanceof Number ? ((Number) value).doubleValue() : 0;
+    }
+
+    private static class Entry {
+        private final String name;
+        private final String method;
+        private long numRequests;
+        private long numFailures;
+        private double totalResponseTime;
+        private double minResponseTime;
+        private double maxResponseTime;
+        private long totalContentLength;
+        private final LongIntMap responseTimes = new LongIntMap();
+
+        private Entry(String name, String method) {
+            this.name = name;
+            this.method = method;
+        }
+
+        private String key() {
+            return this.name + " " + this.method;
+        }
+
+        private synchronized void add(Map<String, Object> report) {
+            long requests = toLong(report.get("num_requests"));
+            if (requests > 0) {
+                // workers in python report None as the min response time before the first request
+                if (report.get("min_response_time") instanceof Number) {
+                    double min = toDouble(report.get("min_response_time"));
+                    if (this.numRequests == 0 || min < this.minResponseTime) {
+                        this.minResponseTime = min;
+                    }
+                }
+                this.maxResponseTime = Math.max(this.maxResponseTime, toDouble(report.get("max_response_time")));
+            }
+            this.numRequests += requests;
+            this.numFailures += toLong(report.get("num_failures"));
+            this.totalResponseTime += toDouble(report.get("total_response_time"));
+            this.totalContentLength += toLong(report.get("total_content_length"));
+            Object responseTimes = report.get("response_times");
+            if (responseTimes instanceof LongIntMap) {
+                this.responseTimes.merge((LongIntMap) responseTimes);
+            }
+        }
+
+        private synchronized long numRequests() {
+            return this.numRequests;
+        }
+
+        private synchronized void reset() {
+            this.numRequests = 0;
+            this.numFailures = 0;
+            this.totalResponseTime = 0;
+            this.minResponseTime = 0;
+            this.maxResponseTime = 0;
+            this.totalContentLength = 0;
+            this.responseTimes.clear();
+        }
+
+        /**
+         * Percentile of the rounded response times, like locust calculates it.
+         */
+        private long percentile(double percent) {
+            long count = 0;
+            List<Long> keys = new ArrayList<>(this.responseTimes.size());
+            for (int slot = 0; slot < this.responseTimes.capacity(); slot++) {
+                if (this.responseTimes.valueAt(slot) != 0) {
+                    keys.add(this.responseTimes.keyAt(slot));
+                    count += this.responseTimes.valueAt(slot);
+                }
+            }
+            if (count == 0) {
+                return 0;
+            }
+            Collections.sort(keys);
+            long target = (long) Math.ceil(count * percent);
+            long seen = 0;
+            for (long key : keys) {
+                seen += this.responseTimes.get(key);
+                if (seen >= target) {
+                    return key;
+                }
+            }
+            return keys.get(keys.size() - 1);
+        }
+
+        private synchronized Map<String, Object> summary() {
+            Map<String, Object> summary = new LinkedHashMap<>(16);
+            summary.put("method", this.method);
+            summary.put("name", this.name);
+            summary.put("num_requests", this.numRequests);
+            summary.put("num_failures", this.numFailures);
+            summary.put("avg_response_time", this.numRequests == 0 ? 0 : Math.round(this.totalResponseTime / this.numRequests));
+            summary.put("min_response_time", Math.round(this.minResponseTime));
+            summary.put("max_response_time", Math.round(this.maxResponseTime));
+            summary.put("avg_content_length", this.numRequests == 0 ? 0 : this.totalContentLength / this.numRequests);
+            summary.put("p50", this.percentile(0.5));
+            summary.put("p95", this.percentile(0.95));
+            summary.put("p99", this.percentile(0.99));
+            return summary;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.github.myzhan.locust4j.master;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A worker registered to the {@link Master}, it's updated by the master as messages arrive.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+public final class WorkerNode {
+
+    private final String nodeID;
+    private final byte[] identity;
+    private final int index;
+    private volatile WorkerState state = WorkerState.Ready;
+    private volatile int userCount;
+    private volatile double cpuUsage;
+    private volatile long lastHeartbeatMillis = System.currentTimeMillis();
+    /**
+     * Users sent with the last spawn message.
+     */
+    private volatile Map<String, Integer> userClassesCount = Collections.emptyMap();
+
+    WorkerNode(String nodeID, byte[] identity, int index) {
+        this.nodeID = nodeID;
+        this.identity = identity;
+        this.index = index;
+    }
+
+    public String getNodeID() {
+        return this.nodeID;
+    }
+
+    /**
+     * @return index sent to the worker with the ack message, it's unique in a master
+     */
+    public int getIndex() {
+        return this.index;
+    }
+
+    public WorkerState getState() {
+        return this.state;
+    }
+
+    /**
+     * @return number of users reported by the worker
+     */
+    public int getUserCount() {
+        return this.userCount;
+    }
+
+    public double getCpuUsage() {
+        return this.cpuUsage;
+    }
+
+    public long getLastHeartbeatMillis() {
+        return this.lastHeartbeatMillis;
+    }
+
+    public Map<String, Integer> getUserClassesCount() {
+        return this.userClassesCount;
+    }
+
+    byte[] identity() {
+        return this.identity;
+    }
+
+    void setState(WorkerState state) {
+        this.state = state;
+    }
+
+    void setUserCount(int userCount) {
+        this.userCount = userCount;
+    }
+
+    void setUserClassesCount(Map<String, Integer> userClassesCount) {
+        this.userClassesCount = userClassesCount;
+    }
+
+    void onHeartbeat(double cpuUsage) {
+        this.cpuUsage = cpuUsage;
+        this.lastHeartbeatMillis = System.currentTimeMillis();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("WorkerNode(%s, index=%d, state=%s, users=%d)", this.nodeID, this.index, this.state,
+            this.userCount);
+    }
+}
@@ -0,0 +1,34 @@
+package com.github.myzhan.locust4j.master;
+
+/**
+ * State of a worker, as seen by the master.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+public enum WorkerState {
+    /**
+     * Worker is registered and waits for users.
+     */
+    Ready,
+
+    /**
+     * Worker is spawning users.
+     */
+    Spawning,
+
+    /**
+     * Worker is done with spawning users.
+     */
+    Running,
+
+    /**
+     * Worker is stopped, it becomes ready again once it sends client_ready.
+     */
+    Stopped,
+
+    /**
+     * Worker hasn't sent a heartbeat for too long, it gets no users until it's heard from again.
+     */
+    Missing,
+}
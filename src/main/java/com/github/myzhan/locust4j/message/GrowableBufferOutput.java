@@ -0,0 +1,95 @@
+package com.github.myzhan.locust4j.message;
+
+import java.util.Arrays;
+
+import org.msgpack.core.buffer.MessageBuffer;
+import org.msgpack.core.buffer.MessageBufferOutput;
+
+/**
+ * A single array which grows by doubling, a packer writes straight into it. It's reused by calling
+ * {@link #reset()}, so packing allocates nothing once the array is big enough.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+public final class GrowableBufferOutput implements MessageBufferOutput {
+
+    private byte[] array;
+    private int position;
+
+    public GrowableBufferOutput(int capacity) {
+        this.array = new byte[capacity];
+    }
+
+    /**
+     * Forget what's written, the packer writing into this output must be flushed or reset before.
+     */
+    public void reset() {
+        this.position = 0;
+    }
+
+    public int size() {
+        return this.position;
+    }
+
+    public int capacity() {
+        return this.array.length;
+    }
+
+    /**
+     * @return the array, only the first {@link #size()} bytes are valid until the next reset
+     */
+    public byte[] array() {
+        return this.array;
+    }
+
+    /**
+     * @return a copy of what's written, which can be handed over to another thread
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(this.array, this.position);
+    }
+
+    private void ensureCapacity(int minimumSize) {
+        if (this.array.length - this.position < minimumSize) {
+            int capacity = this.array.length;
+            while (capacity - this.position < minimumSize) {
+                capacity <<= 1;
+            }
+            this.array = Arrays.copyOf(this.array, capacity);
+        }
+    }
+
+    @Override
+    public MessageBuffer next(int minimumSize) {
+        this.ensureCapacity(minimumSize);
+        return MessageBuffer.wrap(this.array, this.position, this.array.length - this.position);
+    }
+
+    @Override
+    public void writeBuffer(int length) {
+        this.position += length;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+        this.ensureCapacity(length);
+        System.arraycopy(buffer, offset, this.array, this.position, length);
+        this.position += length;
+    }
+
+    @Override
+    public void add(byte[] buffer, int offset, int length) {
+        this.write(buffer, offset, length);
+    }
+
+    @Override
+    public void flush() {
+        // nothing is buffered outside the array
+    }
+
+    @Override
+    public void close() {
+        // the array is reused
+    }
+}
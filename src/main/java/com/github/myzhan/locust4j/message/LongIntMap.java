@@ -1,17 +1,39 @@
 package com.github.myzhan.locust4j.message;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.msgpack.core.MessagePacker;
+
 /**
+ * A map of primitive long keys to int counts, used for histograms like response times and requests per second.
+ *
+ * It's an open-addressing hash table with linear probing, counts are incremented in place without boxing.
+ * A slot with a zero count is empty, so every key that is present has a positive count.
+ * {@link #clear()} keeps the backing arrays to be reused.
+ *
  * @author vrajat
  */
-public class LongIntMap {
-    protected Map<Long, Integer> internalStore;
+public class LongIntMap implements Packable {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
 
     public LongIntMap() {
-        internalStore = new HashMap<>(16);
+        this(DEFAULT_CAPACITY);
+    }
+
+    private LongIntMap(int capacity) {
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        this.mask = capacity - 1;
     }
 
     public LongIntMap(long ... vals) {
@@ -30,24 +52,168 @@ public class LongIntMap {
         }
     }
 
+    /**
+     * Create a compact copy of another map.
+     *
+     * @param other the map to copy
+     */
+    public LongIntMap(LongIntMap other) {
+        this(capacityFor(other.size));
+        merge(other);
+    }
+
+    private static int capacityFor(int size) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int hash(long k) {
+        long h = k * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int indexOf(long k) {
+        int index = hash(k) & mask;
+        while (values[index] != 0 && keys[index] != k) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    /**
+     * Get a boxed copy of this map, it's slow and only meant for tests and debugging.
+     *
+     * @return an unmodifiable copy
+     */
     public Map<Long,Integer> asMap() {
-        return Collections.unmodifiableMap(internalStore);
+        Map<Long, Integer> result = new HashMap<>(size * 2);
+        for (int slot = 0; slot < values.length; slot++) {
+            if (values[slot] != 0) {
+                result.put(keys[slot], values[slot]);
+            }
+        }
+        return Collections.unmodifiableMap(result);
     }
 
-    public Integer get(Long k) {
-        return internalStore.get(k);
+    public Integer get(long k) {
+        int count = values[indexOf(k)];
+        return count == 0 ? null : count;
     }
 
-    public void add(Long k) {
-        if (internalStore.containsKey(k)) {
-            internalStore.put(k, internalStore.get(k) + 1);
+    public void add(long k) {
+        add(k, 1);
+    }
+
+    public void add(long k, int count) {
+        if (count <= 0) {
+            return;
+        }
+        int index = indexOf(k);
+        if (values[index] == 0) {
+            keys[index] = k;
+            values[index] = count;
+            if (++size * 2 > values.length) {
+                resize(values.length << 1);
+            }
         } else {
-            internalStore.put(k, 1);
+            values[index] += count;
+        }
+    }
+
+    public void merge(LongIntMap other) {
+        for (int slot = 0; slot < other.values.length; slot++) {
+            if (other.values[slot] != 0) {
+                add(other.keys[slot], other.values[slot]);
+            }
         }
     }
 
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        for (int slot = 0; slot < oldValues.length; slot++) {
+            if (oldValues[slot] != 0) {
+                int index = indexOf(oldKeys[slot]);
+                keys[index] = oldKeys[slot];
+                values[index] = oldValues[slot];
+            }
+        }
+    }
+
+    /**
+     * Remove all the keys but keep the backing arrays.
+     */
+    public void clear() {
+        if (size > 0) {
+            Arrays.fill(values, 0);
+            size = 0;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Number of slots, iterate slots with {@link #keyAt(int)} and {@link #valueAt(int)} to avoid boxing.
+     *
+     * @return number of slots
+     */
+    public int capacity() {
+        return values.length;
+    }
+
+    /**
+     * @param slot index of the slot
+     * @return the key in this slot, only meaningful if {@link #valueAt(int)} isn't zero
+     */
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * @param slot index of the slot
+     * @return the count in this slot, zero if the slot is empty
+     */
+    public int valueAt(int slot) {
+        return values[slot];
+    }
+
     @Override
     public String toString() {
-        return this.internalStore.toString();
+        StringBuilder sb = new StringBuilder("{");
+        for (int slot = 0; slot < values.length; slot++) {
+            if (values[slot] != 0) {
+                if (sb.length() > 1) {
+                    sb.append(", ");
+                }
+                sb.append(keys[slot]).append('=').append(values[slot]);
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Pack as a msgpack map, straight from the slots.
+     */
+    @Override
+    public void pack(MessagePacker packer) throws IOException {
+        packer.packMapHeader(this.size);
+        for (int slot = 0; slot < this.keys.length; slot++) {
+            if (this.values[slot] != 0) {
+                packer.packLong(this.keys[slot]);
+                packer.packInt(this.values[slot]);
+            }
+        }
     }
 }
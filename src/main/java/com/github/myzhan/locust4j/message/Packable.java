@@ -0,0 +1,22 @@
+package com.github.myzhan.locust4j.message;
+
+import java.io.IOException;
+
+import org.msgpack.core.MessagePacker;
+
+/**
+ * A value of a message which writes itself into the packer, without being turned into maps and lists first.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+public interface Packable {
+
+    /**
+     * Write this value as exactly one msgpack value.
+     *
+     * @param packer where to write
+     * @throws IOException if it can't be written
+     */
+    void pack(MessagePacker packer) throws IOException;
+}
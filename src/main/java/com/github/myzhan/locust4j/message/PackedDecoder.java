@@ -0,0 +1,72 @@
+package com.github.myzhan.locust4j.message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.msgpack.core.MessageFormat;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.value.ValueType;
+
+/**
+ * Decodes packed values back into the types they are built from, integers become longs like the counters of
+ * {@link com.github.myzhan.locust4j.stats.StatsEntry}, and maps keyed by integers become {@link LongIntMap}.
+ *
+ * @author myzhan
+ */
+final class PackedDecoder {
+
+    private PackedDecoder() {
+        // cannot instantiate
+    }
+
+    static Object decode(byte[] bytes) {
+        try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(bytes)) {
+            return decode(unpacker);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Failed to decode a packed value", ex);
+        }
+    }
+
+    private static Object decode(MessageUnpacker unpacker) throws IOException {
+        MessageFormat format = unpacker.getNextFormat();
+        return switch (format.getValueType()) {
+            case NIL -> {
+                unpacker.unpackNil();
+                yield Null.TYPE;
+            }
+            case BOOLEAN -> unpacker.unpackBoolean();
+            case INTEGER -> unpacker.unpackLong();
+            case FLOAT -> unpacker.unpackDouble();
+            case STRING -> unpacker.unpackString();
+            case ARRAY -> {
+                int size = unpacker.unpackArrayHeader();
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(decode(unpacker));
+                }
+                yield list;
+            }
+            case MAP -> {
+                int size = unpacker.unpackMapHeader();
+                if (size > 0 && unpacker.getNextFormat().getValueType() == ValueType.INTEGER) {
+                    LongIntMap counts = new LongIntMap();
+                    for (int i = 0; i < size; i++) {
+                        counts.add(unpacker.unpackLong(), unpacker.unpackInt());
+                    }
+                    yield counts;
+                }
+                Map<String, Object> map = new HashMap<>(size * 2);
+                for (int i = 0; i < size; i++) {
+                    String key = unpacker.unpackString();
+                    map.put(key, decode(unpacker));
+                }
+                yield map;
+            }
+            default -> throw new IOException("Unsupported packed type: " + format.getValueType());
+        };
+    }
+}
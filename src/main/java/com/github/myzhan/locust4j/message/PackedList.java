@@ -0,0 +1,51 @@
+package com.github.myzhan.locust4j.message;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.List;
+
+import org.msgpack.core.MessagePacker;
+
+/**
+ * A list which is already packed, it's written into messages as is. Reading its elements decodes it once,
+ * which is only meant for listeners and tests.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+public final class PackedList extends AbstractList<Object> implements Packable {
+
+    private final byte[] bytes;
+    private final int size;
+    private volatile List<Object> decoded;
+
+    /**
+     * @param bytes a packed msgpack array
+     * @param size  number of elements of the array
+     */
+    public PackedList(byte[] bytes, int size) {
+        this.bytes = bytes;
+        this.size = size;
+    }
+
+    @Override
+    public void pack(MessagePacker packer) throws IOException {
+        packer.writePayload(this.bytes);
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object get(int index) {
+        List<Object> list = this.decoded;
+        if (null == list) {
+            list = (List<Object>) PackedDecoder.decode(this.bytes);
+            this.decoded = list;
+        }
+        return list.get(index);
+    }
+}
@@ -0,0 +1,67 @@
+package com.github.myzhan.locust4j.message;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import org.msgpack.core.MessagePacker;
+
+/**
+ * A map which is already packed, it's written into messages as is. Reading its entries decodes it once,
+ * which is only meant for listeners and tests.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+public final class PackedMap extends AbstractMap<String, Object> implements Packable {
+
+    private final byte[] bytes;
+    private final int size;
+    private volatile Map<String, Object> decoded;
+
+    /**
+     * @param bytes a packed msgpack map keyed by strings
+     * @param size  number of entries of the map
+     */
+    public PackedMap(byte[] bytes, int size) {
+        this.bytes = bytes;
+        this.size = size;
+    }
+
+    @Override
+    public void pack(MessagePacker packer) throws IOException {
+        packer.writePayload(this.bytes);
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public Object get(Object key) {
+        return this.decoded().get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return this.decoded().containsKey(key);
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return this.decoded().entrySet();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> decoded() {
+        Map<String, Object> map = this.decoded;
+        if (null == map) {
+            map = Collections.unmodifiableMap((Map<String, Object>) PackedDecoder.decode(this.bytes));
+            this.decoded = map;
+        }
+        return map;
+    }
+}
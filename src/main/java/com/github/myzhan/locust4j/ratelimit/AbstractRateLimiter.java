@@ -1,11 +1,54 @@
 package com.github.myzhan.locust4j.ratelimit;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * @author myzhan
  * @since 1.0.3
  */
 public abstract class AbstractRateLimiter {
 
+    /**
+     * Intended start time, missed permits and the span they were missed over, of the permit last acquired by a thread.
+     */
+    private final ThreadLocal<long[]> intendedStart = ThreadLocal.withInitial(() -> new long[3]);
+    /**
+     * When the current period began, 0 while the rate limiter isn't started.
+     */
+    private volatile long periodStartNanos;
+    private volatile long periodNanos;
+    private volatile long periodPermits;
+    private volatile boolean takenSinceStart;
+    private volatile boolean takenInPeriod;
+    /**
+     * Permits whose requests haven't completed, and whether a user waited for a permit in the current period. A
+     * period in which no permit was taken is only missed if a user was blocked in it, not while users are idle.
+     */
+    private final AtomicLong inFlight = new AtomicLong();
+    private volatile boolean waitedInPeriod;
+    /**
+     * Permits of the periods in which none was taken, and when the first of them began. They are handed to the
+     * first permit taken afterwards.
+     */
+    private final AtomicReference<long[]> missed = new AtomicReference<>();
+    /**
+     * Threads out of permits wait on a lock instead of a monitor, so virtual threads unmount while they wait.
+     */
+    private final ReentrantLock refillLock = new ReentrantLock();
+    private final Condition refilled = refillLock.newCondition();
+    private volatile long refills;
+    /**
+     * Async users out of permits, completed by the next refill.
+     */
+    private List<CompletableFuture<Boolean>> refillWaiters = new ArrayList<>();
+
     /**
      * rate limiter only works after started.
      */
@@ -18,6 +61,17 @@ public abstract class AbstractRateLimiter {
      */
     public abstract boolean acquire();
 
+    /**
+     * Acquire a permit from rate limiter without blocking the calling thread, for async users on an event loop.
+     * By default, it calls {@link #acquire()} and blocks.
+     *
+     * @return completes with blocked, like {@link #acquire()}, when a permit is taken or the bucket is refilled
+     * @since 2.3.0
+     */
+    public CompletionStage<Boolean> acquireAsync() {
+        return CompletableFuture.completedFuture(acquire());
+    }
+
     /**
      * Stop the rate limiter.
      */
@@ -30,4 +84,199 @@ public abstract class AbstractRateLimiter {
      */
     public abstract boolean isStopped();
 
+    /**
+     * Get the intended start time of the permit last acquired by the calling thread, as if the permits of a period
+     * were handed out evenly over it. When the system under test stalls, threads acquire permits later than intended,
+     * and measuring from the intended start time corrects coordinated omission.
+     *
+     * @return intended start time in {@link System#nanoTime()}, or 0 if the rate limiter doesn't track it
+     * @since 2.3.0
+     */
+    public long getIntendedStartNanos() {
+        return intendedStart.get()[0];
+    }
+
+    /**
+     * Get the number of permits missed before the permit last acquired by the calling thread. When the system under
+     * test stalls for whole periods, requests stay in flight and no permit is taken in them, so they are only
+     * accounted to the first permit taken afterwards.
+     *
+     * @return number of permits of the periods in which none was taken, usually 0
+     * @since 2.3.0
+     */
+    public long getMissedPermits() {
+        return intendedStart.get()[1];
+    }
+
+    /**
+     * @return how long before the intended start time the missed permits were intended to start
+     * @see #getMissedPermits()
+     * @since 2.3.0
+     */
+    public long getMissedSpanNanos() {
+        return intendedStart.get()[2];
+    }
+
+    /**
+     * Tell the rate limiter the request of a permit acquired before completed, so periods in which users are idle
+     * aren't counted as missed.
+     *
+     * @since 2.3.0
+     */
+    public void release() {
+        inFlight.updateAndGet(permits -> permits > 0 ? permits - 1 : 0);
+    }
+
+    /**
+     * Begin the first period, call it when the rate limiter starts, before any permit is handed out.
+     *
+     * @param periodNanos length of a period
+     * @param permits     number of permits in the first period
+     * @since 2.3.0
+     */
+    protected void beginPeriods(long periodNanos, long permits) {
+        missed.set(null);
+        takenSinceStart = false;
+        takenInPeriod = false;
+        waitedInPeriod = false;
+        this.periodNanos = periodNanos;
+        periodPermits = permits;
+        periodStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Begin the next period, call it when the bucket is refilled. If no permit was taken in the last period while a
+     * request was in flight or a user waited for a permit, its permits are missed.
+     *
+     * @param permits number of permits in the next period
+     * @since 2.3.0
+     */
+    protected void nextPeriod(long permits) {
+        long lastStart = periodStartNanos;
+        long lastPermits = periodPermits;
+        boolean blocked = inFlight.get() > 0 || waitedInPeriod;
+        if (lastStart != 0 && takenSinceStart && !takenInPeriod && blocked && lastPermits > 0) {
+            missed.accumulateAndGet(new long[]{lastPermits, lastStart},
+                (pending, last) -> null == pending ? last : new long[]{pending[0] + last[0], pending[1]});
+        }
+        takenInPeriod = false;
+        waitedInPeriod = false;
+        periodPermits = permits;
+        periodStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Stop the periods, permits handed out until the next start have no intended start time.
+     *
+     * @since 2.3.0
+     */
+    protected void endPeriods() {
+        periodStartNanos = 0;
+    }
+
+    /**
+     * Remember the intended start time of a permit acquired by the calling thread, as if the permits of the current
+     * period were handed out evenly over it. The permit is in flight until {@link #release()} is called.
+     *
+     * @param permitsLeft number of permits left after this one was acquired
+     */
+    protected void markIntendedStart(long permitsLeft) {
+        inFlight.incrementAndGet();
+        long[] intended = intendedStart.get();
+        long start = periodStartNanos;
+        if (start == 0) {
+            // no period has begun, the permit wasn't intended to start at any time
+            intended[0] = 0;
+            intended[1] = 0;
+            intended[2] = 0;
+            return;
+        }
+        if (!takenSinceStart) {
+            takenSinceStart = true;
+        }
+        if (!takenInPeriod) {
+            takenInPeriod = true;
+        }
+        long permits = periodPermits;
+        long index = Math.max(0, permits - 1 - permitsLeft);
+        long offset = permits <= 0 ? 0 : (long) (periodNanos * ((double) index / permits));
+        intended[0] = start + offset;
+        long[] missedPermits = null == missed.get() ? null : missed.getAndSet(null);
+        intended[1] = null == missedPermits ? 0 : missedPermits[0];
+        intended[2] = null == missedPermits ? 0 : intended[0] - missedPermits[1];
+    }
+
+    /**
+     * Refill the bucket and wake up the threads waiting for permits.
+     *
+     * @param refill updates the bucket, it runs with the lock held
+     * @since 2.3.0
+     */
+    protected void refill(Runnable refill) {
+        List<CompletableFuture<Boolean>> waiters;
+        refillLock.lock();
+        try {
+            refill.run();
+            refills++;
+            refilled.signalAll();
+            waiters = refillWaiters;
+            refillWaiters = new ArrayList<>();
+        } finally {
+            refillLock.unlock();
+        }
+        // complete outside the lock, callbacks of async users may run here
+        for (CompletableFuture<Boolean> waiter : waiters) {
+            waiter.complete(true);
+        }
+    }
+
+    /**
+     * @return number of refills so far, read it before taking a permit and pass it to {@link #awaitRefill(long)}
+     * @since 2.3.0
+     */
+    protected long getRefills() {
+        return refills;
+    }
+
+    /**
+     * Wait until the bucket is refilled after the given refill.
+     *
+     * @param seen number of refills seen before taking a permit, so a refill in between isn't missed
+     * @throws InterruptedException if interrupted while waiting
+     * @since 2.3.0
+     */
+    protected void awaitRefill(long seen) throws InterruptedException {
+        waitedInPeriod = true;
+        refillLock.lock();
+        try {
+            while (refills == seen) {
+                refilled.await();
+            }
+        } finally {
+            refillLock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #awaitRefill(long)}, but returns at once.
+     *
+     * @param seen number of refills seen before taking a permit
+     * @return completes with true when the bucket is refilled after the given refill
+     * @since 2.3.0
+     */
+    protected CompletableFuture<Boolean> onRefill(long seen) {
+        refillLock.lock();
+        try {
+            if (refills != seen) {
+                return CompletableFuture.completedFuture(true);
+            }
+            waitedInPeriod = true;
+            CompletableFuture<Boolean> waiter = new CompletableFuture<>();
+            refillWaiters.add(waiter);
+            return waiter;
+        } finally {
+            refillLock.unlock();
+        }
+    }
+
 }
@@ -1,13 +1,14 @@
 package com.github.myzhan.locust4j.ratelimit;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import com.github.myzhan.locust4j.jfr.RateLimiterWaitEvent;
 
 /**
  * A {@link RampUpRateLimiter} distributes permits at a ramp-up rate, in steps.
@@ -18,8 +19,6 @@ import org.slf4j.LoggerFactory;
  */
 public class RampUpRateLimiter extends AbstractRateLimiter {
 
-    private static final Logger logger = LoggerFactory.getLogger(RampUpRateLimiter.class);
-
     private final long maxThreshold;
     private final AtomicLong nextThreshold;
     private final AtomicLong threshold;
@@ -33,7 +32,6 @@ public class RampUpRateLimiter extends AbstractRateLimiter {
 
     private ScheduledExecutorService bucketUpdater;
     private ScheduledExecutorService thresholdUpdater;
-    private final Object lock = new Object();
     private final AtomicBoolean stopped;
 
     /**
@@ -84,6 +82,7 @@ public class RampUpRateLimiter extends AbstractRateLimiter {
             }
         }, 0, rampUpPeriod, rampUpTimeUnit);
 
+        beginPeriods(refillUnit.toNanos(refillPeriod), threshold.get());
         bucketUpdater = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
             @Override
             public Thread newThread(Runnable r) {
@@ -95,10 +94,11 @@ public class RampUpRateLimiter extends AbstractRateLimiter {
         bucketUpdater.scheduleAtFixedRate(new Runnable() {
             @Override
             public void run() {
-                synchronized (lock) {
-                    threshold.set(nextThreshold.get());
-                    lock.notifyAll();
-                }
+                refill(() -> {
+                    long permits = nextThreshold.get();
+                    nextPeriod(permits);
+                    threshold.set(permits);
+                });
             }
         }, 0, refillPeriod, refillUnit);
 
@@ -107,24 +107,39 @@ public class RampUpRateLimiter extends AbstractRateLimiter {
 
     @Override
     public boolean acquire() {
+        long refills = getRefills();
         long permit = this.threshold.decrementAndGet();
         if (permit < 0) {
-            synchronized (lock) {
-                try {
-                    lock.wait();
-                } catch (InterruptedException ex) {
-                    logger.error("The process of acquiring a permit from rate limiter was interrupted", ex);
-                }
+            RateLimiterWaitEvent event = RateLimiterWaitEvent.start(getClass().getSimpleName());
+            try {
+                awaitRefill(refills);
+            } catch (InterruptedException ex) {
+                // the user is stopped, let the task loop see it
+                Thread.currentThread().interrupt();
             }
+            RateLimiterWaitEvent.finish(event);
             return true;
         }
+        markIntendedStart(permit);
         return false;
     }
 
+    @Override
+    public CompletionStage<Boolean> acquireAsync() {
+        long refills = getRefills();
+        long permit = this.threshold.decrementAndGet();
+        if (permit < 0) {
+            return onRefill(refills);
+        }
+        markIntendedStart(permit);
+        return CompletableFuture.completedFuture(false);
+    }
+
     @Override
     public void stop() {
         bucketUpdater.shutdownNow();
         thresholdUpdater.shutdownNow();
+        endPeriods();
         stopped.set(true);
     }
 
@@ -1,5 +1,7 @@
 package com.github.myzhan.locust4j.ratelimit;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
@@ -7,8 +9,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import com.github.myzhan.locust4j.jfr.RateLimiterWaitEvent;
 
 /**
  * A {@link StableRateLimiter} distributes permits at a configurable rate.
@@ -19,8 +20,6 @@ import org.slf4j.LoggerFactory;
  */
 public class StableRateLimiter extends AbstractRateLimiter implements Runnable {
 
-    private static final Logger logger = LoggerFactory.getLogger(StableRateLimiter.class);
-
     private final long maxThreshold;
     private final AtomicLong threshold;
     private final long period;
@@ -50,6 +49,7 @@ public class StableRateLimiter extends AbstractRateLimiter implements Runnable {
                 return thread;
             }
         });
+        beginPeriods(unit.toNanos(period), maxThreshold);
         updateTimer.scheduleAtFixedRate(this, 0, period, unit);
         stopped.set(false);
     }
@@ -57,31 +57,46 @@ public class StableRateLimiter extends AbstractRateLimiter implements Runnable {
     @Override
     public void run() {
         // NOTICE: this method is invoked in a thread pool, make sure it throws no exceptions.
-        synchronized (this) {
+        refill(() -> {
+            nextPeriod(maxThreshold);
             this.threshold.set(maxThreshold);
-            this.notifyAll();
-        }
+        });
     }
 
     @Override
     public boolean acquire() {
+        long refills = getRefills();
         long permit = this.threshold.decrementAndGet();
         if (permit < 0) {
-            synchronized (this) {
-                try {
-                    this.wait();
-                } catch (InterruptedException ex) {
-                    logger.error("The process of acquiring a permit from rate limiter was interrupted", ex);
-                }
+            RateLimiterWaitEvent event = RateLimiterWaitEvent.start(getClass().getSimpleName());
+            try {
+                awaitRefill(refills);
+            } catch (InterruptedException ex) {
+                // the user is stopped, let the task loop see it
+                Thread.currentThread().interrupt();
             }
+            RateLimiterWaitEvent.finish(event);
             return true;
         }
+        markIntendedStart(permit);
         return false;
     }
 
+    @Override
+    public CompletionStage<Boolean> acquireAsync() {
+        long refills = getRefills();
+        long permit = this.threshold.decrementAndGet();
+        if (permit < 0) {
+            return onRefill(refills);
+        }
+        markIntendedStart(permit);
+        return CompletableFuture.completedFuture(false);
+    }
+
     @Override
     public void stop() {
         updateTimer.shutdownNow();
+        endPeriods();
         stopped.set(true);
     }
 
@@ -33,6 +33,23 @@ public interface Client {
         send(msg);
     }
 
+    /**
+     * Connect to the master again, when it may have restarted. Messages which aren't sent yet may be dropped.
+     *
+     * @since 2.3.0
+     */
+    default void reconnect() {
+        // nothing to reconnect by default
+    }
+
+    /**
+     * @return number of messages which are queued but not sent yet
+     * @since 2.3.0
+     */
+    default int backlog() {
+        return 0;
+    }
+
     /**
      * close client
      */
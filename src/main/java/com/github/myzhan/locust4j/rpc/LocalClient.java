@@ -0,0 +1,323 @@
+package com.github.myzhan.locust4j.rpc;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.github.myzhan.locust4j.message.LongIntMap;
+import com.github.myzhan.locust4j.message.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link LocalClient} plays the master in the same process, for running without a locust master.
+ *
+ * It acknowledges the runner, asks it to spawn every user at once, which the runner paces at the spawn rate, stops
+ * the runner when the duration is over after spawning completes, and aggregates the stats reported by the runner into a summary, which is logged every report interval.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+public class LocalClient implements Client {
+
+    private static final Logger logger = LoggerFactory.getLogger(LocalClient.class);
+
+    private static final String USER_CLASS = "standalone";
+
+    private final int users;
+    private final double spawnRate;
+    private final Duration duration;
+
+    private final BlockingQueue<Message> toRunner = new LinkedBlockingQueue<>();
+    private final CountDownLatch spawned = new CountDownLatch(1);
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private final Entry total = new Entry("Aggregated", "");
+    private final Map<String, Map<String, Object>> errors = new LinkedHashMap<>();
+    private volatile boolean started;
+    private volatile boolean closed;
+    private long lastReportNanos;
+    private long numReports;
+
+    /**
+     * @param users     number of users to spawn
+     * @param spawnRate number of users to spawn per second
+     * @param duration  how long to run after spawning completes
+     */
+    public LocalClient(int users, double spawnRate, Duration duration) {
+        if (users < 0 || spawnRate <= 0) {
+            throw new IllegalArgumentException("users must not be negative and spawn rate must be positive");
+        }
+        this.users = users;
+        this.spawnRate = spawnRate;
+        this.duration = duration;
+    }
+
+    @Override
+    public Message recv() throws IOException {
+        try {
+            return this.toRunner.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while receiving a local message", ex);
+        }
+    }
+
+    @Override
+    public void send(Message message) throws IOException {
+        if (this.closed) {
+            throw new IOException("Local client is closed");
+        }
+        switch (message.type()) {
+            case "client_ready" -> {
+                this.toRunner.offer(Message.create(s -> s.type("ack").putData("index", 0)));
+                if (!this.started) {
+                    this.started = true;
+                    Thread master = new Thread(this::drive);
+                    master.setName("locust4j-standalone-master");
+                    master.setDaemon(true);
+                    master.start();
+                }
+            }
+            case "spawning_complete" -> this.spawned.countDown();
+            case "stats" -> this.onStats(message.data());
+            case "client_stopped" -> this.stopped.countDown();
+            default -> {
+                // heartbeats and spawning need no reply
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        this.spawned.countDown();
+        this.stopped.countDown();
+    }
+
+    /**
+     * Wait until the runner is stopped after the duration.
+     *
+     * @param timeout max time to wait
+     * @return true if the runner is stopped
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitStopped(Duration timeout) throws InterruptedException {
+        return this.stopped.await(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void drive() {
+        try {
+            // the runner paces spawning, the duration starts once it's complete
+            this.spawn(this.users);
+            this.spawned.await();
+            TimeUnit.NANOSECONDS.sleep(this.duration.toNanos());
+            this.awaitNextReport();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        this.toRunner.offer(Message.create(s -> s.type("stop")));
+    }
+
+    /**
+     * Wait for one more report, the runner doesn't report stats once it's stopped.
+     */
+    private synchronized void awaitNextReport() throws InterruptedException {
+        long seen = this.numReports;
+        long deadline = System.currentTimeMillis() + 5000;
+        long remaining;
+        while (this.numReports == seen && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            this.wait(remaining);
+        }
+    }
+
+    private void spawn(int count) {
+        logger.info("Spawning {} users at {} users per second", count, this.spawnRate);
+        Map<String, Object> userClassesCount = new LinkedHashMap<>(2);
+        userClassesCount.put(USER_CLASS, count);
+        this.toRunner.offer(Message.create(s -> s
+            .type("spawn")
+            .putData("user_classes_count", userClassesCount)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized void onStats(Map<String, Object> data) {
+        long now = System.nanoTime();
+        double seconds = this.lastReportNanos == 0 ? 3 : (now - this.lastReportNanos) / 1e9;
+        this.lastReportNanos = now;
+
+        Object stats = data.get("stats");
+        if (stats instanceof List) {
+            for (Map<String, Object> report : (List<Map<String, Object>>) stats) {
+                String name = String.valueOf(report.get("name"));
+                String method = String.valueOf(report.get("method"));
+                this.entries.computeIfAbsent(method + " " + name, k -> new Entry(name, method)).add(report);
+            }
+        }
+        Object statsTotal = data.get("stats_total");
+        long intervalRequests = 0;
+        if (statsTotal instanceof Map) {
+            Map<String, Object> report = (Map<String, Object>) statsTotal;
+            intervalRequests = toLong(report.get("num_requests"));
+            this.total.add(report);
+        }
+        Object errorReport = data.get("errors");
+        if (errorReport instanceof Map) {
+            for (Map.Entry<String, Map<String, Object>> error : ((Map<String, Map<String, Object>>) errorReport).entrySet()) {
+                this.errors.merge(error.getKey(), new LinkedHashMap<>(error.getValue()), (existing, added) -> {
+                    existing.put("occurrences", toLong(existing.get("occurrences")) + toLong(added.get("occurrences")));
+                    return existing;
+                });
+            }
+        }
+        logger.info("{} users, {} requests, {} failures, {} req/s, avg {}ms, p50 {}ms, p95 {}ms, max {}ms",
+            data.get("user_count"), this.total.numRequests, this.total.numFailures,
+            Math.round(intervalRequests / seconds), this.total.average(), this.total.percentile(0.5),
+            this.total.percentile(0.95), this.total.maxResponseTime);
+        this.numReports++;
+        this.notifyAll();
+    }
+
+    /**
+     * @return summary of every request, followed by the aggregated summary
+     */
+    public synchronized List<Map<String, Object>> getSummary() {
+        List<Map<String, Object>> summary = new ArrayList<>(this.entries.size() + 1);
+        for (Entry entry : this.entries.values()) {
+            summary.add(entry.summary());
+        }
+        summary.add(this.total.summary());
+        return summary;
+    }
+
+    public synchronized Map<String, Map<String, Object>> getErrors() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(this.errors));
+    }
+
+    /**
+     * Write the summary as CSV, in the columns of the stats file of locust.
+     *
+     * @param writer where to write, it's flushed but not closed
+     */
+    public synchronized void writeCsv(Writer writer) {
+        PrintWriter out = new PrintWriter(writer);
+        out.println("Type,Name,Request Count,Failure Count,Median Response Time,Average Response Time,"
+            + "Min Response Time,Max Response Time,Average Content Size,95%,99%");
+        for (Map<String, Object> row : this.getSummary()) {
+            out.printf("%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s%n", row.get("method"), row.get("name"),
+                row.get("num_requests"), row.get("num_failures"), row.get("p50"), row.get("avg_response_time"),
+                row.get("min_response_time"), row.get("max_response_time"), row.get("avg_content_length"),
+                row.get("p95"), row.get("p99"));
+        }
+        out.flush();
+    }
+
+    /**
+     * Log the summary, one line per request.
+     */
+    public void logSummary() {
+        for (Map<String, Object> row : this.getSummary()) {
+            logger.info("{}", row);
+        }
+        for (Map<String, Object> error : this.getErrors().values()) {
+            logger.info("Error {}", error);
+        }
+    }
+
+    private static long toLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static class Entry {
+        private final String name;
+        private final String method;
+        private long numRequests;
+        private long numFailures;
+        private long totalResponseTime;
+        private long minResponseTime;
+        private long maxResponseTime;
+        private long totalContentLength;
+        private final LongIntMap responseTimes = new LongIntMap();
+
+        private Entry(String name, String method) {
+            this.name = name;
+            this.method = method;
+        }
+
+        private void add(Map<String, Object> report) {
+            long requests = toLong(report.get("num_requests"));
+            if (requests > 0) {
+                long min = toLong(report.get("min_response_time"));
+                if (this.numRequests == 0 || min < this.minResponseTime) {
+                    this.minResponseTime = min;
+                }
+                this.maxResponseTime = Math.max(this.maxResponseTime, toLong(report.get("max_response_time")));
+            }
+            this.numRequests += requests;
+            this.numFailures += toLong(report.get("num_failures"));
+            this.totalResponseTime += toLong(report.get("total_response_time"));
+            this.totalContentLength += toLong(report.get("total_content_length"));
+            Object responseTimes = report.get("response_times");
+            if (responseTimes instanceof LongIntMap) {
+                this.responseTimes.merge((LongIntMap) responseTimes);
+            }
+        }
+
+        private long average() {
+            return this.numRequests == 0 ? 0 : this.totalResponseTime / this.numRequests;
+        }
+
+        /**
+         * Percentile of the rounded response times, like locust calculates it.
+         */
+        private long percentile(double percent) {
+            long count = 0;
+            List<Long> keys = new ArrayList<>(this.responseTimes.size());
+            for (int slot = 0; slot < this.responseTimes.capacity(); slot++) {
+                if (this.responseTimes.valueAt(slot) != 0) {
+                    keys.add(this.responseTimes.keyAt(slot));
+                    count += this.responseTimes.valueAt(slot);
+                }
+            }
+            if (count == 0) {
+                return 0;
+            }
+            Collections.sort(keys);
+            long target = (long) Math.ceil(count * percent);
+            long seen = 0;
+            for (long key : keys) {
+                seen += this.responseTimes.get(key);
+                if (seen >= target) {
+                    return key;
+                }
+            }
+            return keys.get(keys.size() - 1);
+        }
+
+        private Map<String, Object> summary() {
+            Map<String, Object> summary = new LinkedHashMap<>(16);
+            summary.put("method", this.method);
+            summary.put("name", this.name);
+            summary.put("num_requests", this.numRequests);
+            summary.put("num_failures", this.numFailures);
+            summary.put("avg_response_time", this.average());
+            summary.put("min_response_time", this.minResponseTime);
+            summary.put("max_response_time", this.maxResponseTime);
+            summary.put("avg_content_length", this.numRequests == 0 ? 0 : this.totalContentLength / this.numRequests);
+            summary.put("p50", this.percentile(0.5));
+            summary.put("p95", this.percentile(0.95));
+            summary.put("p99", this.percentile(0.99));
+            return summary;
+        }
+    }
+}
@@ -3,7 +3,9 @@ package com.github.myzhan.locust4j.rpc;
 import com.github.myzhan.locust4j.message.LongIntMap;
 import com.github.myzhan.locust4j.message.Message;
 import com.github.myzhan.locust4j.message.Null;
+import com.github.myzhan.locust4j.message.Packable;
 import org.msgpack.core.*;
+import org.msgpack.value.ValueType;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -11,7 +13,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-abstract class MessageDeser {
+public abstract class MessageDeser {
 
     private static final String TYPE_CLIENT_READY = "client_ready";
 
@@ -23,16 +25,17 @@ abstract class MessageDeser {
         return deserialise(serialise(message));
     }
 
-    static Message deserialise(byte[] bytes) {
+    public static Message deserialise(byte[] bytes) {
         try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(bytes)) {
             var builder = Message.builder();
             int arrayHeader = unpacker.unpackArrayHeader();
             builder.type(unpacker.unpackString());
-            // unpack data
-            if (unpacker.getNextFormat() != MessageFormat.NIL) {
+            // unpack data, client_ready carries the version of the worker instead
+            MessageFormat dataFormat = unpacker.getNextFormat();
+            if (dataFormat.getValueType() == ValueType.MAP) {
                 builder.data(unpackMap(unpacker));
             } else {
-                unpacker.unpackNil();
+                unpacker.skipValue();
             }
             if (unpacker.getNextFormat() != MessageFormat.NIL) {
                 builder.nodeId(unpacker.unpackString());
@@ -46,11 +49,17 @@ abstract class MessageDeser {
     }
 
     public static byte[] serialise(Message message) throws IOException {
+        try (MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+            pack(packer, message);
+            return packer.toByteArray();
+        }
+    }
+
+    static void pack(MessagePacker packer, Message message) throws IOException {
 
         final var type = message.type();
         final var version = message.version();
 
-        MessageBufferPacker packer = MessagePack.newDefaultBufferPacker();
         // a message contains three fields, (type & data & nodeID)
         packer.packArrayHeader(3);
 
@@ -79,9 +88,6 @@ abstract class MessageDeser {
 
         // pack the third field
         packer.packString(message.nodeId().get());
-        byte[] bytes = packer.toByteArray();
-        packer.close();
-        return bytes;
     }
 
     @SuppressWarnings("unchecked")
@@ -94,6 +100,7 @@ abstract class MessageDeser {
             case Boolean b              -> packer.packBoolean(b);
             case Float v                -> packer.packFloat(v);
             case Double v               -> packer.packDouble(v);
+            case Packable p             -> p.pack(packer);
             case Map<?,?> m -> {
                 var map = (Map<String,Object>)m;
                 packer.packMapHeader(map.size());
@@ -109,14 +116,6 @@ abstract class MessageDeser {
                     visit(packer, object);
                 }
             }
-            case LongIntMap longIntMap  -> {
-                var map = longIntMap.asMap();
-                packer.packMapHeader(map.size());
-                for (Map.Entry<Long, Integer> entry : map.entrySet()) {
-                    packer.packLong(entry.getKey());
-                    packer.packInt(entry.getValue());
-                }
-            }
             default ->
                 throw new IOException("Cannot pack type unknown type:" + value.getClass().getSimpleName());
         }
@@ -124,7 +123,10 @@ abstract class MessageDeser {
     }
 
     private static Map<String, Object> unpackMap(MessageUnpacker unpacker) throws IOException {
-        int mapSize = unpacker.unpackMapHeader();
+        return unpackMap(unpacker, unpacker.unpackMapHeader());
+    }
+
+    private static Map<String, Object> unpackMap(MessageUnpacker unpacker, int mapSize) throws IOException {
         Map<String, Object> result = new HashMap<>(6);
         while (mapSize > 0) {
             String key = null;
@@ -135,29 +137,7 @@ abstract class MessageDeser {
                 key = unpacker.unpackString();
             }
             // unpack value
-            MessageFormat messageFormat = unpacker.getNextFormat();
-            Object value =
-
-                switch (messageFormat.getValueType()) {
-                    case BOOLEAN -> unpacker.unpackBoolean();
-                    case FLOAT   -> unpacker.unpackFloat();
-                    case INTEGER -> unpacker.unpackInt();
-                    case STRING  -> unpacker.unpackString();
-                    case MAP     -> unpackMap(unpacker);
-                    case NIL     -> {
-                        unpacker.unpackNil();
-                        yield Null.TYPE;
-                    }
-                    case ARRAY -> {
-                        int size = unpacker.unpackArrayHeader();
-                        var val = new ArrayList<>(size);
-                        for (int index = 0; index < size; ++index) {
-                            val.add(unpacker.unpackString());
-                        }
-                        yield val;
-                    }
-                    default -> throw new IOException("Message received unsupported type: " + messageFormat.getValueType());
-                };
+            Object value = unpackValue(unpacker);
             if (null != key) {
                 result.put(key, value);
             }
@@ -166,4 +146,45 @@ abstract class MessageDeser {
         return result;
     }
 
+    /**
+     * Integers which fit are unpacked as Integer, like the master sends them. Maps with integer keys, which are the
+     * response times of stats sent by workers, are unpacked as {@link LongIntMap}.
+     */
+    private static Object unpackValue(MessageUnpacker unpacker) throws IOException {
+        MessageFormat messageFormat = unpacker.getNextFormat();
+        return switch (messageFormat.getValueType()) {
+            case BOOLEAN -> unpacker.unpackBoolean();
+            case FLOAT   -> unpacker.unpackFloat();
+            case INTEGER -> {
+                long value = unpacker.unpackLong();
+                yield value == (int) value ? (Object) (int) value : (Object) value;
+            }
+            case STRING  -> unpacker.unpackString();
+            case MAP     -> {
+                int size = unpacker.unpackMapHeader();
+                if (size > 0 && unpacker.getNextFormat().getValueType() == ValueType.INTEGER) {
+                    LongIntMap counts = new LongIntMap();
+                    for (int index = 0; index < size; ++index) {
+                        counts.add(unpacker.unpackLong(), unpacker.unpackInt());
+                    }
+                    yield counts;
+                }
+                yield unpackMap(unpacker, size);
+            }
+            case NIL     -> {
+                unpacker.unpackNil();
+                yield Null.TYPE;
+            }
+            case ARRAY -> {
+                int size = unpacker.unpackArrayHeader();
+                var val = new ArrayList<>(size);
+                for (int index = 0; index < size; ++index) {
+                    val.add(unpackValue(unpacker));
+                }
+                yield val;
+            }
+            default -> throw new IOException("Message received unsupported type: " + messageFormat.getValueType());
+        };
+    }
+
 }
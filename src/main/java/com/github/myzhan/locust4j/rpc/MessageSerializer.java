@@ -0,0 +1,64 @@
+package com.github.myzhan.locust4j.rpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.github.myzhan.locust4j.message.GrowableBufferOutput;
+import com.github.myzhan.locust4j.message.Message;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+
+/**
+ * A {@link MessageSerializer} packs messages into a growable buffer, which is reused by every message, so packing
+ * allocates nothing once the buffer is big enough for the largest stats message.
+ *
+ * It's owned by a client and isn't thread-safe.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+final class MessageSerializer {
+
+    private static final int INITIAL_CAPACITY = 8192;
+
+    private final GrowableBufferOutput output = new GrowableBufferOutput(INITIAL_CAPACITY);
+    private final MessagePacker packer = MessagePack.newDefaultPacker(output);
+
+    /**
+     * Pack a message into the buffer, replacing the last one.
+     *
+     * @param message the message
+     * @return size of the packed message in bytes
+     * @throws IOException if the message contains a type which can't be packed
+     */
+    int serialise(Message message) throws IOException {
+        this.output.reset();
+        try {
+            MessageDeser.pack(this.packer, message);
+            this.packer.flush();
+        } catch (IOException | RuntimeException ex) {
+            // drop whatever is left in the packer, so the next message starts clean
+            this.packer.clear();
+            throw ex;
+        }
+        return this.output.size();
+    }
+
+    /**
+     * @return the last packed message, only valid until the next one is packed
+     */
+    ByteBuffer buffer() {
+        return ByteBuffer.wrap(this.output.array(), 0, this.output.size()).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return a copy of the last packed message, which can be handed over to another thread
+     */
+    byte[] toByteArray() {
+        return this.output.toByteArray();
+    }
+
+    int capacity() {
+        return this.output.capacity();
+    }
+}
@@ -1,7 +1,14 @@
 package com.github.myzhan.locust4j.rpc;
 
 import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.github.myzhan.locust4j.jfr.MessageSentEvent;
 import com.github.myzhan.locust4j.message.Message;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,49 +22,234 @@ import org.zeromq.ZMQException;
  *
  * Locust4j only supports zeromq.
  *
+ * The DEALER socket isn't thread-safe, so it's owned by a single I/O thread, which polls it together with an inproc
+ * socket used to wake it up. {@link #send(Message)} queues messages for the I/O thread, and the I/O thread queues
+ * received messages for {@link #recv()}.
+ *
+ * ZeroMQ reconnects a broken connection by itself, backing off exponentially from 100ms up to 30s.
+ * {@link #reconnect()} replaces the socket, for a master which has restarted and forgotten this worker.
+ *
  * @author myzhan
  */
 public class ZeromqClient implements Client {
 
     private static final Logger logger = LoggerFactory.getLogger(ZeromqClient.class);
 
+    /**
+     * Queued for receivers when the I/O thread exits.
+     */
+    private static final Message CLOSED = Message.create(s -> s.type("closed"));
+    /**
+     * How long the I/O thread waits before retrying a message which the DEALER socket can't take yet.
+     */
+    private static final long RETRY_SEND_MILLIS = 10;
+    private static final int RECONNECT_INTERVAL_MILLIS = 100;
+    private static final int RECONNECT_INTERVAL_MAX_MILLIS = 30000;
+    private static final AtomicInteger clientNumber = new AtomicInteger();
+
     private final ZMQ.Context context = ZMQ.context(1);
     private final String identity;
-    private final ZMQ.Socket dealerSocket;
+    private final String endpoint;
+    /**
+     * Only used by the I/O thread once it's started.
+     */
+    private ZMQ.Socket dealerSocket;
+    private volatile boolean reconnectRequested;
+    private final ZMQ.Socket wakeupReceiver;
+    /**
+     * Written by senders, guarded by itself.
+     */
+    private final ZMQ.Socket wakeupSender;
+    private boolean wakeupSenderClosed;
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    private final Queue<Message> outbox = new ConcurrentLinkedQueue<>();
+    private final BlockingQueue<Message> inbox = new LinkedBlockingQueue<>();
+    /**
+     * Only used by the I/O thread.
+     */
+    private final MessageSerializer serializer = new MessageSerializer();
+    private byte[] unsent;
+    private final Thread ioThread;
+    private volatile boolean closed;
 
     public ZeromqClient(String host, int port, String nodeID) {
         this.identity = nodeID;
-        this.dealerSocket = context.socket(SocketType.DEALER);
-        this.dealerSocket.setIdentity(this.identity.getBytes());
-        boolean connected = this.dealerSocket.connect(String.format("tcp://%s:%d", host, port));
+        this.endpoint = String.format("tcp://%s:%d", host, port);
+        this.dealerSocket = this.connect();
+
+        String wakeupEndpoint = "inproc://locust4j-wakeup-" + clientNumber.incrementAndGet();
+        this.wakeupReceiver = context.socket(SocketType.PAIR);
+        this.wakeupReceiver.bind(wakeupEndpoint);
+        this.wakeupSender = context.socket(SocketType.PAIR);
+        this.wakeupSender.connect(wakeupEndpoint);
+
+        this.ioThread = new Thread(this::loop);
+        this.ioThread.setName("locust4j-zeromq-io");
+        this.ioThread.setDaemon(true);
+        this.ioThread.start();
+    }
+
+    @Override
+    public Message recv() throws IOException {
+        Message message;
+        try {
+            message = this.inbox.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while receiving a ZeroMQ message", ex);
+        }
+        if (message == CLOSED) {
+            // leave it for other receivers
+            this.inbox.offer(CLOSED);
+            throw new IOException("ZeroMQ client is closed");
+        }
+        return message;
+    }
+
+    @Override
+    public void send(Message message) throws IOException {
+        if (this.closed) {
+            throw new IOException("ZeroMQ client is closed");
+        }
+        this.outbox.offer(message);
+        // one wake-up is enough for everything queued before the I/O thread looks at the outbox
+        if (this.wakeupPending.compareAndSet(false, true)) {
+            this.wakeUp();
+        }
+    }
+
+    private ZMQ.Socket connect() {
+        ZMQ.Socket socket = context.socket(SocketType.DEALER);
+        socket.setIdentity(this.identity.getBytes());
+        socket.setReconnectIVL(RECONNECT_INTERVAL_MILLIS);
+        socket.setReconnectIVLMax(RECONNECT_INTERVAL_MAX_MILLIS);
+        boolean connected = socket.connect(this.endpoint);
         if (connected) {
-            logger.debug("Locust4j is connected to master({}:{})", host, port);
+            logger.debug("Locust4j is connected to master({})", this.endpoint);
         } else {
-            logger.debug("Locust4j isn't connected to master({}:{}), please check your network situation", host, port);
+            logger.debug("Locust4j isn't connected to master({}), please check your network situation", this.endpoint);
         }
+        return socket;
+    }
 
+    /**
+     * Replace the socket on the I/O thread, messages which are still queued in the old one are dropped.
+     */
+    @Override
+    public void reconnect() {
+        this.reconnectRequested = true;
+        this.wakeUp();
     }
 
     @Override
-    public Message recv() throws IOException {
+    public int backlog() {
+        return this.outbox.size();
+    }
+
+    private void wakeUp() {
+        synchronized (this.wakeupSender) {
+            if (!this.wakeupSenderClosed) {
+                this.wakeupSender.send(new byte[0], ZMQ.DONTWAIT);
+            }
+        }
+    }
+
+    /**
+     * The I/O loop, it sends queued messages when it's woken up and receives whatever the master sent.
+     * Messages queued before closing are still sent.
+     */
+    private void loop() {
+        ZMQ.Poller poller = this.context.poller(2);
+        int dealer = poller.register(this.dealerSocket, ZMQ.Poller.POLLIN);
+        int wakeup = poller.register(this.wakeupReceiver, ZMQ.Poller.POLLIN);
         try {
-            byte[] bytes = this.dealerSocket.recv();
-            return MessageDeser.deserialise(bytes);
+            while (!this.closed) {
+                poller.poll(null == this.unsent ? -1 : RETRY_SEND_MILLIS);
+                if (poller.pollin(wakeup)) {
+                    while (null != this.wakeupReceiver.recv(ZMQ.DONTWAIT)) {
+                        // drain the wake-ups
+                    }
+                }
+                if (this.reconnectRequested) {
+                    this.reconnectRequested = false;
+                    poller.unregister(this.dealerSocket);
+                    this.dealerSocket.setLinger(0);
+                    this.dealerSocket.close();
+                    this.unsent = null;
+                    this.dealerSocket = this.connect();
+                    dealer = poller.register(this.dealerSocket, ZMQ.Poller.POLLIN);
+                }
+                // reset before draining the outbox, anything queued afterwards wakes us up again
+                this.wakeupPending.set(false);
+                this.flushOutbox();
+                if (poller.pollin(dealer)) {
+                    this.receiveAll();
+                }
+            }
+            this.flushOutbox();
         } catch (ZMQException ex) {
-            throw new IOException("Failed to receive ZeroMQ message", ex);
+            if (!this.closed) {
+                logger.error("ZeroMQ I/O thread failed, no more messages will be sent or received", ex);
+            }
+        } finally {
+            this.closed = true;
+            this.inbox.offer(CLOSED);
+            poller.close();
+            this.dealerSocket.close();
+            this.wakeupReceiver.close();
         }
     }
 
-    @Override
-    public void send(Message message) throws IOException {
-        byte[] bytes = MessageDeser.serialise(message);
-        this.dealerSocket.send(bytes);
+    private void flushOutbox() {
+        while (true) {
+            if (null == this.unsent) {
+                Message message = this.outbox.poll();
+                if (null == message) {
+                    return;
+                }
+                MessageSentEvent event = MessageSentEvent.start();
+                try {
+                    int size = this.serializer.serialise(message);
+                    this.unsent = this.serializer.toByteArray();
+                    MessageSentEvent.finish(event, message.type(), size);
+                } catch (IOException ex) {
+                    logger.error("Failed to serialize a {} message, dropped", message.type(), ex);
+                    continue;
+                }
+            }
+            // JeroMQ wraps the array without copying it, so every message gets its own array
+            if (!this.dealerSocket.send(this.unsent, ZMQ.DONTWAIT)) {
+                // the master isn't reachable yet, retry later instead of blocking the receiving side
+                return;
+            }
+            this.unsent = null;
+        }
+    }
+
+    private void receiveAll() {
+        byte[] bytes;
+        while (null != (bytes = this.dealerSocket.recv(ZMQ.DONTWAIT))) {
+            try {
+                this.inbox.offer(MessageDeser.deserialise(bytes));
+            } catch (RuntimeException ex) {
+                logger.error("Failed to deserialize a message from master, dropped", ex);
+            }
+        }
     }
 
     @Override
     public void close() {
-        dealerSocket.close();
+        this.closed = true;
+        this.wakeUp();
+        try {
+            this.ioThread.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this.wakeupSender) {
+            this.wakeupSenderClosed = true;
+            this.wakeupSender.close();
+        }
         context.close();
     }
 }
-
@@ -0,0 +1,154 @@
+package com.github.myzhan.locust4j.runtime;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.github.myzhan.locust4j.AbstractAsyncTask;
+import com.github.myzhan.locust4j.Locust;
+import com.github.myzhan.locust4j.ratelimit.AbstractRateLimiter;
+import com.github.myzhan.locust4j.stats.RequestTimer;
+import com.github.myzhan.locust4j.stats.Stats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link AsyncUser} is a logical user of an {@link AbstractAsyncTask}, it runs the test loop of
+ * {@link com.github.myzhan.locust4j.AbstractTask#run()} on an event loop, without holding a thread between steps.
+ *
+ * It's stopped through its {@link UserHandle}, at the next step.
+ *
+ * @author myzhan
+ */
+final class AsyncUser implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncUser.class);
+
+    private final UserHandle user;
+    private final AbstractAsyncTask task;
+    private final Runner runner;
+    private final Executor eventLoop;
+    /**
+     * Steps of a user never overlap, so one timer is enough.
+     */
+    private final RequestTimer timer;
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+    /**
+     * Set on the event loop, read by whichever thread finishes the user.
+     */
+    private volatile boolean started;
+
+    AsyncUser(UserHandle user, Runner runner, Executor eventLoop) {
+        this.user = user;
+        this.task = (AbstractAsyncTask) user.getTask();
+        this.runner = runner;
+        this.eventLoop = eventLoop;
+        this.timer = Stats.getInstance().requestKey(this.task.getRequestType(), this.task.getName()).newTimer();
+    }
+
+    void start() {
+        this.next();
+    }
+
+    @Override
+    public void run() {
+        if (this.user.isStopRequested() || this.runner.getState() == RunnerState.Stopped
+            || this.runner.getState() == RunnerState.Ready) {
+            this.finish();
+            return;
+        }
+        if (!this.started) {
+            this.started = true;
+            this.user.entered();
+            try {
+                this.task.onStart();
+            } catch (Exception ex) {
+                logger.error("Exception when executing onStart", ex);
+                Locust.getInstance().recordFailure("onStart", "error", 0, ex.getMessage());
+                this.finish();
+                return;
+            }
+        }
+
+        if (!Locust.getInstance().isRateLimitEnabled()) {
+            this.execute(null);
+            return;
+        }
+        AbstractRateLimiter rateLimiter = Locust.getInstance().getRateLimiter();
+        CompletableFuture<Boolean> permit = rateLimiter.acquireAsync().toCompletableFuture();
+        if (permit.isDone() && !permit.join()) {
+            // the permit is taken on this thread, so is its intended start time
+            Stats.getInstance().setIntendedStartNanos(rateLimiter.getIntendedStartNanos(),
+                rateLimiter.getMissedPermits(), rateLimiter.getMissedSpanNanos());
+            this.execute(rateLimiter);
+        } else {
+            // out of permits, try again when the bucket is refilled
+            permit.thenRun(this::next);
+        }
+    }
+
+    /**
+     * @param rateLimiter the permit of the step is released to it when the step completes, or null
+     */
+    private void execute(AbstractRateLimiter rateLimiter) {
+        this.timer.start();
+        CompletionStage<?> stage;
+        try {
+            stage = this.task.executeAsync();
+        } catch (Exception ex) {
+            release(rateLimiter);
+            this.timer.failure(ex.toString());
+            this.next();
+            return;
+        } catch (Error err) {
+            release(rateLimiter);
+            logger.error("Unknown exception when executing the task", err);
+            this.finish();
+            throw err;
+        }
+        stage.whenComplete((result, ex) -> {
+            release(rateLimiter);
+            if (null == ex) {
+                this.timer.success(0);
+            } else {
+                Throwable cause = ex instanceof CompletionException && null != ex.getCause() ? ex.getCause() : ex;
+                this.timer.failure(cause.toString());
+            }
+            this.next();
+        });
+    }
+
+    private static void release(AbstractRateLimiter rateLimiter) {
+        if (null != rateLimiter) {
+            rateLimiter.release();
+        }
+    }
+
+    /**
+     * Take the next step on the event loop, never in the callback of a completed stage.
+     */
+    private void next() {
+        try {
+            this.eventLoop.execute(this);
+        } catch (RejectedExecutionException ex) {
+            // the event loop is shut down
+            this.finish();
+        }
+    }
+
+    private void finish() {
+        if (this.finished.compareAndSet(false, true)) {
+            if (this.started) {
+                try {
+                    this.task.onStop();
+                } catch (Exception ex) {
+                    logger.error("Exception when executing onStop", ex);
+                }
+                this.user.exited();
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.github.myzhan.locust4j.runtime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import com.github.myzhan.locust4j.message.LongIntMap;
+import com.github.myzhan.locust4j.stats.Stats;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link MetricsServer} exposes the stats of this worker at /metrics, in the Prometheus text format.
+ *
+ * Counters are accumulated from the reports of {@link Stats}, on the reporter thread, so the stats thread isn't
+ * touched. They are updated every report interval, and never reset.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+public class MetricsServer {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetricsServer.class);
+
+    /**
+     * Upper bounds of the buckets of response times in millis.
+     */
+    private static final long[] BUCKETS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+    private final Stats stats;
+    private final Supplier<Runner> runner;
+    private final Consumer<Map<String, Object>> listener = this::onReport;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private long droppedEvents;
+    private long sampledEvents;
+    private long foldedEntries;
+    private long foldedErrors;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * @param stats  where the reports come from
+     * @param runner supplies the current runner, which may be null
+     */
+    public MetricsServer(Stats stats, Supplier<Runner> runner) {
+        this.stats = stats;
+        this.runner = runner;
+    }
+
+    /**
+     * Listen on the port, use 0 to pick a free port.
+     *
+     * @param port the port
+     * @throws IOException if the port can't be bound
+     */
+    public synchronized void start(int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setName("locust4j-metrics-server");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/metrics", this::handle);
+        this.server.start();
+        this.stats.addReportListener(this.listener);
+        logger.info("Serving metrics at http://{}:{}/metrics", this.server.getAddress().getHostString(),
+            this.getPort());
+    }
+
+    public synchronized void stop() {
+        this.stats.removeReportListener(this.listener);
+        if (null != this.server) {
+            this.server.stop(0);
+            this.executor.shutdownNow();
+            this.server = null;
+        }
+    }
+
+    public synchronized int getPort() {
+        return null == this.server ? -1 : this.server.getAddress().getPort();
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized void onReport(Map<String, Object> data) {
+        Object stats = data.get("stats");
+        if (stats instanceof List) {
+            for (Map<String, Object> report : (List<Map<String, Object>>) stats) {
+                String name = String.valueOf(report.get("name"));
+                String method = String.valueOf(report.get("method"));
+                this.entries.computeIfAbsent(method + " " + name, key -> new Entry(name, method)).add(report);
+            }
+        }
+        this.droppedEvents += toLong(data.get("num_dropped_events"));
+        this.sampledEvents += toLong(data.get("num_sampled_events"));
+        this.foldedEntries += toLong(data.get("num_folded_entries"));
+        this.foldedErrors += toLong(data.get("num_folded_errors"));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = this.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    synchronized String scrape() {
+        StringBuilder sb = new StringBuilder(1024 + this.entries.size() * 1024);
+
+        header(sb, "locust4j_requests_total", "counter", "Number of requests, including failures.");
+        for (Entry entry : this.entries.values()) {
+            sample(sb, "locust4j_requests_total", entry.labels, null, entry.numRequests);
+        }
+        header(sb, "locust4j_failures_total", "counter", "Number of failed requests.");
+        for (Entry entry : this.entries.values()) {
+            sample(sb, "locust4j_failures_total", entry.labels, null, entry.numFailures);
+        }
+        header(sb, "locust4j_content_length_bytes_total", "counter", "Sum of content lengths.");
+        for (Entry entry : this.entries.values()) {
+            sample(sb, "locust4j_content_length_bytes_total", entry.labels, null, entry.totalContentLength);
+        }
+        header(sb, "locust4j_response_time_milliseconds", "histogram", "Response times in the buckets of locust.");
+        for (Entry entry : this.entries.values()) {
+            long[] counts = entry.bucketCounts();
+            for (int i = 0; i < BUCKETS.length; i++) {
+                sample(sb, "locust4j_response_time_milliseconds_bucket", entry.labels,
+                    "le=\"" + BUCKETS[i] + "\"", counts[i]);
+            }
+            sample(sb, "locust4j_response_time_milliseconds_bucket", entry.labels, "le=\"+Inf\"",
+                counts[BUCKETS.length]);
+            sample(sb, "locust4j_response_time_milliseconds_sum", entry.labels, null, entry.totalResponseTime);
+            sample(sb, "locust4j_response_time_milliseconds_count", entry.labels, null, counts[BUCKETS.length]);
+        }
+
+        gauge(sb, "locust4j_stats_queue_depth", "Test results waiting for the stats thread.", this.stats.getQueueDepth());
+        counter(sb, "locust4j_dropped_events_total", "Test results dropped because the queue was full.",
+            this.droppedEvents);
+        counter(sb, "locust4j_sampled_events_total", "Test results counted but not queued because the queue was full.",
+            this.sampledEvents);
+        counter(sb, "locust4j_folded_entries_total", "Requests folded into <other>, once per report.",
+            this.foldedEntries);
+        counter(sb, "locust4j_folded_errors_total", "Errors folded into <other>.", this.foldedErrors);
+
+        Runner current = this.runner.get();
+        if (null != current) {
+            gauge(sb, "locust4j_users", "Number of running users.", current.getUserCount());
+            gauge(sb, "locust4j_cpu_usage_percent", "CPU usage sent with the last heartbeat.", current.getCpuUsage());
+            header(sb, "locust4j_runner_state", "gauge", "State of the runner.");
+            for (RunnerState state : RunnerState.values()) {
+                sample(sb, "locust4j_runner_state", "state=\"" + state.name().toLowerCase() + "\"", null,
+                    state == current.getState() ? 1 : 0);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, double value) {
+        header(sb, name, "gauge", help);
+        sample(sb, name, null, null, value);
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, "counter", help);
+        sample(sb, name, null, null, value);
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, String extraLabel, double value) {
+        sb.append(name);
+        if (null != labels || null != extraLabel) {
+            sb.append('{');
+            if (null != labels) {
+                sb.append(labels);
+            }
+            if (null != extraLabel) {
+                if (null != labels) {
+                    sb.append(',');
+                }
+                sb.append(extraLabel);
+            }
+            sb.append('}');
+        }
+        sb.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static long toLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static class Entry {
+        private final String labels;
+        private long numRequests;
+        private long numFailures;
+        private long totalResponseTime;
+        private long totalContentLength;
+        /**
+         * Cumulative counts of each bucket, the last one is +Inf.
+         */
+        private final long[] buckets = new long[BUCKETS.length + 1];
+
+        private Entry(String name, String method) {
+            this.labels = "method=\"" + escape(method) + "\",name=\"" + escape(name) + "\"";
+        }
+
+        private void add(Map<String, Object> report) {
+            this.numRequests += toLong(report.get("num_requests"));
+            this.numFailures += toLong(report.get("num_failures"));
+            this.totalResponseTime += toLong(report.get("total_response_time"));
+            this.totalContentLength += toLong(report.get("total_content_length"));
+            Object responseTimes = report.get("response_times");
+            if (responseTimes instanceof LongIntMap) {
+                this.addResponseTimes((LongIntMap) responseTimes);
+            }
+        }
+
+        private void addResponseTimes(LongIntMap responseTimes) {
+            for (int slot = 0; slot < responseTimes.capacity(); slot++) {
+                int count = responseTimes.valueAt(slot);
+                if (count == 0) {
+                    continue;
+                }
+                long responseTime = responseTimes.keyAt(slot);
+                for (int i = 0; i < BUCKETS.length; i++) {
+                    if (responseTime <= BUCKETS[i]) {
+                        this.buckets[i] += count;
+                    }
+                }
+                this.buckets[BUCKETS.length] += count;
+            }
+        }
+
+        /**
+         * @return cumulative counts of each bucket, the last one is +Inf
+         */
+        private long[] bucketCounts() {
+            return this.buckets;
+        }
+    }
+}
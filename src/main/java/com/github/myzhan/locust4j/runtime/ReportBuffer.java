@@ -0,0 +1,128 @@
+package com.github.myzhan.locust4j.runtime;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.myzhan.locust4j.message.LongIntMap;
+
+/**
+ * A {@link ReportBuffer} merges stats reports into one, it holds the reports which couldn't be sent while the master
+ * was unreachable, and the reports of local workers which a relay sends as one.
+ *
+ * Reports are merged as they arrive, so it's bounded by the number of distinct entries and errors, which stats
+ * already caps, not by the number of reports.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+public class ReportBuffer {
+
+    private static final String[] SUMMED_COUNTERS = {
+        "num_dropped_events", "num_sampled_events", "num_folded_entries", "num_folded_errors"};
+
+    private final Map<String, Map<String, Object>> entries = new LinkedHashMap<>();
+    private Map<String, Object> total;
+    private final Map<String, Map<String, Object>> errors = new HashMap<>();
+    private final Map<String, Object> counters = new HashMap<>();
+    private int numReports;
+
+    /**
+     * Merge a report, entries are matched by method and name.
+     *
+     * @param data data of a stats message
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void add(Map<String, Object> data) {
+        Object stats = data.get("stats");
+        if (stats instanceof List) {
+            for (Map<String, Object> report : (List<Map<String, Object>>) stats) {
+                String key = report.get("method") + " " + report.get("name");
+                this.entries.merge(key, copy(report), ReportBuffer::mergeEntry);
+            }
+        }
+        Object statsTotal = data.get("stats_total");
+        if (statsTotal instanceof Map) {
+            Map<String, Object> report = copy((Map<String, Object>) statsTotal);
+            this.total = null == this.total ? report : mergeEntry(this.total, report);
+        }
+        Object errorReport = data.get("errors");
+        if (errorReport instanceof Map) {
+            for (Map.Entry<String, Map<String, Object>> error : ((Map<String, Map<String, Object>>) errorReport).entrySet()) {
+                this.errors.merge(error.getKey(), new HashMap<>(error.getValue()), (existing, added) -> {
+                    existing.put("occurrences", toLong(existing.get("occurrences")) + toLong(added.get("occurrences")));
+                    return existing;
+                });
+            }
+        }
+        for (String counter : SUMMED_COUNTERS) {
+            this.counters.merge(counter, toLong(data.get(counter)), (a, b) -> toLong(a) + toLong(b));
+        }
+        this.numReports++;
+    }
+
+    /**
+     * @return number of reports merged since the last drain
+     */
+    public synchronized int getNumReports() {
+        return this.numReports;
+    }
+
+    /**
+     * @return the merged report, or null if nothing is buffered. The buffer is empty afterwards.
+     */
+    public synchronized Map<String, Object> drain() {
+        if (this.numReports == 0) {
+            return null;
+        }
+        Map<String, Object> data = new HashMap<>(this.counters);
+        data.put("stats", new ArrayList<>(this.entries.values()));
+        data.put("stats_total", this.total);
+        data.put("errors", new HashMap<>(this.errors));
+        this.entries.clear();
+        this.total = null;
+        this.errors.clear();
+        this.counters.clear();
+        this.numReports = 0;
+        return data;
+    }
+
+    private static Map<String, Object> copy(Map<String, Object> report) {
+        Map<String, Object> result = new HashMap<>(report);
+        for (String key : new String[] {"response_times", "num_reqs_per_sec", "num_fail_per_sec"}) {
+            Object counts = report.get(key);
+            result.put(key, counts instanceof LongIntMap ? new LongIntMap((LongIntMap) counts) : new LongIntMap());
+        }
+        return result;
+    }
+
+    private static Map<String, Object> mergeEntry(Map<String, Object> existing, Map<String, Object> added) {
+        for (String key : new String[] {"num_requests", "num_none_requests", "num_failures", "total_response_time",
+            "total_content_length"}) {
+            existing.put(key, toLong(existing.get(key)) + toLong(added.get(key)));
+        }
+        long addedRequests = toLong(added.get("num_requests"));
+        long existingRequests = toLong(existing.get("num_requests")) - addedRequests;
+        if (addedRequests > 0) {
+            long min = toLong(added.get("min_response_time"));
+            if (existingRequests == 0 || min < toLong(existing.get("min_response_time"))) {
+                existing.put("min_response_time", min);
+            }
+        }
+        existing.put("max_response_time",
+            Math.max(toLong(existing.get("max_response_time")), toLong(added.get("max_response_time"))));
+        existing.put("start_time", Math.min(toLong(existing.get("start_time")), toLong(added.get("start_time"))));
+        existing.put("last_request_timestamp",
+            Math.max(toLong(existing.get("last_request_timestamp")), toLong(added.get("last_request_timestamp"))));
+        for (String key : new String[] {"response_times", "num_reqs_per_sec", "num_fail_per_sec"}) {
+            ((LongIntMap) existing.get(key)).merge((LongIntMap) added.get(key));
+        }
+        return existing;
+    }
+
+    private static long toLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+}
@@ -1,10 +1,13 @@
 package com.github.myzhan.locust4j.runtime;
 
 import com.github.myzhan.locust4j.ratelimit.AbstractRateLimiter;
+import com.github.myzhan.locust4j.AbstractAsyncTask;
 import com.github.myzhan.locust4j.AbstractTask;
 import com.github.myzhan.locust4j.Locust;
+import com.github.myzhan.locust4j.jfr.SpawnEvent;
 import com.github.myzhan.locust4j.message.Message;
 import com.github.myzhan.locust4j.rpc.Client;
+import com.github.myzhan.locust4j.stats.PipelineMetrics;
 import com.github.myzhan.locust4j.stats.Stats;
 import com.github.myzhan.locust4j.utils.Utils;
 import com.sun.management.OperatingSystemMXBean;
@@ -13,7 +16,6 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
-import java.lang.ref.WeakReference;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -53,7 +55,7 @@ public class Runner {
     /**
      * Number of clients required by the master, locust4j use threads to simulate clients.
      */
-    protected int numClients = 0;
+    protected volatile int numClients = 0;
     /**
      * We save user_class_count in spawn message and send it back to master without modification.
      */
@@ -67,17 +69,28 @@ public class Runner {
      */
     private List<AbstractTask> tasks;
     /**
-     * Stores reference's to each task's runnable. Allows us to scale down the number
-     * of "users" running that task.
+     * Users of every task, allows us to scale down the number of users running that task.
      */
-    private final HashMap<String, List<WeakReference<Future<?>>>> futures = new HashMap<>();
+    private final UserRegistry users = new UserRegistry();
     /**
      * Since 2.10.0, locust will send an ack message to acknowledge the client_ready message.
      */
     private final CountDownLatch waitForAck = new CountDownLatch(1);
-    private boolean masterConnected = false;
+    private volatile boolean masterConnected = false;
+    /**
+     * Set when the master stops sending heartbeats, until it acknowledges client_ready again.
+     */
+    private volatile boolean reconnecting = false;
+    /**
+     * Stats reports which are held back while reconnecting, they are replayed as one once the master is back.
+     */
+    private final ReportBuffer reportBuffer = new ReportBuffer();
     private int workerIndex = 0;
     private AtomicLong lastMasterHeartbeatTimestamp = new AtomicLong(0);
+    /**
+     * CPU usage sent with the last heartbeat.
+     */
+    private volatile double cpuUsage;
     /**
      * RPC Client.
      */
@@ -86,6 +99,27 @@ public class Runner {
      * Thread pool used by runner, it will be re-created when runner starts spawning.
      */
     private ThreadPoolExecutor taskExecutor;
+    /**
+     * Run every user on a virtual thread instead of a platform thread.
+     */
+    private boolean virtualThreads;
+    /**
+     * Event loop of the users of async tasks, it will be re-created when runner starts spawning.
+     */
+    private ExecutorService eventLoop;
+    /**
+     * Users spawned per second when the master doesn't send its spawn rate, 0 to spawn them at once.
+     */
+    private volatile double spawnRate = Double.parseDouble(Utils.getSystemEnvWithDefault("LOCUST_SPAWN_RATE", "0"));
+    /**
+     * Paces spawning, it will be created at the first paced spawn.
+     */
+    private ScheduledExecutorService spawner;
+    private ScheduledFuture<?> ramp;
+    /**
+     * Bumped whenever the ramp is cancelled, so a step that already began sees it's stale.
+     */
+    private long rampGeneration;
     /**
      * Thread pool used by runner to receive and send message
      */
@@ -123,6 +157,30 @@ public class Runner {
         return this.nodeID;
     }
 
+    /**
+     * @return number of users in the test loop, including the ones finishing their last iteration after scaling down
+     * @since 2.3.0
+     */
+    public int getUserCount() {
+        return this.users.getLiveCount();
+    }
+
+    /**
+     * @return CPU usage in percent sent with the last heartbeat
+     * @since 2.3.0
+     */
+    public double getCpuUsage() {
+        return this.cpuUsage;
+    }
+
+    /**
+     * @return false while the master is unreachable and the runner is reconnecting
+     * @since 2.3.0
+     */
+    public boolean isMasterConnected() {
+        return this.masterConnected && !this.reconnecting;
+    }
+
     public void setRPCClient(Client client) {
         this.rpcClient = client;
     }
@@ -139,6 +197,35 @@ public class Runner {
         this.tasks = tasks;
     }
 
+    /**
+     * Run every user on a virtual thread, so a worker can run many more users of I/O-bound tasks.
+     * It takes effect when the thread pool is created at the next spawn.
+     *
+     * @param virtualThreads set true to use virtual threads
+     * @since 2.3.0
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public boolean isVirtualThreads() {
+        return this.virtualThreads;
+    }
+
+    /**
+     * Set the number of users spawned per second, used when the master doesn't send its spawn rate.
+     *
+     * @param spawnRate users per second, 0 to spawn them at once
+     * @since 2.3.0
+     */
+    public void setSpawnRate(double spawnRate) {
+        this.spawnRate = spawnRate;
+    }
+
+    public double getSpawnRate() {
+        return this.spawnRate;
+    }
+
     protected void setTaskExecutor(ThreadPoolExecutor taskExecutor) {
         this.taskExecutor = taskExecutor;
     }
@@ -162,45 +249,96 @@ public class Runner {
                 amount = Math.round(spawnCount * percent);
             }
 
-            List<WeakReference<Future<?>>> runningTasks = futures.get(task.getName());
-            if (runningTasks == null) {
-                runningTasks = new ArrayList<WeakReference<Future<?>>>();
-            }
-
-            // Clean up any tasks that may have completed
-            Iterator<WeakReference<Future<?>>> itr = runningTasks.iterator();
-            while (itr.hasNext()) {
-                Future<?> future = itr.next().get();
-                if (future == null || future.isDone()) {
-                    itr.remove();
+            int running = this.users.count(task.getName());
+            for (; running < amount; running++) {
+                UserHandle user = this.users.add(task);
+                if (task instanceof AbstractAsyncTask) {
+                    new AsyncUser(user, this, this.eventLoop).start();
+                } else {
+                    this.taskExecutor.execute(user);
                 }
             }
-
-            while (runningTasks.size() < amount) {
-                runningTasks.add(new WeakReference(this.taskExecutor.submit(task)));
-                logger.debug("Adding thread to task, which name is {}", task.getName());
+            if (running > amount) {
+                // users leave after their current iteration
+                this.users.stop(task.getName(), running - amount);
+                running = amount;
             }
 
-            while (runningTasks.size() > amount) {
-                Future<?> future = runningTasks.remove(0).get();
-                if (future != null) {
-                    future.cancel(true);
-                }
-                logger.debug("Removing thread from task, which name is {}", task.getName());
-            }
+            logger.debug("Allocated {} users to task, which name is {}", amount, task.getName());
+
+            this.numClients += running;
+        }
+    }
 
-            futures.put(task.getName(), runningTasks);
+    /**
+     * Spawn users at the given rate, and tell the master when the count is reached. Users are stopped at once.
+     * A new spawn or a stop cancels the ramp in progress.
+     *
+     * @param spawnCount number of users required
+     * @param rate       users per second, 0 to spawn them at once
+     */
+    protected synchronized void spawn(int spawnCount, double rate) {
+        this.cancelRamp();
+        int from = this.numClients;
+        if (rate <= 0 || spawnCount <= from) {
+            this.startSpawning(spawnCount);
+            this.spawnComplete();
+            return;
+        }
+        if (this.spawner == null) {
+            this.spawner = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r);
+                    thread.setName("locust4j-spawner");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        logger.debug("Spawning from {} to {} users at {} users per second", from, spawnCount, rate);
+        long generation = this.rampGeneration;
+        long startNanos = System.nanoTime();
+        // one user per step at low rates, at most 10 steps per second at high rates
+        long period = Math.max(100, (long) (TimeUnit.SECONDS.toMicros(1) / rate));
+        this.ramp = this.spawner.scheduleAtFixedRate(
+            () -> this.rampStep(generation, from, spawnCount, rate, startNanos), 0, period, TimeUnit.MICROSECONDS);
+    }
 
-            logger.debug("Allocated {} threads to task, which name is {}", amount, task.getName());
+    private synchronized void rampStep(long generation, int from, int spawnCount, double rate, long startNanos) {
+        if (generation != this.rampGeneration) {
+            return;
+        }
+        try {
+            double elapsed = (System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+            int count = (int) Math.min(spawnCount, from + 1 + Math.floor(rate * elapsed));
+            if (count > this.numClients) {
+                this.startSpawning(count);
+            }
+            if (count >= spawnCount) {
+                this.cancelRamp();
+                this.spawnComplete();
+            }
+        } catch (Exception ex) {
+            // keep the scheduled ramp alive, the next step tries again
+            logger.error("Error while spawning users", ex);
+        }
+    }
 
-            this.numClients += runningTasks.size();
+    private synchronized void cancelRamp() {
+        this.rampGeneration++;
+        if (this.ramp != null) {
+            this.ramp.cancel(false);
+            this.ramp = null;
         }
     }
 
-    protected void startSpawning(int spawnCount) {
+    protected synchronized void startSpawning(int spawnCount) {
         Stats.getInstance().wakeMeUp();
+        SpawnEvent event = SpawnEvent.start("spawning", this.numClients);
         if (spawnCount <= 0) {
             this.spawnWorkers(0);
+            SpawnEvent.finish(event, this.numClients);
             return;
         }
         if (this.taskExecutor == null) {
@@ -209,7 +347,7 @@ public class Runner {
                     new ThreadFactory() {
                         @Override
                         public Thread newThread(Runnable r) {
-                            Thread thread = new Thread(r);
+                            Thread thread = virtualThreads ? Thread.ofVirtual().unstarted(r) : new Thread(r);
                             thread.setName("locust4j-worker#" + threadNumber.getAndIncrement());
                             return thread;
                         }
@@ -221,8 +359,22 @@ public class Runner {
             this.taskExecutor.setCorePoolSize(spawnCount);
             this.taskExecutor.setMaximumPoolSize(spawnCount);
         }
+        if (this.eventLoop == null) {
+            int eventLoopThreads = Integer.parseInt(Utils.getSystemEnvWithDefault("LOCUST_EVENT_LOOP_THREADS",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+            this.eventLoop = Executors.newFixedThreadPool(eventLoopThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r);
+                    thread.setName("locust4j-event-loop#" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
 
         this.spawnWorkers(spawnCount);
+        SpawnEvent.finish(event, this.numClients);
     }
 
     protected void spawnComplete() {
@@ -239,6 +391,10 @@ public class Runner {
 
     public void quit() {
         try {
+            this.cancelRamp();
+            if (this.spawner != null) {
+                this.spawner.shutdownNow();
+            }
             this.rpcClient.send(s -> s.type("quit").nodeId(this.nodeID));
             this.rpcClient.close();
             this.executor.shutdownNow();
@@ -248,6 +404,12 @@ public class Runner {
     }
 
     private void shutdownThreadPool() {
+        // async users hold no thread, they see it at their next step
+        this.users.stopAll();
+        if (null != this.eventLoop) {
+            this.eventLoop.shutdown();
+            this.eventLoop = null;
+        }
         this.taskExecutor.shutdownNow();
         try {
             this.taskExecutor.awaitTermination(1, TimeUnit.SECONDS);
@@ -257,8 +419,11 @@ public class Runner {
         this.taskExecutor = null;
     }
 
-    protected void stop() {
+    protected synchronized void stop() {
+        this.cancelRamp();
+        SpawnEvent event = SpawnEvent.start("stopped", this.numClients);
         this.shutdownThreadPool();
+        SpawnEvent.finish(event, 0);
     }
 
     private boolean spawnMessageIsValid(Message message) {
@@ -295,8 +460,22 @@ public class Runner {
             this.remoteParams.put("host", data.get("host").toString());
         }
 
-        this.startSpawning(numUsers);
-        this.spawnComplete();
+        this.spawn(numUsers, this.spawnRateOf(data));
+    }
+
+    /**
+     * Get the spawn rate which the master runs with, it's among the parsed options of spawn messages since locust
+     * 2.0. Otherwise, users are spawned at the configured spawn rate.
+     */
+    private double spawnRateOf(Map<String, Object> data) {
+        Object options = data.get("parsed_options");
+        if (options instanceof Map) {
+            Object rate = ((Map<?, ?>) options).get("spawn_rate");
+            if (rate instanceof Number) {
+                return ((Number) rate).doubleValue();
+            }
+        }
+        return this.spawnRate;
     }
 
     private void onMessage(Message message) {
@@ -304,6 +483,17 @@ public class Runner {
 
         switch (type) {
             case "ack":
+                if (this.reconnecting) {
+                    this.onMasterBack(message);
+                    return;
+                }
+                break;
+            case "reconnect":
+                // the master doesn't know this worker, it may have restarted
+                logger.info("Got reconnect message from master, registering again");
+                this.onMasterLost();
+                this.reconnect();
+                return;
             case "spawn":
             case "spawning_complete":
             case "stop":
@@ -397,8 +587,74 @@ public class Runner {
         }
     }
 
+    /**
+     * Mark the master as unreachable, tasks keep running and reports are buffered until it's back.
+     */
+    protected void onMasterLost() {
+        if (!this.reconnecting) {
+            this.reconnecting = true;
+            logger.warn("Lost the connection to master, keep running {} users and reconnecting", this.numClients);
+        }
+    }
+
+    /**
+     * Replace the connection and register to the master again, it answers with an ack.
+     */
+    protected void reconnect() {
+        this.rpcClient.reconnect();
+        try {
+            this.rpcClient.send(s -> s.type("client_ready").nodeId(this.nodeID));
+        } catch (IOException ex) {
+            logger.error("Error while registering to master again", ex);
+        }
+    }
+
+    private void onMasterBack(Message message) {
+        this.lastMasterHeartbeatTimestamp.set(System.currentTimeMillis());
+        Map<String, Object> data = message.data();
+        if (data != null && data.containsKey("index")) {
+            this.workerIndex = (int) data.get("index");
+        }
+        this.masterConnected = true;
+        this.reconnecting = false;
+        logger.info("Reconnected to master, replaying {} buffered reports", this.reportBuffer.getNumReports());
+        Map<String, Object> buffered = this.reportBuffer.drain();
+        if (null != buffered) {
+            this.sendStats(buffered);
+        }
+    }
+
+    /**
+     * Send a report of stats, it's called by the reporter thread of stats.
+     * Reports are buffered while reconnecting.
+     */
+    protected void sendStats(Map<String, Object> data) {
+        if (this.state == RunnerState.Ready || this.state == RunnerState.Stopped) {
+            return;
+        }
+        if (this.reconnecting) {
+            this.reportBuffer.add(data);
+            return;
+        }
+        try {
+            this.rpcClient.send(s -> s
+                .type("stats")
+                .putAllData(data)
+                .putData("user_count", this.getUserCount())
+                .putData("user_classes_count", this.userClassesCountFromMaster)
+                .nodeId(this.nodeID)
+            );
+        } catch (IOException ex) {
+            logger.error("Error while sending stats", ex);
+        }
+    }
+
+    /**
+     * The control pool only runs the receiver and the heartbeater, reports are sent by the reporter thread of
+     * stats and the rpc client does its own I/O.
+     */
     public void getReady() {
-        this.executor = new ThreadPoolExecutor(4, 4, 0L, TimeUnit.MILLISECONDS,
+        this.executor = new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS,
                 new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
             @Override
             public Thread newThread(Runnable r) {
@@ -412,8 +668,10 @@ public class Runner {
             logger.error("Error while sending a message that the system is ready", ex);
         }
 
+        if (null != this.stats) {
+            this.stats.setReportSink(this::sendStats, this.rpcClient::backlog);
+        }
         this.executor.submit(new Receiver(this));
-        this.executor.submit(new Sender(this));
 
         // Wait for the ack message from master.
         try {
@@ -424,7 +682,6 @@ public class Runner {
         }
 
         this.executor.submit(new Heartbeater(this));
-        this.executor.submit(new HeartbeatListener(this));
     }
 
     private static class Receiver implements Runnable {
@@ -443,6 +700,10 @@ public class Runner {
                     Message message = runner.rpcClient.recv();
                     runner.onMessage(message);
                 } catch (IOException ex) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        // the runner is quitting
+                        break;
+                    }
                     logger.error("Failed to receive message from master, quit", ex);
                     break;
                 } catch (Exception ex) {
@@ -452,52 +713,24 @@ public class Runner {
         }
     }
 
-    private static class Sender implements Runnable {
-        private final Runner runner;
-
-        private Sender(Runner runner) {
-            this.runner = runner;
-        }
-
-        @Override
-        public void run() {
-            String name = Thread.currentThread().getName();
-            Thread.currentThread().setName(name + "send-to-client");
-            while (true) {
-                try {
-                    Map<String, Object> data = runner.stats.getMessageToRunnerQueue().take();
-                    if (data.containsKey("current_cpu_usage")) {
-                        // It's heartbeat message, moved to here to avoid race condition of zmq socket.
-                        runner.rpcClient.send(s -> s
-                            .type("heartbeat")
-                            .putAllData(data)
-                            .nodeId(runner.nodeID));
-                        continue;
-                    }
-                    if (runner.state == RunnerState.Ready || runner.state == RunnerState.Stopped) {
-                        continue;
-                    }
-                    runner.rpcClient.send(s -> s
-                        .type("stats")
-                        .putAllData(data)
-                        .putData("user_count", runner.numClients)
-                        .putData("user_classes_count", runner.userClassesCountFromMaster)
-                        .nodeId(runner.nodeID)
-                    );
-                } catch (InterruptedException ex) {
-                    return;
-                } catch (Exception ex) {
-                    logger.error("Error in running the sender", ex);
-                }
-            }
-        }
-    }
-
+    /**
+     * Sends a heartbeat every second. If the master hasn't sent one for a while, it reconnects with exponential
+     * backoff, and quits if the master is still gone after a long time.
+     */
     private static class Heartbeater implements Runnable {
         private static final int HEARTBEAT_INTERVAL = 1000;
+        private static final int MASTER_HEARTBEAT_TIMEOUT = Integer.parseInt(Utils.getSystemEnvWithDefault(
+            "LOCUST_MASTER_HEARTBEAT_TIMEOUT", "600000"));
+        private static final int MASTER_DISCONNECT_TIMEOUT = Integer.parseInt(Utils.getSystemEnvWithDefault(
+            "LOCUST_MASTER_DISCONNECT_TIMEOUT", "5000"));
+        private static final long RECONNECT_INTERVAL = 1000;
+        private static final long RECONNECT_INTERVAL_MAX = 30000;
         private final Runner runner;
+        private long reconnectInterval = RECONNECT_INTERVAL;
+        private long nextReconnect;
 
         private final OperatingSystemMXBean osBean = getOsBean();
+        private boolean lagging;
 
         private Heartbeater(Runner runner) {
             this.runner = runner;
@@ -510,16 +743,36 @@ public class Runner {
             while (true) {
                 try {
                     Thread.sleep(HEARTBEAT_INTERVAL);
+                    if (runner.isMasterHeartbeatTimeout(MASTER_HEARTBEAT_TIMEOUT)) {
+                        logger.error("Did't get heartbeat from master in over {}ms, quitting", MASTER_HEARTBEAT_TIMEOUT);
+                        runner.quit();
+                        return;
+                    }
+                    this.reconnectIfLost();
                     if (runner.isHeartbeatStopped()) {
                         continue;
                     }
-                    Map<String, Object> data = new HashMap<>(2);
+                    Map<String, Object> data = new HashMap<>(16);
                     data.put("state", runner.state.name().toLowerCase());
-                    data.put("current_cpu_usage", getCpuUsage());
-                    boolean success = runner.stats.getMessageToRunnerQueue().offer(data);
-                    if (!success) {
-                        logger.error("Failed to insert heartbeat message to the queue");
+                    double cpuUsage = getCpuUsage();
+                    runner.cpuUsage = cpuUsage;
+                    data.put("current_cpu_usage", cpuUsage);
+                    // extra fields, which are ignored by the master
+                    PipelineMetrics metrics = runner.stats.getPipelineMetrics();
+                    data.putAll(metrics.toMap());
+                    if (metrics.isLagging() != lagging) {
+                        lagging = metrics.isLagging();
+                        if (lagging) {
+                            logger.warn("Locust4j can't keep up with the test results, RPS shown by the master is "
+                                + "lower than the real one: {}", metrics);
+                        } else {
+                            logger.info("Locust4j caught up with the test results");
+                        }
                     }
+                    runner.rpcClient.send(s -> s
+                        .type("heartbeat")
+                        .putAllData(data)
+                        .nodeId(runner.nodeID));
                 } catch (InterruptedException ex) {
                     return;
                 } catch (Exception ex) {
@@ -528,6 +781,24 @@ public class Runner {
             }
         }
 
+        private void reconnectIfLost() {
+            long now = System.currentTimeMillis();
+            if (!runner.reconnecting) {
+                if (!runner.isMasterHeartbeatTimeout(MASTER_DISCONNECT_TIMEOUT)) {
+                    return;
+                }
+                runner.onMasterLost();
+                reconnectInterval = RECONNECT_INTERVAL;
+                nextReconnect = now;
+            }
+            if (now >= nextReconnect) {
+                logger.info("Reconnecting to master, next attempt in {}ms", reconnectInterval);
+                runner.reconnect();
+                nextReconnect = now + reconnectInterval;
+                reconnectInterval = Math.min(reconnectInterval * 2, RECONNECT_INTERVAL_MAX);
+            }
+        }
+
         private double getCpuUsage() {
             return osBean.getSystemCpuLoad() * 100;
         }
@@ -536,32 +807,4 @@ public class Runner {
             return (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
         }
     }
-
-    private static class HeartbeatListener implements Runnable {
-
-        private static final int MASTER_HEARTBEAT_TIMEOUT = Integer.parseInt(Utils.getSystemEnvWithDefault(
-            "LOCUST_MASTER_HEARTBEAT_TIMEOUT", "60000"));
-        private final Runner runner;
-
-        private HeartbeatListener(Runner runner) {
-            this.runner = runner;
-        }
-
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    Thread.sleep(1000);
-                    if (runner.isMasterHeartbeatTimeout(MASTER_HEARTBEAT_TIMEOUT)) {
-                        logger.error("Did't get heartbeat from master in over {}ms, quitting", MASTER_HEARTBEAT_TIMEOUT);
-                        runner.quit();
-                    }
-                } catch (InterruptedException ex) {
-                    return;
-                } catch (Exception ex) {
-                    logger.error("Error in running the heartbeat listener", ex);
-                }
-            }
-        }
-    }
 }
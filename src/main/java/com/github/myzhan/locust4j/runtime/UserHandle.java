@@ -0,0 +1,84 @@
+package com.github.myzhan.locust4j.runtime;
+
+import com.github.myzhan.locust4j.AbstractTask;
+
+/**
+ * A {@link UserHandle} is one running user of a task, kept by the runner to stop it when scaling down.
+ *
+ * Stopping is cooperative, the user finishes its current iteration and leaves the test loop, instead of being
+ * interrupted in the middle of a request.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+public final class UserHandle implements Runnable {
+
+    private static final ThreadLocal<UserHandle> CURRENT = new ThreadLocal<>();
+
+    private final UserRegistry registry;
+    private final AbstractTask task;
+    private volatile boolean stopRequested;
+
+    UserHandle(UserRegistry registry, AbstractTask task) {
+        this.registry = registry;
+        this.task = task;
+    }
+
+    /**
+     * Tell whether the user running on the calling thread was asked to stop, tasks check it between iterations.
+     *
+     * @return false if no user runs on the calling thread
+     */
+    public static boolean isCurrentStopRequested() {
+        UserHandle current = CURRENT.get();
+        return null != current && current.stopRequested;
+    }
+
+    public boolean isStopRequested() {
+        return this.stopRequested;
+    }
+
+    public String getTaskName() {
+        return this.task.getName();
+    }
+
+    void requestStop() {
+        this.stopRequested = true;
+    }
+
+    AbstractTask getTask() {
+        return this.task;
+    }
+
+    /**
+     * Count the user as live, when it enters the test loop.
+     */
+    void entered() {
+        this.registry.started();
+    }
+
+    /**
+     * Count the user out, when it leaves the test loop.
+     */
+    void exited() {
+        this.registry.exited(this);
+    }
+
+    /**
+     * Run the test loop of the task on the calling thread.
+     */
+    @Override
+    public void run() {
+        if (this.stopRequested) {
+            return;
+        }
+        CURRENT.set(this);
+        this.entered();
+        try {
+            this.task.run();
+        } finally {
+            CURRENT.remove();
+            this.exited();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.github.myzhan.locust4j.runtime;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.myzhan.locust4j.AbstractTask;
+
+/**
+ * A {@link UserRegistry} keeps the users of every task which aren't asked to stop, oldest first.
+ *
+ * Users are added, stopped and removed in constant time, and a user which leaves the test loop by itself removes
+ * itself, so the registry never needs a cleanup pass. The live count includes the users still finishing their last
+ * iteration after being asked to stop.
+ *
+ * @author myzhan
+ */
+final class UserRegistry {
+
+    private final Map<String, Set<UserHandle>> users = new HashMap<>();
+    private final AtomicInteger live = new AtomicInteger();
+
+    synchronized UserHandle add(AbstractTask task) {
+        UserHandle user = new UserHandle(this, task);
+        this.users.computeIfAbsent(task.getName(), k -> new LinkedHashSet<>()).add(user);
+        return user;
+    }
+
+    /**
+     * @return number of users of the task which aren't asked to stop
+     */
+    synchronized int count(String taskName) {
+        Set<UserHandle> running = this.users.get(taskName);
+        return null == running ? 0 : running.size();
+    }
+
+    /**
+     * Ask the oldest users of the task to stop.
+     */
+    synchronized void stop(String taskName, int amount) {
+        Set<UserHandle> running = this.users.get(taskName);
+        if (null == running) {
+            return;
+        }
+        Iterator<UserHandle> itr = running.iterator();
+        for (int i = 0; i < amount && itr.hasNext(); i++) {
+            itr.next().requestStop();
+            itr.remove();
+        }
+    }
+
+    /**
+     * Ask every user to stop and forget them.
+     */
+    synchronized void stopAll() {
+        for (Set<UserHandle> running : this.users.values()) {
+            for (UserHandle user : running) {
+                user.requestStop();
+            }
+        }
+        this.users.clear();
+    }
+
+    /**
+     * @return number of users which are in the test loop
+     */
+    int getLiveCount() {
+        return this.live.get();
+    }
+
+    void started() {
+        this.live.incrementAndGet();
+    }
+
+    void exited(UserHandle user) {
+        this.live.decrementAndGet();
+        synchronized (this) {
+            Set<UserHandle> running = this.users.get(user.getTaskName());
+            if (null != running) {
+                running.remove(user);
+            }
+        }
+    }
+}
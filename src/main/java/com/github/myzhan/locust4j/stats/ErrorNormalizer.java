@@ -0,0 +1,37 @@
+package com.github.myzhan.locust4j.stats;
+
+import java.util.regex.Pattern;
+
+/**
+ * {@link ErrorNormalizer} replaces UUIDs and numbers in error messages, so errors which only differ in things like
+ * timestamps or ids are counted as the same error.
+ *
+ * @author myzhan
+ */
+final class ErrorNormalizer {
+
+    private static final Pattern UUID = Pattern.compile(
+        "[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+    private static final Pattern NUMBER = Pattern.compile("\\d+");
+
+    private ErrorNormalizer() {
+    }
+
+    static String normalize(String error) {
+        if (null == error) {
+            return null;
+        }
+        boolean hasDigit = false;
+        for (int i = 0; i < error.length(); i++) {
+            if (Character.isDigit(error.charAt(i))) {
+                hasDigit = true;
+                break;
+            }
+        }
+        if (!hasDigit) {
+            return error;
+        }
+        String normalized = UUID.matcher(error).replaceAll("<uuid>");
+        return NUMBER.matcher(normalized).replaceAll("<n>");
+    }
+}
@@ -0,0 +1,194 @@
+package com.github.myzhan.locust4j.stats;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A log-linear histogram of response times in nanoseconds, with fixed memory and about 1.6% relative precision.
+ *
+ * Values below 128ns are counted exactly, larger values fall into one of 64 linear sub-buckets of their power of two,
+ * like HdrHistogram does. Values above {@link #MAX_TRACKABLE_NANOS} are counted in the last bucket.
+ * It isn't thread-safe.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+public final class LatencyHistogram {
+
+    /**
+     * About 18 minutes.
+     */
+    public static final long MAX_TRACKABLE_NANOS = (1L << 40) - 1;
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT >> 1;
+    private static final int BUCKET_COUNT = indexOf(MAX_TRACKABLE_NANOS) + 1;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long totalCount;
+    private long minValue = Long.MAX_VALUE;
+    private long maxValue;
+
+    public LatencyHistogram() {
+    }
+
+    /**
+     * Create a copy of another histogram.
+     *
+     * @param other the histogram to copy
+     */
+    public LatencyHistogram(LatencyHistogram other) {
+        this.merge(other);
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT + (int) (value >>> shift) - SUB_BUCKET_HALF_COUNT;
+    }
+
+    static long lowestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int offset = index - SUB_BUCKET_COUNT;
+        int shift = offset / SUB_BUCKET_HALF_COUNT + 1;
+        return (long) (offset % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT) << shift;
+    }
+
+    static long highestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+        return lowestValueAt(index) + (1L << shift) - 1;
+    }
+
+    static long medianValueAt(int index) {
+        long lowest = lowestValueAt(index);
+        return lowest + (highestValueAt(index) - lowest + 1) / 2;
+    }
+
+    static int bucketCount() {
+        return BUCKET_COUNT;
+    }
+
+    long countAt(int index) {
+        return this.counts[index];
+    }
+
+    /**
+     * @param nanos response time in nanoseconds
+     */
+    public void record(long nanos) {
+        this.record(nanos, 1);
+    }
+
+    /**
+     * @param nanos response time in nanoseconds
+     * @param count number of requests which took this long
+     */
+    public void record(long nanos, long count) {
+        if (count <= 0) {
+            return;
+        }
+        long value = Math.min(Math.max(nanos, 0), MAX_TRACKABLE_NANOS);
+        this.counts[indexOf(value)] += count;
+        this.totalCount += count;
+        if (value < this.minValue) {
+            this.minValue = value;
+        }
+        if (value > this.maxValue) {
+            this.maxValue = value;
+        }
+    }
+
+    public void merge(LatencyHistogram other) {
+        if (other.totalCount == 0) {
+            return;
+        }
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            this.counts[i] += other.counts[i];
+        }
+        this.totalCount += other.totalCount;
+        this.minValue = Math.min(this.minValue, other.minValue);
+        this.maxValue = Math.max(this.maxValue, other.maxValue);
+    }
+
+    public void reset() {
+        if (this.totalCount > 0) {
+            Arrays.fill(this.counts, 0);
+            this.totalCount = 0;
+            this.minValue = Long.MAX_VALUE;
+            this.maxValue = 0;
+        }
+    }
+
+    public boolean isEmpty() {
+        return this.totalCount == 0;
+    }
+
+    public long getTotalCount() {
+        return this.totalCount;
+    }
+
+    /**
+     * @return the smallest recorded value in nanoseconds, or 0 if nothing was recorded
+     */
+    public long getMinValue() {
+        return this.totalCount == 0 ? 0 : this.minValue;
+    }
+
+    /**
+     * @return the largest recorded value in nanoseconds
+     */
+    public long getMaxValue() {
+        return this.maxValue;
+    }
+
+    /**
+     * Get the value that the given percentage of recorded values are less than or equivalent to.
+     *
+     * @param percentile between 0 and 100, like 99.9
+     * @return the value in nanoseconds, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (this.totalCount == 0) {
+            return 0;
+        }
+        double clamped = Math.min(Math.max(percentile, 0), 100);
+        long target = Math.max(1, (long) Math.ceil(clamped / 100 * this.totalCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += this.counts[i];
+            if (seen >= target) {
+                return Math.max(this.getMinValue(), Math.min(highestValueAt(i), this.maxValue));
+            }
+        }
+        return this.maxValue;
+    }
+
+    /**
+     * Like {@link #getValueAtPercentile(double)}, converted to the given unit.
+     *
+     * @param percentile between 0 and 100, like 99.9
+     * @param unit       unit of the result
+     * @return the value in the given unit
+     */
+    public long getValueAtPercentile(double percentile, TimeUnit unit) {
+        return unit.convert(this.getValueAtPercentile(percentile), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{count=" + this.totalCount
+            + ", p50=" + this.getValueAtPercentile(50)
+            + ", p90=" + this.getValueAtPercentile(90)
+            + ", p99=" + this.getValueAtPercentile(99)
+            + ", p99.9=" + this.getValueAtPercentile(99.9)
+            + ", max=" + this.maxValue + "}";
+    }
+}
@@ -0,0 +1,26 @@
+package com.github.myzhan.locust4j.stats;
+
+/**
+ * What {@link Stats} does with a test result when its bounded queue is full, because the stats thread falls behind.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+public enum OverflowPolicy {
+    /**
+     * The recording thread waits until there is room, no result is lost but the generated load slows down.
+     */
+    BLOCK,
+
+    /**
+     * The result is dropped and counted, the count is reported to the master as num_dropped_events.
+     */
+    DROP,
+
+    /**
+     * The result isn't queued but still counted against its request, so numbers of requests and failures, total
+     * response time and content length stay exact, while response time distribution and error messages are sampled
+     * from the queued results. The count is reported to the master as num_sampled_events.
+     */
+    SAMPLE,
+}
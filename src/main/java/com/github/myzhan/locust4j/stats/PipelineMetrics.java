@@ -0,0 +1,100 @@
+package com.github.myzhan.locust4j.stats;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of how well locust4j itself keeps up with the test results. When it lags, the RPS shown by the master
+ * is lower than the real one.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+public final class PipelineMetrics {
+
+    /**
+     * Test results waiting longer than this mean the stats thread can't keep up.
+     */
+    public static final long LAG_THRESHOLD_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * More messages than this waiting for the sender mean it can't keep up.
+     */
+    public static final int LAG_THRESHOLD_MESSAGES = 10;
+
+    private final int queueDepth;
+    private final long oldestPendingNanos;
+    private final double eventsPerSecond;
+    private final long reportSerializationNanos;
+    private final int messageBacklog;
+
+    PipelineMetrics(int queueDepth, long oldestPendingNanos, double eventsPerSecond, long reportSerializationNanos,
+                    int messageBacklog) {
+        this.queueDepth = queueDepth;
+        this.oldestPendingNanos = oldestPendingNanos;
+        this.eventsPerSecond = eventsPerSecond;
+        this.reportSerializationNanos = reportSerializationNanos;
+        this.messageBacklog = messageBacklog;
+    }
+
+    /**
+     * @return number of test results waiting in the queues of the stats thread
+     */
+    public int getQueueDepth() {
+        return this.queueDepth;
+    }
+
+    /**
+     * @return upper bound of how long the oldest waiting test result has waited, 0 if nothing is waiting
+     */
+    public long getOldestPendingNanos() {
+        return this.oldestPendingNanos;
+    }
+
+    /**
+     * @return test results processed per second by the stats thread, over the last report interval
+     */
+    public double getEventsPerSecond() {
+        return this.eventsPerSecond;
+    }
+
+    /**
+     * @return how long it took to serialize the last report
+     */
+    public long getReportSerializationNanos() {
+        return this.reportSerializationNanos;
+    }
+
+    /**
+     * @return number of reports and heartbeats waiting to be sent to the master
+     */
+    public int getMessageBacklog() {
+        return this.messageBacklog;
+    }
+
+    /**
+     * @return true if the stats thread or the sender can't keep up
+     */
+    public boolean isLagging() {
+        return this.oldestPendingNanos > LAG_THRESHOLD_NANOS || this.messageBacklog > LAG_THRESHOLD_MESSAGES;
+    }
+
+    /**
+     * @return the metrics as extra fields of a heartbeat, times are in millis
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> data = new LinkedHashMap<>(8);
+        data.put("stats_queue_depth", this.queueDepth);
+        data.put("stats_oldest_pending_ms", TimeUnit.NANOSECONDS.toMillis(this.oldestPendingNanos));
+        data.put("stats_events_per_second", Math.round(this.eventsPerSecond));
+        data.put("stats_serialization_ms", this.reportSerializationNanos / 1e6);
+        data.put("message_queue_backlog", this.messageBacklog);
+        data.put("lagging", this.isLagging());
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return this.toMap().toString();
+    }
+}
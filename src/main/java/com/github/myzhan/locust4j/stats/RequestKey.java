@@ -0,0 +1,200 @@
+package com.github.myzhan.locust4j.stats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link RequestKey} is a reusable handle of a request type and name.
+ * Resolve it once with {@link com.github.myzhan.locust4j.Locust#requestKey(String, String)}, keep it in a field, and
+ * record test results through it to avoid looking up and allocating things for every request.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+public final class RequestKey {
+
+    private final Stats stats;
+    private final int id;
+    private final String method;
+    private final String name;
+
+    /**
+     * Results which couldn't be queued under {@link OverflowPolicy#SAMPLE}, they are folded in when reporting.
+     */
+    private final LongAdder overflowRequests = new LongAdder();
+    private final LongAdder overflowFailures = new LongAdder();
+    private final LongAdder overflowResponseTime = new LongAdder();
+    private final LongAdder overflowContentLength = new LongAdder();
+
+    RequestKey(Stats stats, int id, String method, String name) {
+        this.stats = stats;
+        this.id = id;
+        this.method = method;
+        this.name = name;
+    }
+
+    /**
+     * Add a successful record.
+     *
+     * @param responseTime  how long does it take for a single test scenario, in millis
+     * @param contentLength content length in bytes
+     */
+    public void success(long responseTime, long contentLength) {
+        stats.recordSuccess(this, TimeUnit.MILLISECONDS.toNanos(responseTime), contentLength);
+    }
+
+    /**
+     * Add a successful record with a high-resolution response time.
+     *
+     * @param responseTimeNanos how long does it take for a single test scenario, in nanoseconds
+     * @param contentLength     content length in bytes
+     */
+    public void successNanos(long responseTimeNanos, long contentLength) {
+        stats.recordSuccess(this, responseTimeNanos, contentLength);
+    }
+
+    /**
+     * Add a failed record.
+     *
+     * @param responseTime how long does it take for a single test scenario, in millis
+     * @param error        error message
+     */
+    public void failure(long responseTime, String error) {
+        stats.recordFailure(this, TimeUnit.MILLISECONDS.toNanos(responseTime), error);
+    }
+
+    /**
+     * Add a failed record with a high-resolution response time.
+     *
+     * @param responseTimeNanos how long does it take for a single test scenario, in nanoseconds
+     * @param error             error message
+     */
+    public void failureNanos(long responseTimeNanos, String error) {
+        stats.recordFailure(this, responseTimeNanos, error);
+    }
+
+    /**
+     * Run the task and record how long it takes with {@link System#nanoTime()}. If the task throws, it's recorded as
+     * a failure with the exception as the error message, and the exception isn't rethrown.
+     *
+     * @param task the task to time
+     * @return true if the task succeeded
+     * @since 2.3.0
+     */
+    public boolean time(TimedTask task) {
+        long start = stats.startNanos();
+        long[] missed = stats.takeMissed();
+        try {
+            task.run();
+        } catch (Exception ex) {
+            return this.failed(start, missed, ex);
+        }
+        long elapsed = System.nanoTime() - start;
+        this.successNanos(elapsed, 0);
+        stats.recordMissed(this, missed, elapsed, 0, null);
+        return true;
+    }
+
+    /**
+     * Like {@link #time(TimedTask)}, but passes a context to the task, so the task needn't capture anything.
+     *
+     * @param context the argument of the task
+     * @param task    the task to time
+     * @param <C>     type of the context
+     * @return true if the task succeeded
+     * @since 2.3.0
+     */
+    public <C> boolean time(C context, TimedConsumer<C> task) {
+        long start = stats.startNanos();
+        long[] missed = stats.takeMissed();
+        try {
+            task.accept(context);
+        } catch (Exception ex) {
+            return this.failed(start, missed, ex);
+        }
+        long elapsed = System.nanoTime() - start;
+        this.successNanos(elapsed, 0);
+        stats.recordMissed(this, missed, elapsed, 0, null);
+        return true;
+    }
+
+    private boolean failed(long start, long[] missed, Exception ex) {
+        long elapsed = System.nanoTime() - start;
+        if (ex instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+        }
+        String error = ex.toString();
+        this.failureNanos(elapsed, error);
+        stats.recordMissed(this, missed, elapsed, 0, error);
+        return false;
+    }
+
+    /**
+     * Create a timer of this request, keep it and restart it for every request.
+     *
+     * @return a new timer, not started
+     * @since 2.3.0
+     */
+    public RequestTimer newTimer() {
+        return new RequestTimer(this);
+    }
+
+    long startNanos() {
+        return stats.startNanos();
+    }
+
+    long[] takeMissed() {
+        return stats.takeMissed();
+    }
+
+    void recordMissed(long[] missed, long responseTimeNanos, long contentLength, String error) {
+        stats.recordMissed(this, missed, responseTimeNanos, contentLength, error);
+    }
+
+    void overflow(long responseTimeNanos, long contentLength, boolean failed) {
+        this.overflow(1, responseTimeNanos, contentLength, failed);
+    }
+
+    /**
+     * Count results which weren't queued, they are folded into the table when it's reported.
+     *
+     * @param requests          number of results
+     * @param responseTimeNanos sum of their response times
+     * @param contentLength     sum of their content lengths
+     * @param failed            whether they all failed
+     */
+    void overflow(long requests, long responseTimeNanos, long contentLength, boolean failed) {
+        overflowRequests.add(requests);
+        overflowResponseTime.add(responseTimeNanos);
+        overflowContentLength.add(contentLength);
+        if (failed) {
+            overflowFailures.add(requests);
+        }
+    }
+
+    void drainOverflow(StatsTable table) {
+        long requests = overflowRequests.sumThenReset();
+        if (requests == 0) {
+            return;
+        }
+        table.logSampled(this, requests, overflowFailures.sumThenReset(), overflowResponseTime.sumThenReset(),
+            overflowContentLength.sumThenReset());
+    }
+
+    int getId() {
+        return id;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + name;
+    }
+}
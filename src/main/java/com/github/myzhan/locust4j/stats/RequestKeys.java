@@ -0,0 +1,131 @@
+package com.github.myzhan.locust4j.stats;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * {@link RequestKeys} interns request types and names into {@link RequestKey}s with dense ids, which are used to
+ * index entries in {@link StatsTable}. Looking up a registered key doesn't allocate.
+ * Once the number of keys reaches the cap, new request types and names are folded into a single {@link #OTHER} key,
+ * so a test which puts something like user ids into names can't grow the stats without bound.
+ *
+ * @author myzhan
+ */
+class RequestKeys {
+
+    static final String OTHER = "<other>";
+
+    private final Map<String, Map<String, RequestKey>> keys = new ConcurrentHashMap<>();
+    private volatile RequestKey[] byId = new RequestKey[16];
+    private volatile int nextId = 0;
+    private volatile int maxKeys = Integer.MAX_VALUE;
+    private volatile RequestKey other;
+    /**
+     * Request types and names folded since last time, so every one of them is counted once.
+     */
+    private final Map<String, Set<String>> folded = new ConcurrentHashMap<>();
+
+    void setMaxKeys(int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * @return number of distinct request types and names folded into the {@link #OTHER} key since last time
+     */
+    long sumFoldedThenReset() {
+        long sum = 0;
+        for (String method : this.folded.keySet()) {
+            Set<String> names = this.folded.remove(method);
+            if (null != names) {
+                sum += names.size();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Get the key of a request type and name, registering it if it's new.
+     *
+     * @param stats the stats which new keys record into
+     */
+    RequestKey get(Stats stats, String method, String name) {
+        RequestKey key = this.find(method, name);
+        if (null != key) {
+            return key;
+        }
+        if (this.nextId >= this.maxKeys) {
+            return this.fold(stats, method, name);
+        }
+        return register(stats, method, name);
+    }
+
+    /**
+     * Look up a key without registering it, so queries neither take up the cap nor count as folded.
+     *
+     * @return null if the key isn't registered
+     */
+    RequestKey find(String method, String name) {
+        Map<String, RequestKey> byName = keys.get(method);
+        return null == byName ? null : byName.get(name);
+    }
+
+    private RequestKey fold(Stats stats, String method, String name) {
+        this.folded.computeIfAbsent(method, m -> ConcurrentHashMap.newKeySet()).add(name);
+        RequestKey key = this.other;
+        if (null == key) {
+            synchronized (this) {
+                key = this.other;
+                if (null == key) {
+                    key = this.add(stats, OTHER, OTHER);
+                    this.other = key;
+                }
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Get a registered key by its id. Ids travel through rings published after the key was registered, so the key is
+     * always visible here.
+     */
+    RequestKey get(int id) {
+        return byId[id];
+    }
+
+    void forEach(Consumer<RequestKey> action) {
+        RequestKey[] keys = byId;
+        int size = Math.min(nextId, keys.length);
+        for (int id = 0; id < size; id++) {
+            action.accept(keys[id]);
+        }
+    }
+
+    private synchronized RequestKey register(Stats stats, String method, String name) {
+        Map<String, RequestKey> byName = keys.get(method);
+        RequestKey key = null == byName ? null : byName.get(name);
+        if (null != key) {
+            return key;
+        }
+        if (nextId >= maxKeys) {
+            return this.fold(stats, method, name);
+        }
+        return this.add(stats, method, name);
+    }
+
+    private synchronized RequestKey add(Stats stats, String method, String name) {
+        int id = nextId;
+        RequestKey[] keys = byId;
+        if (id >= keys.length) {
+            keys = Arrays.copyOf(keys, keys.length * 2);
+        }
+        RequestKey key = new RequestKey(stats, id, method, name);
+        keys[id] = key;
+        byId = keys;
+        nextId = id + 1;
+        this.keys.computeIfAbsent(method, m -> new ConcurrentHashMap<>()).put(name, key);
+        return key;
+    }
+}
@@ -0,0 +1,76 @@
+package com.github.myzhan.locust4j.stats;
+
+/**
+ * A reusable timer of a {@link RequestKey}, for requests that can't be wrapped in a lambda, or that need to report
+ * a content length. Measured with {@link System#nanoTime()}, from the intended start time of the permit if
+ * coordinated omission correction is enabled.
+ * It isn't thread-safe, use one timer per thread or task.
+ *
+ * <pre>
+ *     timer.start();
+ *     Response response = client.call(request);
+ *     timer.success(response.length());
+ * </pre>
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+public final class RequestTimer {
+
+    private final RequestKey key;
+    private long startNanos;
+    /**
+     * Permits missed before the timed request, see {@link Stats#takeMissed()}.
+     */
+    private long[] missed;
+
+    RequestTimer(RequestKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Start or restart timing.
+     *
+     * @return this timer
+     */
+    public RequestTimer start() {
+        this.startNanos = this.key.startNanos();
+        this.missed = this.key.takeMissed();
+        return this;
+    }
+
+    /**
+     * @return nanoseconds since the timer was started
+     */
+    public long elapsedNanos() {
+        return System.nanoTime() - this.startNanos;
+    }
+
+    /**
+     * Record a successful request which took since the timer was started.
+     *
+     * @param contentLength content length in bytes
+     */
+    public void success(long contentLength) {
+        long elapsed = this.elapsedNanos();
+        this.key.successNanos(elapsed, contentLength);
+        this.key.recordMissed(this.missed, elapsed, contentLength, null);
+        this.missed = null;
+    }
+
+    /**
+     * Record a failed request which took since the timer was started.
+     *
+     * @param error error message
+     */
+    public void failure(String error) {
+        long elapsed = this.elapsedNanos();
+        this.key.failureNanos(elapsed, error);
+        this.key.recordMissed(this.missed, elapsed, 0, error);
+        this.missed = null;
+    }
+
+    public RequestKey getKey() {
+        return this.key;
+    }
+}
@@ -0,0 +1,131 @@
+package com.github.myzhan.locust4j.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link ResultRing} is a bounded multi-producer/single-consumer ring of preallocated result slots.
+ * Slots are plain arrays of primitives, so publishing a result doesn't allocate.
+ *
+ * Every slot carries a sequence number, producers claim a position by CAS on the tail and publish the slot by
+ * advancing its sequence, the consumer releases it for the next lap after reading.
+ *
+ * @author myzhan
+ */
+class ResultRing {
+
+    /**
+     * Receives results drained from the ring.
+     */
+    interface Handler {
+        void onResult(int keyId, long responseTime, long contentLength, String error);
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final int[] keyIds;
+    private final long[] responseTimes;
+    private final long[] contentLengths;
+    private final String[] errors;
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * Only the consumer writes head, it's volatile to read the size from other threads.
+     */
+    private volatile long head;
+
+    ResultRing(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("The capacity of ring must be a power of two, got " + capacity);
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        this.keyIds = new int[capacity];
+        this.responseTimes = new long[capacity];
+        this.contentLengths = new long[capacity];
+        this.errors = new String[capacity];
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Publish a result, it never blocks.
+     *
+     * @return false if the ring is full
+     */
+    boolean offer(int keyId, long responseTime, long contentLength, String error) {
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) (position & mask);
+            long difference = sequences.getAcquire(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+        keyIds[index] = keyId;
+        responseTimes[index] = responseTime;
+        contentLengths[index] = contentLength;
+        errors[index] = error;
+        // a volatile write, so a following read of the consumer's sleeping flag can't be reordered before it.
+        sequences.set(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Hand at most limit results to the handler, must only be called by the consumer.
+     *
+     * @return number of drained results
+     */
+    int drain(Handler handler, int limit) {
+        long position = head;
+        int drained = 0;
+        try {
+            while (drained < limit) {
+                int index = (int) (position & mask);
+                if (sequences.getAcquire(index) != position + 1) {
+                    break;
+                }
+                int keyId = keyIds[index];
+                long responseTime = responseTimes[index];
+                long contentLength = contentLengths[index];
+                String error = errors[index];
+                errors[index] = null;
+                // release the slot before handling, so a failing handler can't wedge the ring.
+                sequences.setRelease(index, position + capacity);
+                position++;
+                drained++;
+                handler.onResult(keyId, responseTime, contentLength, error);
+            }
+        } finally {
+            head = position;
+        }
+        return drained;
+    }
+
+    /**
+     * @return true if the next slot isn't published yet, must only be called by the consumer
+     */
+    boolean isEmpty() {
+        long position = head;
+        return sequences.get((int) (position & mask)) != position + 1;
+    }
+
+    int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    int capacity() {
+        return capacity;
+    }
+}
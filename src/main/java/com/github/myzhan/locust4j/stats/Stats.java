@@ -1,5 +1,6 @@
 package com.github.myzhan.locust4j.stats;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -7,22 +8,38 @@ import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
 import java.util.function.UnaryOperator;
-import java.util.stream.Collectors;
 
+import com.github.myzhan.locust4j.jfr.ReportEvent;
+import com.github.myzhan.locust4j.jfr.RequestEvent;
+import com.github.myzhan.locust4j.message.GrowableBufferOutput;
+import com.github.myzhan.locust4j.message.PackedList;
+import com.github.myzhan.locust4j.message.PackedMap;
 import com.github.myzhan.locust4j.utils.Utils;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Stats collects test results from reportSuccessQueue and reportFailureQueue and reports to Runner every 3 seconds.
+ * Stats collects test results from successRing and failureRing and reports to Runner every 3 seconds.
+ * Response times are kept in nanoseconds internally and reported to the master in millis.
  *
  * @author myzhan
  */
@@ -30,35 +47,144 @@ public class Stats implements Runnable {
 
     private static final Logger logger = LoggerFactory.getLogger(Stats.class);
 
-    private Map<String, StatsEntry> entries;
-    private Map<String, StatsError> errors;
-    private StatsEntry total;
+    /**
+     * Default number of slots in each ring of test results.
+     */
+    public static final int DEFAULT_RING_CAPACITY = 65536;
+    /**
+     * How long a recording thread parks before retrying when the ring is full and the policy is BLOCK.
+     */
+    private static final long BLOCK_BACKOFF_NANOS = 50_000;
+    /**
+     * Max number of results drained from each ring before the stats thread looks at its control queues.
+     */
+    private static final int DRAIN_BATCH_SIZE = 4096;
+    /**
+     * Max number of missed permits recorded one by one after a stall, the rest are recorded as one weighted result.
+     */
+    private static final long MAX_MISSED_SAMPLES = 100;
+    /**
+     * Default caps of distinct request types and names, and of distinct errors.
+     */
+    private static final int DEFAULT_MAX_ENTRIES = Integer.parseInt(Utils.getSystemEnvWithDefault(
+        "LOCUST_MAX_STATS_ENTRIES", "10000"));
+    private static final int DEFAULT_MAX_ERRORS = Integer.parseInt(Utils.getSystemEnvWithDefault(
+        "LOCUST_MAX_STATS_ERRORS", "1000"));
+
+    /**
+     * The table written by the stats thread, it's swapped for a spare one at every report tick and the snapshot is
+     * serialized by the reporter thread, so ingestion doesn't stall while serializing.
+     */
+    private volatile StatsTable table;
+    private final Queue<StatsTable> spareTables = new ConcurrentLinkedQueue<>();
+    /**
+     * Reports are packed into a reused buffer, guarded by itself.
+     */
+    private final GrowableBufferOutput reportOutput = new GrowableBufferOutput(8192);
+    private final MessagePacker reportPacker = MessagePack.newDefaultPacker(reportOutput);
+    private final RequestKeys requestKeys;
+
+    /**
+     * In striped mode, every thread records into its own shard, which are merged into the table when reporting.
+     * Virtual threads share a few shards by thread id instead, there may be one per user.
+     */
+    private volatile boolean striped;
+    private final List<Shard> shards;
+    private final ThreadLocal<Shard> localShard;
+    private final AtomicReferenceArray<Shard> virtualShards =
+        new AtomicReferenceArray<>(Runtime.getRuntime().availableProcessors() * 2);
 
-    private final ConcurrentLinkedQueue<RequestSuccess> reportSuccessQueue;
-    private final ConcurrentLinkedQueue<RequestFailure> reportFailureQueue;
+    private volatile boolean histogramEnabled;
+    private volatile int maxErrors = DEFAULT_MAX_ERRORS;
+    private volatile boolean errorNormalization;
+    private volatile boolean coordinatedOmissionCorrection;
+    /**
+     * Intended start time, missed permits and the span they were missed over, of the next timed request of each
+     * thread, set from the rate limiter.
+     */
+    private final ThreadLocal<long[]> intendedStart = ThreadLocal.withInitial(() -> new long[3]);
+    /**
+     * High-resolution histograms accumulated across report intervals, for querying percentiles locally.
+     * Guarded by itself.
+     */
+    private final Map<RequestKey, LatencyHistogram> cumulativeHistograms = new HashMap<>();
+    private final LatencyHistogram cumulativeTotalHistogram = new LatencyHistogram();
+
+    private final ResultRing successRing;
+    private final ResultRing failureRing;
+    private final ResultRing.Handler successHandler;
+    private final ResultRing.Handler failureHandler;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private final LongAdder droppedEvents = new LongAdder();
+    private final LongAdder sampledEvents = new LongAdder();
     private final ConcurrentLinkedQueue<Boolean> clearStatsQueue;
     private final ConcurrentLinkedQueue<Boolean> timeToReportQueue;
     private final BlockingQueue<Map<String, Object>> messageToRunnerQueue;
+    private final List<Consumer<Map<String, Object>>> reportListeners = new CopyOnWriteArrayList<>();
+    /**
+     * Where reports go, they are queued to messageToRunnerQueue if it's not set.
+     */
+    private volatile Consumer<Map<String, Object>> reportSink;
+    private volatile IntSupplier sinkBacklog = () -> 0;
+    /**
+     * Self-instrumentation. The stats thread writes the time it last caught up with the rings and the number of
+     * processed results, the reporter thread writes the serialization time.
+     */
+    private volatile long caughtUpNanos = System.nanoTime();
+    private volatile long processedEvents;
+    private long rateSinceNanos = System.nanoTime();
+    private long rateSinceEvents;
+    private volatile double eventsPerSecond;
+    private volatile long reportSerializationNanos;
 
     private ExecutorService threadPool;
+    private ExecutorService reporter;
     private final AtomicInteger threadNumber;
-    private final Object lock = new Object();
+    /**
+     * The stats thread parks when there is nothing to do, recording threads only unpark it when it's sleeping.
+     */
+    private volatile Thread consumer;
+    private final AtomicBoolean sleeping = new AtomicBoolean(false);
 
     /**
      * Probably, you don't need to create Stats unless you are writing unit tests.
      */
     public Stats() {
-        reportSuccessQueue = new ConcurrentLinkedQueue<>();
-        reportFailureQueue = new ConcurrentLinkedQueue<>();
+        this(DEFAULT_RING_CAPACITY);
+    }
+
+    /**
+     * Create Stats with bounded rings of test results.
+     *
+     * @param ringCapacity number of slots in each ring, must be a power of two
+     * @since 2.3.0
+     */
+    public Stats(int ringCapacity) {
+        successRing = new ResultRing(ringCapacity);
+        failureRing = new ResultRing(ringCapacity);
         clearStatsQueue = new ConcurrentLinkedQueue<>();
         timeToReportQueue = new ConcurrentLinkedQueue<>();
         messageToRunnerQueue = new LinkedBlockingDeque<>();
         threadNumber = new AtomicInteger();
 
-        this.entries = new HashMap<>(8);
-        this.errors = new HashMap<>(8);
-        this.total = new StatsEntry("Total");
-        this.total.reset();
+        this.table = new StatsTable();
+        this.table.setMaxErrors(maxErrors);
+        this.requestKeys = new RequestKeys();
+        this.requestKeys.setMaxKeys(DEFAULT_MAX_ENTRIES);
+        this.shards = new CopyOnWriteArrayList<>();
+        this.localShard = ThreadLocal.withInitial(() -> {
+            Shard shard = this.newShard(Thread.currentThread());
+            this.shards.add(shard);
+            return shard;
+        });
+        this.successHandler = (keyId, responseTime, contentLength, error) ->
+            table.logRequest(requestKeys.get(keyId), responseTime, contentLength);
+        this.failureHandler = (keyId, responseTime, contentLength, error) -> {
+            RequestKey key = requestKeys.get(keyId);
+            StatsTable current = table;
+            current.logRequest(key, responseTime, 0);
+            current.logError(key, error);
+        };
     }
 
     public static Stats getInstance() {
@@ -76,12 +202,22 @@ public class Stats implements Runnable {
             }
         });
 
+        reporter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setName(String.format("locust4j-stats#%d#reporter", threadNumber.getAndIncrement()));
+                return thread;
+            }
+        });
+
         threadPool.submit(new StatsTimer(this));
         threadPool.submit(this);
     }
 
     public void stop() {
         threadPool.shutdownNow();
+        reporter.shutdownNow();
     }
 
 
@@ -97,55 +233,482 @@ public class Stats implements Runnable {
 
 
 
+    /**
+     * Enable or disable the striped recording mode.
+     * In striped mode, {@link #recordSuccess} and {@link #recordFailure} aggregate into a shard owned by the calling
+     * thread instead of queueing a record for the stats thread, so the cost of recording scales with cores.
+     *
+     * @param striped set true to record into per-thread shards
+     * @since 2.3.0
+     */
+    public void setStriped(boolean striped) {
+        this.striped = striped;
+    }
+
+    public boolean isStriped() {
+        return this.striped;
+    }
+
+    /**
+     * Set what to do with a test result when the ring is full, defaults to {@link OverflowPolicy#BLOCK}.
+     *
+     * @param overflowPolicy the policy
+     * @since 2.3.0
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Enable or disable high-resolution response times. When enabled, every entry records response times into a
+     * {@link LatencyHistogram} with nanosecond resolution, the response_times map reported to the master is derived
+     * from it, and percentiles can be queried locally with {@link #getHistogram(String, String)}.
+     *
+     * @param histogramEnabled set true to record into high-resolution histograms
+     * @since 2.3.0
+     */
+    public void setHistogramEnabled(boolean histogramEnabled) {
+        this.histogramEnabled = histogramEnabled;
+        this.table.setHistograms(histogramEnabled);
+        for (Shard shard : this.shards) {
+            shard.table.setHistograms(histogramEnabled);
+        }
+    }
+
+    public boolean isHistogramEnabled() {
+        return this.histogramEnabled;
+    }
+
+    /**
+     * Cap the number of distinct request types and names, defaults to 10000 or LOCUST_MAX_STATS_ENTRIES.
+     * Once it's reached, results of new requests are counted under the request type and name "&lt;other&gt;", and
+     * reported as num_folded_entries, which counts each of them once per report.
+     *
+     * @param maxEntries max number of distinct request types and names
+     * @since 2.3.0
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.requestKeys.setMaxKeys(maxEntries);
+    }
+
+    /**
+     * Cap the number of distinct errors in a report interval, defaults to 1000 or LOCUST_MAX_STATS_ERRORS.
+     * Once it's reached, new errors are counted as "&lt;other&gt;", and reported as num_folded_errors.
+     *
+     * @param maxErrors max number of distinct errors
+     * @since 2.3.0
+     */
+    public void setMaxErrors(int maxErrors) {
+        this.maxErrors = maxErrors;
+        this.table.setMaxErrors(maxErrors);
+        for (Shard shard : this.shards) {
+            shard.table.setMaxErrors(maxErrors);
+        }
+    }
+
+    /**
+     * Replace UUIDs and numbers in error messages with placeholders, so errors which only differ in things like
+     * timestamps or ids are counted as the same error.
+     *
+     * @param errorNormalization set true to normalize error messages
+     * @since 2.3.0
+     */
+    public void setErrorNormalization(boolean errorNormalization) {
+        this.errorNormalization = errorNormalization;
+    }
+
+    /**
+     * Measure the first request timed after a permit is acquired from the intended start time of the permit, instead
+     * of when the thread got it. When the system under test stalls, the recorded response times then include the
+     * time requests would have waited in an open-loop client, instead of hiding the stall. Permits of the periods
+     * the stall took whole are recorded with the first request afterwards.
+     * It only affects the timing APIs, like {@link RequestKey#time(TimedTask)} and {@link RequestTimer}.
+     *
+     * @param coordinatedOmissionCorrection set true to measure from intended start times
+     * @since 2.3.0
+     */
+    public void setCoordinatedOmissionCorrection(boolean coordinatedOmissionCorrection) {
+        this.coordinatedOmissionCorrection = coordinatedOmissionCorrection;
+    }
+
+    public boolean isCoordinatedOmissionCorrection() {
+        return this.coordinatedOmissionCorrection;
+    }
+
+    /**
+     * Set the intended start time of the next request timed by the calling thread, it's ignored unless coordinated
+     * omission correction is enabled.
+     *
+     * @param intendedStartNanos intended start time in {@link System#nanoTime()}, or 0 if unknown
+     * @since 2.3.0
+     */
+    public void setIntendedStartNanos(long intendedStartNanos) {
+        this.setIntendedStartNanos(intendedStartNanos, 0, 0);
+    }
+
+    /**
+     * Like {@link #setIntendedStartNanos(long)}, with the permits the rate limiter missed before, because the system
+     * under test stalled for whole periods. The next timed request also records a response time for each of them,
+     * as if they were sent on schedule and completed with it, so the stall shows in the percentiles.
+     *
+     * @param intendedStartNanos intended start time in {@link System#nanoTime()}, or 0 if unknown
+     * @param missedPermits      number of permits missed before
+     * @param missedSpanNanos    how long before the intended start time the missed permits were intended to start
+     * @since 2.3.0
+     */
+    public void setIntendedStartNanos(long intendedStartNanos, long missedPermits, long missedSpanNanos) {
+        if (this.coordinatedOmissionCorrection) {
+            long[] intended = this.intendedStart.get();
+            intended[0] = intendedStartNanos;
+            intended[1] = intendedStartNanos == 0 ? 0 : missedPermits;
+            intended[2] = missedSpanNanos;
+        }
+    }
+
+    /**
+     * Get the start time of a timed request, it consumes the intended start time of the calling thread.
+     * Missed permits are left for {@link #takeMissed()}.
+     */
+    long startNanos() {
+        long now = System.nanoTime();
+        if (!this.coordinatedOmissionCorrection) {
+            return now;
+        }
+        long[] intended = this.intendedStart.get();
+        long intendedStart = intended[0];
+        intended[0] = 0;
+        long start = intendedStart != 0 && intendedStart - now < 0 ? intendedStart : now;
+        if (intended[1] > 0) {
+            // from the start of the request back to the first missed permit
+            intended[2] = start - (intendedStart - intended[2]);
+        }
+        return start;
+    }
+
+    /**
+     * Take the permits missed before the request just started by the calling thread.
+     *
+     * @return null if none was missed, or the number of missed permits, how long before the start of the request
+     *     the first of them was intended to start, and the interval between them
+     */
+    long[] takeMissed() {
+        long[] intended = this.intendedStart.get();
+        long count = intended[1];
+        if (count <= 0) {
+            return null;
+        }
+        intended[1] = 0;
+        return new long[]{count, intended[2], intended[2] / count};
+    }
+
+    /**
+     * Record response times for the missed permits, as if they were sent on schedule and completed with the request
+     * which took the given response time. Up to {@link #MAX_MISSED_SAMPLES} of them are recorded one by one, spread
+     * over the missed span, and the rest as one weighted result. They are left out of the flight recorder, and never
+     * wait for a full ring.
+     *
+     * @param missed as returned by {@link #takeMissed()}, or null
+     */
+    void recordMissed(RequestKey key, long[] missed, long responseTimeNanos, long contentLength, String error) {
+        if (null == missed) {
+            return;
+        }
+        if (null != error && this.errorNormalization) {
+            error = ErrorNormalizer.normalize(error);
+        }
+        long count = missed[0];
+        long samples = Math.min(count, MAX_MISSED_SAMPLES);
+        long stride = (count / samples) * missed[2];
+        long sampledNanos = 0;
+        for (long i = 0; i < samples; i++) {
+            long missedResponseTimeNanos = responseTimeNanos + missed[1] - i * stride;
+            sampledNanos += missedResponseTimeNanos;
+            this.recordMissed(key, 1, missedResponseTimeNanos, contentLength, error, true);
+        }
+        long rest = count - samples;
+        if (rest > 0) {
+            // the mean of all the missed permits, less the ones recorded one by one
+            double mean = responseTimeNanos + missed[1] - missed[2] * (count - 1) / 2.0;
+            long restNanos = Math.max(0, (long) (mean * count) - sampledNanos);
+            this.recordMissed(key, rest, restNanos, contentLength * rest, error, false);
+        }
+    }
+
+    private void recordMissed(RequestKey key, long requests, long responseTimeNanos, long contentLength,
+                              String error, boolean single) {
+        if (this.striped) {
+            Shard shard = this.shard();
+            shard.lock.lock();
+            try {
+                if (single) {
+                    shard.table.logRequest(key, responseTimeNanos, contentLength);
+                    if (null != error) {
+                        shard.table.logError(key, error);
+                    }
+                } else {
+                    shard.table.logSampled(key, requests, null == error ? 0 : requests, responseTimeNanos,
+                        contentLength);
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+            return;
+        }
+        ResultRing ring = null == error ? successRing : failureRing;
+        if (single && ring.offer(key.getId(), responseTimeNanos, contentLength, error)) {
+            wakeMeUp();
+            return;
+        }
+        // weighted, or the ring is full
+        key.overflow(requests, responseTimeNanos, contentLength, null != error);
+    }
+
+    /**
+     * Get the high-resolution response times of a request, accumulated since the stats were cleared.
+     * Results are accumulated when they are reported, every 3 seconds.
+     *
+     * @param requestType request type
+     * @param name        request name
+     * @return a copy of the histogram, or null if nothing was recorded with histograms enabled
+     * @since 2.3.0
+     */
+    public LatencyHistogram getHistogram(String requestType, String name) {
+        RequestKey key = this.requestKeys.find(requestType, name);
+        if (null == key) {
+            return null;
+        }
+        synchronized (this.cumulativeHistograms) {
+            LatencyHistogram histogram = this.cumulativeHistograms.get(key);
+            return null == histogram ? null : new LatencyHistogram(histogram);
+        }
+    }
+
+    /**
+     * Like {@link #getHistogram(String, String)}, but of all the requests.
+     *
+     * @return a copy of the histogram
+     * @since 2.3.0
+     */
+    public LatencyHistogram getTotalHistogram() {
+        synchronized (this.cumulativeHistograms) {
+            return new LatencyHistogram(this.cumulativeTotalHistogram);
+        }
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return this.overflowPolicy;
+    }
+
+    /**
+     * Get the reusable handle of a request type and name, the same instance is returned for the same arguments.
+     *
+     * @param requestType locust use request type to classify test results
+     * @param name        like request type, used by locust to classify test results
+     * @return the handle
+     * @since 2.3.0
+     */
+    public RequestKey requestKey(String requestType, String name) {
+        return this.requestKeys.get(this, requestType, name);
+    }
+
+    /**
+     * Record a successful request, either into the calling thread's shard or through the queue of the stats thread.
+     *
+     * @param requestType   locust use request type to classify test results
+     * @param name          like request type, used by locust to classify test results
+     * @param responseTime  response time in millis
+     * @param contentLength content length in bytes
+     * @since 2.3.0
+     */
+    public void recordSuccess(String requestType, String name, long responseTime, long contentLength) {
+        this.recordSuccess(this.requestKey(requestType, name), TimeUnit.MILLISECONDS.toNanos(responseTime),
+            contentLength);
+    }
+
+    void recordSuccess(RequestKey key, long responseTimeNanos, long contentLength) {
+        RequestEvent.commit(key.getMethod(), key.getName(), responseTimeNanos, null);
+        if (this.striped) {
+            Shard shard = this.shard();
+            shard.lock.lock();
+            try {
+                shard.table.logRequest(key, responseTimeNanos, contentLength);
+            } finally {
+                shard.lock.unlock();
+            }
+            return;
+        }
+        this.publish(successRing, key, responseTimeNanos, contentLength, null);
+    }
+
+    /**
+     * Record a failed request, either into the calling thread's shard or through the queue of the stats thread.
+     *
+     * @param requestType  locust use request type to classify test results
+     * @param name         like request type, used by locust to classify test results
+     * @param responseTime response time in millis
+     * @param error        error message
+     * @since 2.3.0
+     */
+    public void recordFailure(String requestType, String name, long responseTime, String error) {
+        this.recordFailure(this.requestKey(requestType, name), TimeUnit.MILLISECONDS.toNanos(responseTime), error);
+    }
+
+    void recordFailure(RequestKey key, long responseTimeNanos, String error) {
+        if (this.errorNormalization) {
+            error = ErrorNormalizer.normalize(error);
+        }
+        RequestEvent.commit(key.getMethod(), key.getName(), responseTimeNanos, error);
+        if (this.striped) {
+            Shard shard = this.shard();
+            shard.lock.lock();
+            try {
+                shard.table.logRequest(key, responseTimeNanos, 0);
+                shard.table.logError(key, error);
+            } finally {
+                shard.lock.unlock();
+            }
+            return;
+        }
+        this.publish(failureRing, key, responseTimeNanos, 0, error);
+    }
+
+    private void publish(ResultRing ring, RequestKey key, long responseTimeNanos, long contentLength, String error) {
+        if (ring.offer(key.getId(), responseTimeNanos, contentLength, error)) {
+            wakeMeUp();
+            return;
+        }
+        switch (this.overflowPolicy) {
+            case BLOCK -> {
+                do {
+                    wakeMeUp();
+                    LockSupport.parkNanos(BLOCK_BACKOFF_NANOS);
+                    if (Thread.currentThread().isInterrupted()) {
+                        droppedEvents.increment();
+                        return;
+                    }
+                } while (!ring.offer(key.getId(), responseTimeNanos, contentLength, error));
+                wakeMeUp();
+            }
+            case DROP -> droppedEvents.increment();
+            case SAMPLE -> {
+                sampledEvents.increment();
+                key.overflow(responseTimeNanos, contentLength, null != error);
+            }
+        }
+    }
+
     public Queue<Boolean> getClearStatsQueue() {
         return this.clearStatsQueue;
     }
 
+    /**
+     * Listen to every report, it's called by the reporter thread with the same data that is sent to the master.
+     *
+     * @param listener the listener, it must not modify the data
+     * @since 2.3.0
+     */
+    public void addReportListener(Consumer<Map<String, Object>> listener) {
+        this.reportListeners.add(listener);
+    }
+
+    public void removeReportListener(Consumer<Map<String, Object>> listener) {
+        this.reportListeners.remove(listener);
+    }
+
+    /**
+     * @return number of test results waiting in the queues of the stats thread
+     * @since 2.3.0
+     */
+    public int getQueueDepth() {
+        return this.successRing.size() + this.failureRing.size();
+    }
+
+    /**
+     * @return how well the stats pipeline keeps up with the test results
+     * @since 2.3.0
+     */
+    public PipelineMetrics getPipelineMetrics() {
+        int queueDepth = this.getQueueDepth();
+        long oldestPendingNanos = queueDepth == 0 ? 0 : Math.max(0, System.nanoTime() - this.caughtUpNanos);
+        return new PipelineMetrics(queueDepth, oldestPendingNanos, this.eventsPerSecond,
+            this.reportSerializationNanos, this.messageToRunnerQueue.size() + this.sinkBacklog.getAsInt());
+    }
+
+    /**
+     * Hand every report to the sink on the reporter thread, instead of queueing it to the message queue.
+     *
+     * @param sink    the sink, or null to queue reports again
+     * @param backlog number of messages the sink hasn't sent yet, it's reported in {@link PipelineMetrics}
+     * @since 2.3.0
+     */
+    public void setReportSink(Consumer<Map<String, Object>> sink, IntSupplier backlog) {
+        this.sinkBacklog = null == backlog ? () -> 0 : backlog;
+        this.reportSink = sink;
+    }
+
+    private void deliver(Map<String, Object> data) {
+        Consumer<Map<String, Object>> sink = this.reportSink;
+        if (null == sink) {
+            this.messageToRunnerQueue.add(data);
+            return;
+        }
+        try {
+            sink.accept(data);
+        } catch (Exception ex) {
+            logger.error("Error in the report sink", ex);
+        }
+    }
+
     public BlockingQueue<Map<String, Object>> getMessageToRunnerQueue() {
         return this.messageToRunnerQueue;
     }
 
+    /**
+     * Wake up the stats thread if it's sleeping. It's cheap when the stats thread is busy, only a volatile read.
+     */
     public void wakeMeUp() {
-        synchronized (lock) {
-            lock.notifyAll();
+        if (sleeping.get() && sleeping.compareAndSet(true, false)) {
+            Thread thread = this.consumer;
+            if (null != thread) {
+                LockSupport.unpark(thread);
+            }
         }
     }
 
+    private boolean hasPendingWork() {
+        return !successRing.isEmpty() || !failureRing.isEmpty()
+            || !clearStatsQueue.isEmpty() || !timeToReportQueue.isEmpty();
+    }
+
     private void sleep() {
-        synchronized (lock) {
-            try {
-                lock.wait();
-            } catch (Exception ex) {
-                logger.error(ex.getMessage());
-            }
+        sleeping.set(true);
+        // Check again after announcing sleeping, anything published before a producer read the flag is seen here.
+        if (this.hasPendingWork()) {
+            sleeping.set(false);
+            return;
         }
+        LockSupport.park(this);
+        sleeping.set(false);
+        // whatever woke us up was published just now
+        this.caughtUpNanos = System.nanoTime();
     }
 
     /**
      * User code reports successful and failed records to Stats.
-     * If the sending speed is too fast, single-threaded stats may be a bottleneck and reports wrong RPS.
+     * Results are drained in batches. If the sending speed is too fast, single-threaded stats may still be a
+     * bottleneck, use the striped mode then.
      */
     @Override
     public void run() {
         String name = Thread.currentThread().getName();
         Thread.currentThread().setName(name + "stats");
+        this.consumer = Thread.currentThread();
 
-        while (true) {
+        while (!Thread.currentThread().isInterrupted()) {
 
             boolean allEmpty = true;
 
-            RequestSuccess successMessage = reportSuccessQueue.poll();
-            if (successMessage != null) {
-                this.logRequest(successMessage.getRequestType(), successMessage.getName(),
-                    successMessage.getResponseTime()
-                    , successMessage.getContentLength());
-                allEmpty = false;
-            }
-
-            RequestFailure failureMessage = reportFailureQueue.poll();
-            if (null != failureMessage) {
-                this.logRequest(failureMessage.getRequestType(), failureMessage.getName(), failureMessage.getResponseTime(), 0);
-                this.logError(failureMessage.getRequestType(), failureMessage.getName(), failureMessage.getError());
+            if (this.drainRings(DRAIN_BATCH_SIZE) > 0) {
                 allEmpty = false;
             }
 
@@ -157,8 +720,15 @@ public class Stats implements Runnable {
 
             Boolean timeToReport = timeToReportQueue.poll();
             if (null != timeToReport) {
-                Map<String, Object> data = this.collectReportData();
-                messageToRunnerQueue.add(data);
+                StatsTable snapshot = this.swapTable();
+                long dropped = this.droppedEvents.sumThenReset();
+                long sampled = this.sampledEvents.sumThenReset();
+                long folded = this.requestKeys.sumFoldedThenReset();
+                if (null != reporter) {
+                    reporter.execute(() -> this.deliver(this.report(snapshot, dropped, sampled, folded)));
+                } else {
+                    this.deliver(this.report(snapshot, dropped, sampled, folded));
+                }
                 allEmpty = false;
             }
 
@@ -170,69 +740,276 @@ public class Stats implements Runnable {
     }
 
     protected StatsEntry getTotal() {
-        return this.total;
+        return this.table.getTotal();
     }
 
     protected StatsEntry get(String name, String method) {
-        StatsEntry entry = this.entries.get(name + method);
-        if (null == entry) {
-            entry = new StatsEntry(name, method);
-            entry.reset();
-            this.entries.put(name + method, entry);
-        }
-        return entry;
+        return this.table.get(this.requestKey(method, name));
     }
 
     public void logRequest(String method, String name, long responseTime, long contentLength) {
-        this.total.log(responseTime, contentLength);
-        this.get(name, method).log(responseTime, contentLength);
+        this.table.logRequest(this.requestKey(method, name), TimeUnit.MILLISECONDS.toNanos(responseTime),
+            contentLength);
     }
 
     public void logError(String method, String name, String error) {
-        this.total.logError(error);
-        this.get(name, method).logError(error);
+        if (this.errorNormalization) {
+            error = ErrorNormalizer.normalize(error);
+        }
+        this.table.logError(this.requestKey(method, name), error);
+    }
 
-        String key = Utils.md5(method, name, error);
-        if (null == key) {
-            key = method + name + error;
+    public void clearAll() {
+        this.table.clear();
+        synchronized (this.cumulativeHistograms) {
+            this.cumulativeHistograms.clear();
+            this.cumulativeTotalHistogram.reset();
         }
-        StatsError entry = this.errors.get(key);
-        if (null == entry) {
-            entry = new StatsError(name, method, error);
-            this.errors.put(key, entry);
+        for (Shard shard : this.shards) {
+            shard.lock.lock();
+            try {
+                shard.table.clear();
+            } finally {
+                shard.lock.unlock();
+            }
         }
-        entry.occured();
     }
 
-    public void clearAll() {
-        this.total = new StatsEntry("Total");
-        this.total.reset();
-        this.entries = new HashMap<>(8);
-        this.errors = new HashMap<>(8);
+    private Shard newShard(Thread owner) {
+        Shard shard = new Shard(owner);
+        shard.table.setHistograms(this.histogramEnabled);
+        shard.table.setMaxErrors(this.maxErrors);
+        return shard;
+    }
+
+    private Shard shard() {
+        Thread thread = Thread.currentThread();
+        if (!thread.isVirtual()) {
+            return this.localShard.get();
+        }
+        int index = (int) Math.floorMod(thread.threadId(), (long) this.virtualShards.length());
+        Shard shard = this.virtualShards.get(index);
+        if (null == shard) {
+            Shard created = this.newShard(null);
+            if (this.virtualShards.compareAndSet(index, null, created)) {
+                this.shards.add(created);
+            }
+            shard = this.virtualShards.get(index);
+        }
+        return shard;
+    }
+
+    /**
+     * Merge all the shards into the table, shards of dead threads are dropped once they are drained.
+     */
+    private void mergeShards() {
+        for (Shard shard : this.shards) {
+            shard.lock.lock();
+            try {
+                this.processedEvents += shard.table.getTotal().getNumRequests();
+                this.table.drain(shard.table);
+            } finally {
+                shard.lock.unlock();
+            }
+            if (null != shard.owner && !shard.owner.isAlive()) {
+                this.shards.remove(shard);
+            }
+        }
+    }
+
+    /**
+     * Accumulate the histograms of this report interval, before entries are reset.
+     */
+    private void accumulateHistograms(StatsTable snapshot) {
+        if (!this.histogramEnabled) {
+            return;
+        }
+        synchronized (this.cumulativeHistograms) {
+            for (StatsEntry entry : snapshot.entries()) {
+                LatencyHistogram histogram = entry.getHistogram();
+                if (null != histogram && !histogram.isEmpty()) {
+                    this.cumulativeHistograms
+                        .computeIfAbsent(this.requestKey(entry.getMethod(), entry.getName()),
+                            key -> new LatencyHistogram())
+                        .merge(histogram);
+                }
+            }
+            LatencyHistogram total = snapshot.getTotal().getHistogram();
+            if (null != total) {
+                this.cumulativeTotalHistogram.merge(total);
+            }
+        }
     }
 
     protected List<Map<String, Object>> serializeStats() {
-        return this.entries.values().stream()
+        return serializeStats(this.table);
+    }
+
+    private static List<Map<String, Object>> serializeStats(StatsTable table) {
+        return table.entries().stream()
             .filter(StatsEntry::canReport)
             .map(StatsEntry::getStrippedReport)
             .toList();
     }
 
     public Map<String, Map<String, Object>> serializeErrors() {
-        return this.errors.entrySet().stream()
-            .collect(Collectors.toMap(Map.Entry::getKey,v -> v.getValue().toMap()));
+        return this.table.serializeErrors();
     }
 
-    protected Map<String, Object> collectReportData() {
+    /**
+     * Log test results queued in the rings, must only be called by the stats thread.
+     *
+     * @param limit max number of results to drain from each ring
+     * @return number of drained results
+     */
+    private int drainRings(int limit) {
+        int drained = successRing.drain(successHandler, limit) + failureRing.drain(failureHandler, limit);
+        if (drained > 0) {
+            this.processedEvents += drained;
+            if (successRing.isEmpty() && failureRing.isEmpty()) {
+                this.caughtUpNanos = System.nanoTime();
+            }
+        }
+        return drained;
+    }
+
+    private void updateEventsPerSecond() {
+        long now = System.nanoTime();
+        long events = this.processedEvents;
+        if (now > this.rateSinceNanos) {
+            this.eventsPerSecond = (events - this.rateSinceEvents) * 1e9 / (now - this.rateSinceNanos);
+        }
+        this.rateSinceNanos = now;
+        this.rateSinceEvents = events;
+    }
+
+    /**
+     * Fold in the results that were counted but not queued under {@link OverflowPolicy#SAMPLE}.
+     */
+    private void mergeOverflow() {
+        this.requestKeys.forEach(key -> key.drainOverflow(this.table));
+    }
+
+    /**
+     * Collect everything recorded so far into the table, then swap it for a spare one, must only be called by the
+     * stats thread.
+     *
+     * @return the swapped out table
+     */
+    private StatsTable swapTable() {
+        this.drainRings(Integer.MAX_VALUE);
+        this.mergeShards();
+        this.mergeOverflow();
+        this.updateEventsPerSecond();
+        StatsTable snapshot = this.table;
+        StatsTable fresh = this.spareTables.poll();
+        if (null == fresh) {
+            fresh = new StatsTable();
+        }
+        fresh.setHistograms(this.histogramEnabled);
+        fresh.setMaxErrors(this.maxErrors);
+        this.table = fresh;
+        return snapshot;
+    }
+
+    /**
+     * Serialize a swapped out table, it's reset and becomes a spare table afterwards.
+     * Entries, the total and errors are packed straight into msgpack, listeners decode them only if they read them.
+     */
+    private Map<String, Object> report(StatsTable snapshot, long droppedEvents, long sampledEvents,
+                                       long foldedEntries) {
+        ReportEvent event = ReportEvent.start();
+        long start = System.nanoTime();
+        this.accumulateHistograms(snapshot);
+        PackedList stats;
+        PackedMap total;
+        PackedMap errors;
+        synchronized (this.reportOutput) {
+            try {
+                stats = this.packStats(snapshot);
+                total = this.packTotal(snapshot);
+                errors = this.packErrors(snapshot);
+            } catch (IOException ex) {
+                this.reportPacker.clear();
+                throw new IllegalStateException("Failed to pack the report", ex);
+            }
+        }
         var data = Map.of(
-            "stats",       this.serializeStats(),
-            "stats_total", this.total.getStrippedReport(),
-            "errors",      this.serializeErrors()
+            "stats",              stats,
+            "stats_total",        total,
+            "errors",             errors,
+            "num_dropped_events", droppedEvents,
+            "num_sampled_events", sampledEvents,
+            "num_folded_entries", foldedEntries,
+            "num_folded_errors",  snapshot.sumFoldedErrorsThenReset()
         );
-        errors.clear();
+        this.reportSerializationNanos = System.nanoTime() - start;
+        ReportEvent.finish(event, stats.size(), errors.size());
+        snapshot.clearErrors();
+        this.spareTables.offer(snapshot);
+        for (Consumer<Map<String, Object>> listener : this.reportListeners) {
+            try {
+                listener.accept(data);
+            } catch (Exception ex) {
+                logger.error("Error in a report listener", ex);
+            }
+        }
         return data;
     }
 
+    private PackedList packStats(StatsTable snapshot) throws IOException {
+        List<StatsEntry> entries = snapshot.entries();
+        int count = 0;
+        for (StatsEntry entry : entries) {
+            if (entry.canReport()) {
+                count++;
+            }
+        }
+        this.reportOutput.reset();
+        this.reportPacker.packArrayHeader(count);
+        for (StatsEntry entry : entries) {
+            if (entry.canReport()) {
+                entry.packStrippedReport(this.reportPacker);
+            }
+        }
+        this.reportPacker.flush();
+        return new PackedList(this.reportOutput.toByteArray(), count);
+    }
+
+    private PackedMap packTotal(StatsTable snapshot) throws IOException {
+        this.reportOutput.reset();
+        StatsEntry total = snapshot.getTotal();
+        total.packStrippedReport(this.reportPacker);
+        this.reportPacker.flush();
+        return new PackedMap(this.reportOutput.toByteArray(), StatsEntry.REPORT_SIZE);
+    }
+
+    private PackedMap packErrors(StatsTable snapshot) throws IOException {
+        this.reportOutput.reset();
+        int count = snapshot.packErrors(this.reportPacker);
+        this.reportPacker.flush();
+        return new PackedMap(this.reportOutput.toByteArray(), count);
+    }
+
+    protected Map<String, Object> collectReportData() {
+        return this.report(this.swapTable(), this.droppedEvents.sumThenReset(), this.sampledEvents.sumThenReset(),
+            this.requestKeys.sumFoldedThenReset());
+    }
+
+    /**
+     * A shard is written by its owner thread and drained by the stats thread, the lock is almost never contended.
+     * Shards of virtual threads have no owner and are never dropped.
+     */
+    private static class Shard {
+        private final Thread owner;
+        private final StatsTable table = new StatsTable();
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private Shard(Thread owner) {
+            this.owner = owner;
+        }
+    }
+
     private static class StatsInstanceHolder {
         private static final Stats INSTANCE = new Stats();
     }
@@ -266,41 +1043,61 @@ public class Stats implements Runnable {
 
     public class Failures {
         public void offer(RequestFailure requestFailure) {
-            reportFailureQueue.offer(requestFailure);
+            recordFailure(requestFailure.getRequestType(), requestFailure.getName(),
+                requestFailure.getResponseTime(), requestFailure.getError());
         }
         public void offer(UnaryOperator<RequestFailure.Builder> spec) {
             offer(RequestFailure.create(spec));
         }
         public void add(RequestFailure requestFailure) {
-            reportFailureQueue.add(requestFailure);
+            offer(requestFailure);
         }
         public void add(UnaryOperator<RequestFailure.Builder> spec) {
             add(RequestFailure.create(spec));
         }
         public RequestFailure pop() {
-            return reportFailureQueue.poll();
+            RequestFailure[] popped = new RequestFailure[1];
+            failureRing.drain((keyId, responseTime, contentLength, error) -> {
+                RequestKey key = requestKeys.get(keyId);
+                popped[0] = RequestFailure.create(s -> s
+                    .requestType(key.getMethod())
+                    .name(key.getName())
+                    .responseTime(TimeUnit.NANOSECONDS.toMillis(responseTime))
+                    .error(error));
+            }, 1);
+            return popped[0];
         }
         public void clear() {
-            reportFailureQueue.clear();
+            failureRing.drain((keyId, responseTime, contentLength, error) -> { }, Integer.MAX_VALUE);
         }
     }
 
     public class Successes {
         public void offer(RequestSuccess requestSuccess) {
-            reportSuccessQueue.offer(requestSuccess);
+            recordSuccess(requestSuccess.getRequestType(), requestSuccess.getName(),
+                requestSuccess.getResponseTime(), requestSuccess.getContentLength());
         }
         public void offer(UnaryOperator<RequestSuccess.Builder> spec) {
             offer(RequestSuccess.create(spec));
         }
         public void add(RequestSuccess requestSuccess) {
-            reportSuccessQueue.add(requestSuccess);
+            offer(requestSuccess);
         }
         public void add(UnaryOperator<RequestSuccess.Builder> spec) {
             add(RequestSuccess.create(spec));
         }
         public RequestSuccess pop() {
-            return reportSuccessQueue.poll();
+            RequestSuccess[] popped = new RequestSuccess[1];
+            successRing.drain((keyId, responseTime, contentLength, error) -> {
+                RequestKey key = requestKeys.get(keyId);
+                popped[0] = RequestSuccess.create(s -> s
+                    .requestType(key.getMethod())
+                    .name(key.getName())
+                    .responseTime(TimeUnit.NANOSECONDS.toMillis(responseTime))
+                    .contentLength(contentLength));
+            }, 1);
+            return popped[0];
         }
     }
 
-}
\ No newline at end of file
+}
@@ -1,26 +1,39 @@
 package com.github.myzhan.locust4j.stats;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
 import com.github.myzhan.locust4j.message.LongIntMap;
 import com.github.myzhan.locust4j.utils.Utils;
+import org.msgpack.core.MessagePacker;
 
 /**
  * @author myzhan
  */
 public class StatsEntry {
 
+    /**
+     * Number of fields in a report.
+     */
+    static final int REPORT_SIZE = 14;
+
+    private static final long NANOS_PER_MILLI = 1_000_000L;
+
     private final String name;
     private final String method;
     private long numRequests;
     private long numFailures;
-    private long totalResponseTime;
-    private long minResponseTime;
-    private long maxResponseTime;
+    private long totalResponseTimeNanos;
+    private long minResponseTimeNanos;
+    private long maxResponseTimeNanos;
     private LongIntMap numReqsPerSec;
     private LongIntMap numFailPerSec;
     private LongIntMap responseTimes;
+    /**
+     * Optional high-resolution response times, the response_times map of locust is derived from it when reporting.
+     */
+    private LatencyHistogram histogram;
     private long totalContentLength;
     private long startTime;
     private long lastRequestTimestamp;
@@ -38,20 +51,57 @@ public class StatsEntry {
         this.startTime = Utils.currentTimeInSeconds();
         this.numRequests = 0;
         this.numFailures = 0;
-        this.totalResponseTime = 0;
-        this.responseTimes = new LongIntMap();
-        this.minResponseTime = 0;
-        this.maxResponseTime = 0;
+        this.totalResponseTimeNanos = 0;
+        this.minResponseTimeNanos = 0;
+        this.maxResponseTimeNanos = 0;
         this.lastRequestTimestamp = Utils.currentTimeInSeconds();
-        this.numReqsPerSec = new LongIntMap();
-        this.numFailPerSec = new LongIntMap();
         this.totalContentLength = 0;
+        if (null == this.responseTimes) {
+            this.responseTimes = new LongIntMap();
+            this.numReqsPerSec = new LongIntMap();
+            this.numFailPerSec = new LongIntMap();
+        } else {
+            // entries are reset every report interval, keep the backing arrays of histograms.
+            this.responseTimes.clear();
+            this.numReqsPerSec.clear();
+            this.numFailPerSec.clear();
+        }
+        if (null != this.histogram) {
+            this.histogram.reset();
+        }
+    }
+
+    /**
+     * Record response times into a {@link LatencyHistogram} with nanosecond resolution, instead of the coarse buckets
+     * of locust. It takes about 18KB per entry.
+     */
+    public void enableHistogram() {
+        if (null == this.histogram) {
+            this.histogram = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @return the high-resolution histogram of this report interval, or null if it isn't enabled
+     */
+    public LatencyHistogram getHistogram() {
+        return this.histogram;
     }
 
     public void log(long responseTime, long contentLength) {
+        this.logNanos(responseTime * NANOS_PER_MILLI, contentLength);
+    }
+
+    /**
+     * Like {@link #log(long, long)}, but the response time is in nanoseconds.
+     *
+     * @param responseTimeNanos response time in nanoseconds
+     * @param contentLength     content length in bytes
+     */
+    public void logNanos(long responseTimeNanos, long contentLength) {
         this.numRequests++;
         this.logTimeOfRequest();
-        this.logResponseTime(responseTime);
+        this.logResponseTimeNanos(responseTimeNanos);
         this.totalContentLength += contentLength;
     }
 
@@ -62,33 +112,83 @@ public class StatsEntry {
     }
 
     public void logResponseTime(long responseTime) {
-        this.totalResponseTime += responseTime;
+        this.logResponseTimeNanos(responseTime * NANOS_PER_MILLI);
+    }
+
+    public void logResponseTimeNanos(long responseTimeNanos) {
+        this.totalResponseTimeNanos += responseTimeNanos;
+
+        if (this.minResponseTimeNanos == 0) {
+            this.minResponseTimeNanos = responseTimeNanos;
+        }
 
-        if (this.minResponseTime == 0) {
-            this.minResponseTime = responseTime;
+        if (responseTimeNanos < this.minResponseTimeNanos) {
+            this.minResponseTimeNanos = responseTimeNanos;
         }
 
-        if (responseTime < this.minResponseTime) {
-            this.minResponseTime = responseTime;
+        if (responseTimeNanos > this.maxResponseTimeNanos) {
+            this.maxResponseTimeNanos = responseTimeNanos;
         }
 
-        if (responseTime > this.maxResponseTime) {
-            this.maxResponseTime = responseTime;
+        if (null != this.histogram) {
+            this.histogram.record(responseTimeNanos);
+        } else {
+            this.responseTimes.add(roundResponseTime(toMillis(responseTimeNanos)));
         }
+    }
 
-        long roundedResponseTime;
+    private static long toMillis(long nanos) {
+        return (nanos + NANOS_PER_MILLI / 2) / NANOS_PER_MILLI;
+    }
 
+    private static long roundResponseTime(long responseTime) {
         if (responseTime < 100) {
-            roundedResponseTime = responseTime;
+            return responseTime;
         } else if (responseTime < 1000) {
-            roundedResponseTime = Utils.round(responseTime, -1);
+            return Utils.round(responseTime, -1);
         } else if (responseTime < 10000) {
-            roundedResponseTime = Utils.round(responseTime, -2);
+            return Utils.round(responseTime, -2);
         } else {
-            roundedResponseTime = Utils.round(responseTime, -3);
+            return Utils.round(responseTime, -3);
         }
+    }
 
-        this.responseTimes.add(roundedResponseTime);
+    /**
+     * Account requests which were counted but not recorded one by one.
+     * Their response times are only known as a sum, so the distribution counts them at the mean.
+     *
+     * @param numRequests            number of requests, including failures
+     * @param numFailures            number of failures
+     * @param totalResponseTimeNanos sum of response times in nanoseconds
+     * @param totalContentLength     sum of content lengths in bytes
+     */
+    public void logSampledNanos(long numRequests, long numFailures, long totalResponseTimeNanos,
+                                long totalContentLength) {
+        if (numRequests <= 0) {
+            return;
+        }
+        long now = Utils.currentTimeInSeconds();
+        long meanResponseTime = totalResponseTimeNanos / numRequests;
+        if (this.numRequests == 0 || meanResponseTime < this.minResponseTimeNanos) {
+            this.minResponseTimeNanos = meanResponseTime;
+        }
+        if (meanResponseTime > this.maxResponseTimeNanos) {
+            this.maxResponseTimeNanos = meanResponseTime;
+        }
+        this.numRequests += numRequests;
+        this.numFailures += numFailures;
+        this.totalResponseTimeNanos += totalResponseTimeNanos;
+        this.totalContentLength += totalContentLength;
+        if (null != this.histogram) {
+            this.histogram.record(meanResponseTime, numRequests);
+        } else {
+            this.responseTimes.add(roundResponseTime(toMillis(meanResponseTime)), (int) numRequests);
+        }
+        this.numReqsPerSec.add(now, (int) numRequests);
+        if (numFailures > 0) {
+            this.numFailPerSec.add(now, (int) numFailures);
+        }
+        this.lastRequestTimestamp = now;
     }
 
     public void logError(String error) {
@@ -96,8 +196,56 @@ public class StatsEntry {
         this.numFailPerSec.add(Utils.currentTimeInSeconds());
     }
 
+    /**
+     * Merge the results recorded by another entry into this one.
+     *
+     * @param other the entry to merge, it won't be modified
+     */
+    public void merge(StatsEntry other) {
+        if (other.numRequests > 0) {
+            if (this.numRequests == 0 || other.minResponseTimeNanos < this.minResponseTimeNanos) {
+                this.minResponseTimeNanos = other.minResponseTimeNanos;
+            }
+            if (other.maxResponseTimeNanos > this.maxResponseTimeNanos) {
+                this.maxResponseTimeNanos = other.maxResponseTimeNanos;
+            }
+        }
+        this.numRequests += other.numRequests;
+        this.numFailures += other.numFailures;
+        this.totalResponseTimeNanos += other.totalResponseTimeNanos;
+        this.totalContentLength += other.totalContentLength;
+        this.responseTimes.merge(other.responseTimes);
+        if (null != other.histogram) {
+            if (null != this.histogram) {
+                this.histogram.merge(other.histogram);
+            } else {
+                deriveResponseTimes(other.histogram, this.responseTimes);
+            }
+        }
+        this.numReqsPerSec.merge(other.numReqsPerSec);
+        this.numFailPerSec.merge(other.numFailPerSec);
+        this.startTime = Math.min(this.startTime, other.startTime);
+        this.lastRequestTimestamp = Math.max(this.lastRequestTimestamp, other.lastRequestTimestamp);
+    }
+
+    /**
+     * Add the counts of a high-resolution histogram into the coarse buckets of locust.
+     */
+    private static void deriveResponseTimes(LatencyHistogram histogram, LongIntMap responseTimes) {
+        if (histogram.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < LatencyHistogram.bucketCount(); i++) {
+            long count = histogram.countAt(i);
+            if (count > 0) {
+                long responseTime = toMillis(LatencyHistogram.medianValueAt(i));
+                responseTimes.add(roundResponseTime(responseTime), (int) count);
+            }
+        }
+    }
+
     public Map<String, Object> serialize() {
-        Map<String, Object> result = new HashMap<>(13);
+        Map<String, Object> result = new HashMap<>(REPORT_SIZE);
         result.put("name", this.name);
         result.put("method", this.method);
         result.put("last_request_timestamp", this.lastRequestTimestamp);
@@ -107,11 +255,11 @@ public class StatsEntry {
         // num_none_requests is added to keep compatible with locust.
         result.put("num_none_requests", 0);
         result.put("num_failures", this.numFailures);
-        result.put("total_response_time", this.totalResponseTime);
-        result.put("max_response_time", this.maxResponseTime);
-        result.put("min_response_time", this.minResponseTime);
+        result.put("total_response_time", this.getTotalResponseTime());
+        result.put("max_response_time", this.getMaxResponseTime());
+        result.put("min_response_time", this.getMinResponseTime());
         result.put("total_content_length", this.totalContentLength);
-        result.put("response_times", this.responseTimes);
+        result.put("response_times", this.getResponseTimes());
         result.put("num_reqs_per_sec", this.numReqsPerSec);
         result.put("num_fail_per_sec", this.numFailPerSec);
         return result;
@@ -119,10 +267,42 @@ public class StatsEntry {
 
     public Map<String, Object> getStrippedReport() {
         Map<String, Object> report = this.serialize();
+        // reset() clears the histograms in place, the report keeps compact copies of them.
+        report.put("response_times", new LongIntMap(this.getResponseTimes()));
+        report.put("num_reqs_per_sec", new LongIntMap(this.numReqsPerSec));
+        report.put("num_fail_per_sec", new LongIntMap(this.numFailPerSec));
         this.reset();
         return report;
     }
 
+    /**
+     * Pack the same report as {@link #getStrippedReport()} straight into the packer, without building the map.
+     *
+     * @param packer where to write
+     * @throws IOException if it can't be written
+     */
+    void packStrippedReport(MessagePacker packer) throws IOException {
+        packer.packMapHeader(REPORT_SIZE);
+        packer.packString("name").packString(this.name);
+        packer.packString("method").packString(this.method);
+        packer.packString("last_request_timestamp").packLong(this.lastRequestTimestamp);
+        packer.packString("start_time").packLong(this.startTime);
+        packer.packString("num_requests").packLong(this.numRequests);
+        packer.packString("num_none_requests").packInt(0);
+        packer.packString("num_failures").packLong(this.numFailures);
+        packer.packString("total_response_time").packLong(this.getTotalResponseTime());
+        packer.packString("max_response_time").packLong(this.getMaxResponseTime());
+        packer.packString("min_response_time").packLong(this.getMinResponseTime());
+        packer.packString("total_content_length").packLong(this.totalContentLength);
+        packer.packString("response_times");
+        this.getResponseTimes().pack(packer);
+        packer.packString("num_reqs_per_sec");
+        this.numReqsPerSec.pack(packer);
+        packer.packString("num_fail_per_sec");
+        this.numFailPerSec.pack(packer);
+        this.reset();
+    }
+
     public String getName() {
         return name;
     }
@@ -140,19 +320,27 @@ public class StatsEntry {
     }
 
     public long getTotalResponseTime() {
-        return totalResponseTime;
+        return toMillis(totalResponseTimeNanos);
     }
 
     public long getMinResponseTime() {
-        return minResponseTime;
+        return toMillis(minResponseTimeNanos);
     }
 
     public long getMaxResponseTime() {
-        return maxResponseTime;
+        return toMillis(maxResponseTimeNanos);
     }
 
+    /**
+     * @return response times in the buckets of locust, derived from the high-resolution histogram if it's enabled
+     */
     public LongIntMap getResponseTimes() {
-        return responseTimes;
+        if (null == this.histogram || this.histogram.isEmpty()) {
+            return responseTimes;
+        }
+        LongIntMap derived = new LongIntMap(responseTimes);
+        deriveResponseTimes(this.histogram, derived);
+        return derived;
     }
 
     public long getTotalContentLength() {
@@ -1,8 +1,11 @@
 package com.github.myzhan.locust4j.stats;
 
-import java.util.HashMap;
+import java.io.IOException;
 import java.util.Map;
 
+import com.github.myzhan.locust4j.utils.Utils;
+import org.msgpack.core.MessagePacker;
+
 /**
  * @author myzhan
  */
@@ -11,6 +14,7 @@ public class StatsError {
     protected String method;
     protected String error;
     protected long occurrences;
+    private String key;
 
     protected StatsError(String name, String method, String error) {
         this.name = name;
@@ -22,6 +26,37 @@ public class StatsError {
         this.occurrences++;
     }
 
+    protected void merge(StatsError other) {
+        this.occurrences += other.occurrences;
+    }
+
+    /**
+     * Locust identifies an error by md5(method + name + error), it's calculated once and cached.
+     *
+     * @return the key of this error
+     */
+    protected String key() {
+        if (null == this.key) {
+            String md5 = Utils.md5(this.method, this.name, this.error);
+            this.key = null == md5 ? this.method + this.name + this.error : md5;
+        }
+        return this.key;
+    }
+
+    protected static StatsError combine(StatsError first, StatsError second) {
+        StatsError combined = new StatsError(first.name, first.method, first.error);
+        combined.occurrences = first.occurrences + second.occurrences;
+        return combined;
+    }
+
+    void pack(MessagePacker packer) throws IOException {
+        packer.packMapHeader(4);
+        packer.packString("name").packString(this.name);
+        packer.packString("method").packString(this.method);
+        packer.packString("error").packString(this.error);
+        packer.packString("occurrences").packLong(this.occurrences);
+    }
+
     protected Map<String, Object> toMap() {
         return Map.of(
             "name",        this.name,
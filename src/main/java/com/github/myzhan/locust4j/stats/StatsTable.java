@@ -0,0 +1,244 @@
+package com.github.myzhan.locust4j.stats;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.msgpack.core.MessagePacker;
+
+/**
+ * A {@link StatsTable} aggregates test results into entries, errors and the total entry.
+ * Entries are indexed by the id of their {@link RequestKey}, so recording into a table doesn't allocate once the
+ * entry exists.
+ * It isn't thread-safe, callers must confine it to a single thread or guard it with a lock.
+ *
+ * @author myzhan
+ */
+class StatsTable {
+
+    private StatsEntry[] entries;
+    private Map<String, StatsError>[] errors;
+    private StatsEntry total;
+    /**
+     * Set by other threads, entries pick it up the next time they are recorded.
+     */
+    private volatile boolean histograms;
+    /**
+     * Cap of distinct errors, new errors are counted as {@link RequestKeys#OTHER} once it's reached.
+     */
+    private volatile int maxErrors = Integer.MAX_VALUE;
+    private int numErrors;
+    private long foldedErrors;
+
+    StatsTable() {
+        this.entries = new StatsEntry[16];
+        this.errors = newErrors(16);
+        this.total = new StatsEntry("Total");
+        this.total.reset();
+    }
+
+    /**
+     * Record response times into high-resolution histograms, both existing and new entries pick it up the next time
+     * they are recorded.
+     */
+    void setHistograms(boolean histograms) {
+        this.histograms = histograms;
+    }
+
+    void setMaxErrors(int maxErrors) {
+        this.maxErrors = maxErrors;
+    }
+
+    /**
+     * @return number of errors counted as {@link RequestKeys#OTHER} since last time
+     */
+    long sumFoldedErrorsThenReset() {
+        long folded = this.foldedErrors;
+        this.foldedErrors = 0;
+        return folded;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, StatsError>[] newErrors(int size) {
+        return (Map<String, StatsError>[]) new Map<?, ?>[size];
+    }
+
+    StatsEntry getTotal() {
+        if (this.histograms) {
+            this.total.enableHistogram();
+        }
+        return this.total;
+    }
+
+    List<StatsEntry> entries() {
+        List<StatsEntry> result = new ArrayList<>(this.entries.length);
+        for (StatsEntry entry : this.entries) {
+            if (null != entry) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    StatsEntry get(RequestKey key) {
+        return this.get(key.getId(), key.getName(), key.getMethod());
+    }
+
+    private void ensureCapacity(int id) {
+        if (id >= this.entries.length) {
+            int size = Math.max(id + 1, this.entries.length * 2);
+            this.entries = Arrays.copyOf(this.entries, size);
+            this.errors = Arrays.copyOf(this.errors, size);
+        }
+    }
+
+    private StatsEntry get(int id, String name, String method) {
+        this.ensureCapacity(id);
+        StatsEntry entry = this.entries[id];
+        if (null == entry) {
+            entry = new StatsEntry(name, method);
+            entry.reset();
+            this.entries[id] = entry;
+        }
+        if (this.histograms) {
+            entry.enableHistogram();
+        }
+        return entry;
+    }
+
+    void logRequest(RequestKey key, long responseTimeNanos, long contentLength) {
+        this.getTotal().logNanos(responseTimeNanos, contentLength);
+        this.get(key).logNanos(responseTimeNanos, contentLength);
+    }
+
+    void logSampled(RequestKey key, long numRequests, long numFailures, long totalResponseTimeNanos,
+                    long totalContentLength) {
+        this.getTotal().logSampledNanos(numRequests, numFailures, totalResponseTimeNanos, totalContentLength);
+        this.get(key).logSampledNanos(numRequests, numFailures, totalResponseTimeNanos, totalContentLength);
+    }
+
+    void logError(RequestKey key, String error) {
+        this.getTotal().logError(error);
+        this.get(key).logError(error);
+
+        this.errorOf(key.getId(), key.getName(), key.getMethod(), error).occured();
+    }
+
+    private StatsError errorOf(int id, String name, String method, String error) {
+        this.ensureCapacity(id);
+        Map<String, StatsError> errorsOfKey = this.errors[id];
+        if (null == errorsOfKey) {
+            errorsOfKey = new HashMap<>(4);
+            this.errors[id] = errorsOfKey;
+        }
+        StatsError entry = errorsOfKey.get(error);
+        if (null == entry) {
+            if (this.numErrors >= this.maxErrors && !RequestKeys.OTHER.equals(error)) {
+                this.foldedErrors++;
+                error = RequestKeys.OTHER;
+                entry = errorsOfKey.get(error);
+            }
+            if (null == entry) {
+                entry = new StatsError(name, method, error);
+                errorsOfKey.put(error, entry);
+                this.numErrors++;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Serialize errors in the layout of locust, which are keyed by md5(method + name + error).
+     *
+     * @return errors keyed by md5
+     */
+    Map<String, Map<String, Object>> serializeErrors() {
+        Map<String, StatsError> byKey = this.errorsByKey();
+        Map<String, Map<String, Object>> result = new HashMap<>(byKey.size());
+        for (Map.Entry<String, StatsError> entry : byKey.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().toMap());
+        }
+        return result;
+    }
+
+    /**
+     * Pack the same errors as {@link #serializeErrors()} straight into the packer.
+     *
+     * @param packer where to write
+     * @return number of packed errors
+     * @throws IOException if they can't be written
+     */
+    int packErrors(MessagePacker packer) throws IOException {
+        Map<String, StatsError> byKey = this.errorsByKey();
+        packer.packMapHeader(byKey.size());
+        for (Map.Entry<String, StatsError> entry : byKey.entrySet()) {
+            packer.packString(entry.getKey());
+            entry.getValue().pack(packer);
+        }
+        return byKey.size();
+    }
+
+    private Map<String, StatsError> errorsByKey() {
+        Map<String, StatsError> byKey = new HashMap<>(8);
+        for (Map<String, StatsError> errorsOfKey : this.errors) {
+            if (null == errorsOfKey) {
+                continue;
+            }
+            for (StatsError error : errorsOfKey.values()) {
+                // different errors may share the same key because locust concatenates them before hashing.
+                byKey.merge(error.key(), error, StatsError::combine);
+            }
+        }
+        return byKey;
+    }
+
+    void clearErrors() {
+        for (Map<String, StatsError> errorsOfKey : this.errors) {
+            if (null != errorsOfKey) {
+                errorsOfKey.clear();
+            }
+        }
+        this.numErrors = 0;
+    }
+
+    /**
+     * Merge everything recorded in another table into this one, then reset the other table.
+     *
+     * @param other the table to drain
+     */
+    void drain(StatsTable other) {
+        for (int id = 0; id < other.entries.length; id++) {
+            StatsEntry entry = other.entries[id];
+            if (null != entry && entry.canReport()) {
+                this.get(id, entry.getName(), entry.getMethod()).merge(entry);
+                entry.reset();
+            }
+            Map<String, StatsError> errorsOfKey = other.errors[id];
+            if (null == errorsOfKey || errorsOfKey.isEmpty()) {
+                continue;
+            }
+            for (StatsError error : errorsOfKey.values()) {
+                this.errorOf(id, error.name, error.method, error.error).merge(error);
+            }
+            errorsOfKey.clear();
+        }
+        this.foldedErrors += other.foldedErrors;
+        other.foldedErrors = 0;
+        other.numErrors = 0;
+        if (other.total.canReport()) {
+            this.getTotal().merge(other.total);
+            other.total.reset();
+        }
+    }
+
+    void clear() {
+        this.total = new StatsEntry("Total");
+        this.total.reset();
+        Arrays.fill(this.entries, null);
+        Arrays.fill(this.errors, null);
+        this.numErrors = 0;
+    }
+}
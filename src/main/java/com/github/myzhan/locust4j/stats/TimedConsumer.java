@@ -0,0 +1,15 @@
+package com.github.myzhan.locust4j.stats;
+
+/**
+ * Like {@link TimedTask}, but takes a context argument, so a non-capturing lambda or method reference can be used
+ * and nothing is allocated per call.
+ *
+ * @param <C> type of the context
+ * @author myzhan
+ * @since 2.3.0
+ */
+@FunctionalInterface
+public interface TimedConsumer<C> {
+
+    void accept(C context) throws Exception;
+}
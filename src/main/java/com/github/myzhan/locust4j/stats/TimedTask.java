@@ -0,0 +1,13 @@
+package com.github.myzhan.locust4j.stats;
+
+/**
+ * A piece of work timed by {@link RequestKey#time(TimedTask)}, it fails by throwing.
+ *
+ * @author myzhan
+ * @since 2.3.0
+ */
+@FunctionalInterface
+public interface TimedTask {
+
+    void run() throws Exception;
+}
@@ -0,0 +1,48 @@
+package com.github.myzhan.locust4j.jfr;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author myzhan
+ */
+public class RequestEventTest {
+
+    @Test
+    public void TestLatencyThreshold() throws Exception {
+        Path file = Files.createTempFile("locust4j", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("locust4j.Request").with("latencyThreshold", "10 ms");
+            recording.start();
+            RequestEvent.commit("http", "fast", TimeUnit.MILLISECONDS.toNanos(1), null);
+            RequestEvent.commit("http", "slow", TimeUnit.MILLISECONDS.toNanos(50), "timeout");
+            recording.stop();
+            recording.dump(file);
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            assertThat(events).hasSize(1);
+            assertThat(events.get(0).getString("name")).isEqualTo("slow");
+            assertThat(events.get(0).getString("error")).isEqualTo("timeout");
+            assertThat(events.get(0).getDuration("responseTime").toMillis()).isEqualTo(50);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void TestParseThreshold() {
+        assertThat(LatencyThresholdSetting.parse("0")).isEqualTo(0);
+        assertThat(LatencyThresholdSetting.parse("20 ms")).isEqualTo(TimeUnit.MILLISECONDS.toNanos(20));
+        assertThat(LatencyThresholdSetting.parse("500 us")).isEqualTo(TimeUnit.MICROSECONDS.toNanos(500));
+        assertThat(LatencyThresholdSetting.parse("1 s")).isEqualTo(TimeUnit.SECONDS.toNanos(1));
+    }
+}
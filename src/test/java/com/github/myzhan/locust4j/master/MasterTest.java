@@ -0,0 +1,92 @@
+package com.github.myzhan.locust4j.master;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.github.myzhan.locust4j.message.LongIntMap;
+import com.github.myzhan.locust4j.message.Message;
+import com.github.myzhan.locust4j.rpc.ZeromqClient;
+import com.github.myzhan.locust4j.test.MessageAssert;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author myzhan
+ */
+public class MasterTest {
+
+    @Test
+    public void TestDistribute() {
+        List<Map<String, Integer>> distribution = Master.distribute(Map.of("a", 5, "b", 2), 3);
+
+        assertThat(distribution).containsExactly(
+            Map.of("a", 2, "b", 1),
+            Map.of("a", 2, "b", 0),
+            Map.of("a", 1, "b", 1));
+    }
+
+    @Test
+    public void TestMasterProtocol() throws Exception {
+        var port = ThreadLocalRandom.current().nextInt(1000) + 4096;
+        try (var master = new Master("127.0.0.1", port).start()) {
+            var first = new ZeromqClient("127.0.0.1", port, "first");
+            var second = new ZeromqClient("127.0.0.1", port, "second");
+            first.send(Message.create(s -> s.type("client_ready").nodeId("first")));
+            MessageAssert.assertThat(first.recv()).hasType("ack").data().containsEntry("index", 0);
+            second.send(Message.create(s -> s.type("client_ready").nodeId("second")));
+            MessageAssert.assertThat(second.recv()).hasType("ack").data().containsEntry("index", 1);
+
+            master.spawn("User", 5);
+            MessageAssert.assertThat(first.recv()).hasType("spawn").data()
+                .containsEntry("user_classes_count", Map.of("User", 3));
+            MessageAssert.assertThat(second.recv()).hasType("spawn").data()
+                .containsEntry("user_classes_count", Map.of("User", 2));
+
+            Map<String, Object> entry = Map.of(
+                "name", "/index",
+                "method", "GET",
+                "num_requests", 2,
+                "num_failures", 0,
+                "total_response_time", 30,
+                "min_response_time", 10,
+                "max_response_time", 20,
+                "response_times", new LongIntMap(10L, 20L));
+            for (var client : List.of(first, second)) {
+                String nodeID = client == first ? "first" : "second";
+                client.send(Message.create(s -> s
+                    .type("stats")
+                    .putData("stats", List.of(entry))
+                    .putData("stats_total", entry)
+                    .putData("errors", Map.of())
+                    .putData("user_count", client == first ? 3 : 2)
+                    .nodeId(nodeID)));
+            }
+            first.send(Message.create(s -> s.type("heartbeat").putData("current_cpu_usage", 10.0).nodeId("first")));
+            MessageAssert.assertThat(first.recv()).hasType("heartbeat");
+
+            // the workers may be handled by different aggregation threads
+            long deadline = System.currentTimeMillis() + 1000;
+            while (master.getStats().getNumReports() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(master.getStats().getNumReports()).isEqualTo(2);
+            assertThat(master.getStats().getNumRequests()).isEqualTo(4);
+            assertThat(master.getStats().getTotal())
+                .containsEntry("avg_response_time", 15L)
+                .containsEntry("p99", 20L);
+            assertThat(master.getUserCount()).isEqualTo(5);
+
+            // a worker which left sends its users to the others
+            second.send(Message.create(s -> s.type("quit").nodeId("second")));
+            MessageAssert.assertThat(first.recv()).hasType("spawn").data()
+                .containsEntry("user_classes_count", Map.of("User", 5));
+
+            master.stop();
+            MessageAssert.assertThat(first.recv()).hasType("stop");
+            first.close();
+            second.close();
+        }
+    }
+}
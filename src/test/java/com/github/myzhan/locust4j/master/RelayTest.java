@@ -0,0 +1,134 @@
+package com.github.myzhan.locust4j.master;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.github.myzhan.locust4j.message.LongIntMap;
+import com.github.myzhan.locust4j.message.Message;
+import com.github.myzhan.locust4j.rpc.SimulatedMaster;
+import com.github.myzhan.locust4j.rpc.ZeromqClient;
+import com.github.myzhan.locust4j.test.MessageAssert;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author myzhan
+ */
+public class RelayTest {
+
+    @Test
+    public void TestRelayMergesLocalWorkers() throws Exception {
+        var masterPort = ThreadLocalRandom.current().nextInt(1000) + 5120;
+        var relayPort = masterPort + 1000;
+        try (var master = new SimulatedMaster().bind("127.0.0.1", masterPort);
+             // reports are driven by the test instead of the interval
+             var relay = new Relay("127.0.0.1", masterPort, "127.0.0.1", relayPort, 0).start()) {
+            var first = new ZeromqClient("127.0.0.1", relayPort, "first");
+            var second = new ZeromqClient("127.0.0.1", relayPort, "second");
+            first.send(Message.create(s -> s.type("client_ready").nodeId("first")));
+            MessageAssert.assertThat(first.recv()).hasType("ack");
+            second.send(Message.create(s -> s.type("client_ready").nodeId("second")));
+            MessageAssert.assertThat(second.recv()).hasType("ack");
+
+            // the master only sees the relay
+            assertThat(master.awaitWorkers(1, Duration.ofSeconds(5))).isTrue();
+            master.spawn(5);
+            MessageAssert.assertThat(first.recv()).hasType("spawn").data()
+                .containsEntry("user_classes_count", Map.of("SimulatedUser", 3));
+            MessageAssert.assertThat(second.recv()).hasType("spawn").data()
+                .containsEntry("user_classes_count", Map.of("SimulatedUser", 2));
+
+            // the relay completes spawning only when every local worker does
+            first.send(Message.create(s -> s
+                .type("spawning_complete")
+                .putData("count", 3)
+                .putData("user_classes_count", Map.of("SimulatedUser", 3))
+                .nodeId("first")));
+            assertThat(master.awaitSpawned(Duration.ofMillis(500))).isFalse();
+            second.send(Message.create(s -> s
+                .type("spawning_complete")
+                .putData("count", 2)
+                .putData("user_classes_count", Map.of("SimulatedUser", 2))
+                .nodeId("second")));
+            assertThat(master.awaitSpawned(Duration.ofSeconds(5))).isTrue();
+            assertThat(master.getUserCount()).isEqualTo(5);
+
+            CountDownLatch buffered = new CountDownLatch(2);
+            relay.getMaster().addStatsListener(data -> buffered.countDown());
+
+            Map<String, Object> entry = Map.of(
+                "name", "/index",
+                "method", "GET",
+                "num_requests", 2,
+                "num_failures", 1,
+                "min_response_time", 10,
+                "max_response_time", 20,
+                "response_times", new LongIntMap(10L, 20L));
+            for (var client : List.of(first, second)) {
+                String nodeID = client == first ? "first" : "second";
+                client.send(Message.create(s -> s
+                    .type("stats")
+                    .putData("stats", List.of(entry))
+                    .putData("stats_total", entry)
+                    .putData("errors", Map.of("timeout", Map.of("error", "timeout", "occurrences", 1)))
+                    .putData("user_count", client == first ? 3 : 2)
+                    .nodeId(nodeID)));
+            }
+
+            // the relay buffers reports before the listener of the test is called
+            assertThat(buffered.await(5, TimeUnit.SECONDS)).isTrue();
+            relay.report();
+            assertThat(master.awaitReports(1, Duration.ofSeconds(5))).isTrue();
+            assertThat(master.getNumRequests()).isEqualTo(4);
+            assertThat(master.getNumFailures()).isEqualTo(2);
+            assertThat(master.getRequestsByName()).containsEntry("GET /index", 4L);
+            // both workers are merged into one report
+            assertThat(master.getNumReports()).isEqualTo(1);
+            assertThat(master.getUserCount()).isEqualTo(5);
+            // the relay doesn't aggregate local reports twice
+            assertThat(relay.getMaster().getStats().getNumReports()).isZero();
+
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void TestRelayWithoutLocalWorkers() throws Exception {
+        var masterPort = ThreadLocalRandom.current().nextInt(1000) + 5120;
+        var relayPort = masterPort + 1000;
+        try (var master = new SimulatedMaster().bind("127.0.0.1", masterPort);
+             var relay = new Relay("127.0.0.1", masterPort, "127.0.0.1", relayPort, 0).start()) {
+            assertThat(master.awaitWorkers(1, Duration.ofSeconds(5))).isTrue();
+
+            // no local worker to wait for, spawning completes with no users
+            master.spawn(5);
+            assertThat(master.awaitSpawned(Duration.ofSeconds(5))).isTrue();
+            assertThat(master.getUserCount()).isZero();
+
+            // and completes again once a local worker joins
+            var first = new ZeromqClient("127.0.0.1", relayPort, "first");
+            first.send(Message.create(s -> s.type("client_ready").nodeId("first")));
+            MessageAssert.assertThat(first.recv()).hasType("ack");
+            MessageAssert.assertThat(first.recv()).hasType("spawn").data()
+                .containsEntry("user_classes_count", Map.of("SimulatedUser", 5));
+            first.send(Message.create(s -> s
+                .type("spawning_complete")
+                .putData("count", 5)
+                .putData("user_classes_count", Map.of("SimulatedUser", 5))
+                .nodeId("first")));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (master.getUserCount() < 5 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(master.getUserCount()).isEqualTo(5);
+
+            first.close();
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.github.myzhan.locust4j.message;
 import org.junit.jupiter.api.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
 
 /**
  * @author myzhan
@@ -15,6 +16,37 @@ class LongIntMapTest {
         assertThat(map.get(1000L)).isEqualTo(2L);
     }
 
+    @Test
+    void TestGrowAndClear() {
+        var map = new LongIntMap();
+        for (long k = 0; k < 1000; k++) {
+            map.add(k);
+            map.add(k, 2);
+        }
+        assertThat(map.size()).isEqualTo(1000);
+        assertThat(map.get(0L)).isEqualTo(3);
+        assertThat(map.get(999L)).isEqualTo(3);
+        assertThat(map.get(1000L)).isNull();
+
+        int capacity = map.capacity();
+        map.clear();
+        assertThat(map.isEmpty()).isTrue();
+        assertThat(map.get(0L)).isNull();
+        // clear() keeps the backing arrays
+        assertThat(map.capacity()).isEqualTo(capacity);
+    }
+
+    @Test
+    void TestMergeAndCopy() {
+        var map = new LongIntMap(1L, 2L, 2L);
+        map.merge(new LongIntMap(2L, 3L));
+
+        var copy = new LongIntMap(map);
+        map.clear();
+
+        assertThat(copy.asMap()).containsOnly(entry(1L, 1), entry(2L, 3), entry(3L, 1));
+    }
+
     @Test
     void TestToString() {
         LongIntMap map = new LongIntMap(1000L, 1000L);
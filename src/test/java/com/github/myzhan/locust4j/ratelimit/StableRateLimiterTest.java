@@ -1,7 +1,11 @@
 package com.github.myzhan.locust4j.ratelimit;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -30,4 +34,68 @@ public class StableRateLimiterTest {
 
         assertTrue(abstractRateLimiter.isStopped());
     }
+
+    @Test
+    public void TestAcquireAsync() throws Exception {
+        AbstractRateLimiter abstractRateLimiter = new StableRateLimiter(1, 100, TimeUnit.MILLISECONDS);
+        abstractRateLimiter.start();
+
+        Thread.sleep(10);
+
+        assertFalse(abstractRateLimiter.acquireAsync().toCompletableFuture().getNow(true));
+
+        // running out of permits, completes when the bucket is updated
+        CompletableFuture<Boolean> blocked = abstractRateLimiter.acquireAsync().toCompletableFuture();
+        assertFalse(blocked.isDone());
+        assertTrue(blocked.get(1, TimeUnit.SECONDS));
+        assertFalse(abstractRateLimiter.acquireAsync().toCompletableFuture().getNow(true));
+
+        abstractRateLimiter.stop();
+    }
+
+    @Test
+    public void TestIntendedStart() throws Exception {
+        AbstractRateLimiter abstractRateLimiter = new StableRateLimiter(4, 400, TimeUnit.MILLISECONDS);
+        abstractRateLimiter.start();
+
+        Thread.sleep(10);
+
+        assertFalse(abstractRateLimiter.acquire());
+        long first = abstractRateLimiter.getIntendedStartNanos();
+        assertFalse(abstractRateLimiter.acquire());
+        long second = abstractRateLimiter.getIntendedStartNanos();
+
+        // permits are intended to be evenly spread over the period
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), second - first);
+        assertTrue(first <= System.nanoTime());
+
+        abstractRateLimiter.stop();
+    }
+
+    @Test
+    public void TestIdlePeriodsAreNotMissed() throws Exception {
+        AbstractRateLimiter abstractRateLimiter = new StableRateLimiter(100, 10, TimeUnit.MILLISECONDS);
+        abstractRateLimiter.start();
+
+        Thread.sleep(10);
+
+        assertFalse(abstractRateLimiter.acquire());
+        abstractRateLimiter.release();
+
+        // no request is in flight and no user waits, like at 0 users or in a long think time
+        Thread.sleep(300);
+        assertFalse(abstractRateLimiter.acquire());
+        assertEquals(0, abstractRateLimiter.getMissedPermits());
+        abstractRateLimiter.release();
+
+        // a request in flight across periods misses them
+        assertFalse(abstractRateLimiter.acquire());
+        Thread.sleep(100);
+        abstractRateLimiter.release();
+        assertFalse(abstractRateLimiter.acquire());
+        assertTrue(abstractRateLimiter.getMissedPermits() > 0);
+        abstractRateLimiter.release();
+
+        abstractRateLimiter.stop();
+    }
 }
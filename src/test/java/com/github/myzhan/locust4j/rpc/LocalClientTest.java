@@ -0,0 +1,70 @@
+package com.github.myzhan.locust4j.rpc;
+
+import java.io.StringWriter;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import com.github.myzhan.locust4j.message.LongIntMap;
+import com.github.myzhan.locust4j.message.Message;
+import com.github.myzhan.locust4j.test.MessageAssert;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author myzhan
+ */
+public class LocalClientTest {
+
+    @Test
+    public void TestStandaloneProtocol() throws Exception {
+        var client = new LocalClient(4, 100, Duration.ofMillis(200));
+
+        client.send(Message.create(s -> s.type("client_ready").nodeId("node")));
+        MessageAssert.assertThat(client.recv()).hasType("ack");
+        MessageAssert.assertThat(client.recv()).hasType("spawn")
+            .data()
+            .containsEntry("user_classes_count", Map.of("standalone", 4));
+        // the duration starts once the runner has spawned every user
+        client.send(Message.create(s -> s.type("spawning_complete").putData("count", 4).nodeId("node")));
+
+        Map<String, Object> entry = Map.of(
+            "name", "/index",
+            "method", "GET",
+            "num_requests", 4L,
+            "num_failures", 1L,
+            "total_response_time", 100L,
+            "min_response_time", 10L,
+            "max_response_time", 40L,
+            "total_content_length", 40L,
+            "response_times", new LongIntMap(10L, 20L, 30L, 40L));
+        client.send(Message.create(s -> s
+            .type("stats")
+            .putData("stats", List.of(entry))
+            .putData("stats_total", entry)
+            .putData("errors", Map.of("md5", Map.of("error", "timeout", "occurrences", 1L)))
+            .putData("user_count", 4)
+            .nodeId("node")));
+
+        // the master waits for a report after the duration before it stops the runner
+        MessageAssert.assertThat(client.recv()).hasType("stop");
+        client.send(Message.create(s -> s.type("client_stopped").nodeId("node")));
+        assertThat(client.awaitStopped(Duration.ofSeconds(1))).isTrue();
+
+        List<Map<String, Object>> summary = client.getSummary();
+        assertThat(summary).hasSize(2);
+        assertThat(summary.get(0))
+            .containsEntry("name", "/index")
+            .containsEntry("num_requests", 4L)
+            .containsEntry("avg_response_time", 25L)
+            .containsEntry("p50", 20L)
+            .containsEntry("p99", 40L);
+        assertThat(summary.get(1)).containsEntry("name", "Aggregated");
+        assertThat(client.getErrors()).containsOnlyKeys("md5");
+
+        StringWriter csv = new StringWriter();
+        client.writeCsv(csv);
+        assertThat(csv.toString()).contains("GET,/index,4,1,20,25,10,40,10,40,40");
+    }
+}
@@ -51,6 +51,30 @@ public class MessageDeserTest {
             .data().containsExactlyInAnyOrderEntriesOf(data);
     }
 
+    @Test
+    public void testReusableSerializer() throws Exception {
+        var entries = new ArrayList<Object>();
+        for (int i = 0; i < 500; i++) {
+            entries.add(Map.of("name", "/entry/" + i, "method", "GET", "num_requests", (long) i));
+        }
+        var large = Message.create(s -> s.type("stats").putData("stats", entries).nodeId("nodeId"));
+        var small = Message.create(s -> s.type("heartbeat").putData("state", "running").nodeId("nodeId"));
+
+        var serializer = new MessageSerializer();
+        int size = serializer.serialise(large);
+        assertThat(serializer.capacity()).isGreaterThanOrEqualTo(size);
+        assertThat(serializer.toByteArray()).isEqualTo(MessageDeser.serialise(large));
+
+        // the grown buffer is reused by the next message
+        int capacity = serializer.capacity();
+        size = serializer.serialise(small);
+        assertThat(serializer.capacity()).isEqualTo(capacity);
+        assertThat(serializer.buffer().remaining()).isEqualTo(size);
+        assertThat(MessageDeser.deserialise(serializer.toByteArray()))
+            .hasType("heartbeat")
+            .hasNodeId("nodeId");
+    }
+
     @Test
     public void testVisitNull() throws IOException {
         byte[] result = serialise(NULL);
@@ -0,0 +1,439 @@
+package com.github.myzhan.locust4j.rpc;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import com.github.myzhan.locust4j.message.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zeromq.SocketType;
+import org.zeromq.ZContext;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+
+/**
+ * A {@link SimulatedMaster} speaks the master side of the locust protocol, for driving workers end-to-end from
+ * JUnit and JMH.
+ *
+ * Workers connect either in memory, through {@link #newClient(String)}, or over ZeroMQ after {@link #bind(String, int)}.
+ * Both transports serialize every message with msgpack, so payload sizes are the real ones. The master acks
+ * client_ready, answers heartbeats, drives spawn and stop cycles, and aggregates the stats it receives.
+ *
+ * Report latency is measured from {@link Client#send(Message)} to the end of aggregation for in-memory workers, and
+ * from receiving the frame to the end of aggregation for ZeroMQ workers.
+ *
+ * @author myzhan
+ */
+public class SimulatedMaster implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SimulatedMaster.class);
+
+    private static final String USER_CLASS = "SimulatedUser";
+    private static final byte[] CLOSED = new byte[0];
+    private static final long POLL_MILLIS = 10;
+
+    private final Map<String, Worker> workers = new ConcurrentHashMap<>();
+    private final AtomicInteger workerIndex = new AtomicInteger();
+
+    private final LongAdder numReports = new LongAdder();
+    private final LongAdder reportBytes = new LongAdder();
+    private final LongAccumulator maxReportBytes = new LongAccumulator(Math::max, 0);
+    private final LongAdder reportLatencyNanos = new LongAdder();
+    private final LongAccumulator maxReportLatencyNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder numRequests = new LongAdder();
+    private final LongAdder numFailures = new LongAdder();
+    private final Map<String, LongAdder> requestsByName = new ConcurrentHashMap<>();
+
+    private ZContext context;
+    private ZMQ.Socket routerSocket;
+    private Thread routerThread;
+    private final Queue<byte[][]> routerOutbox = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    /**
+     * Accept ZeroMQ workers too, like a locust master listening on the port.
+     *
+     * @param host the host to bind to
+     * @param port the port to bind to
+     * @return this master
+     */
+    public SimulatedMaster bind(String host, int port) {
+        this.context = new ZContext();
+        this.routerSocket = this.context.createSocket(SocketType.ROUTER);
+        this.routerSocket.bind(String.format("tcp://%s:%d", host, port));
+        this.routerThread = new Thread(this::route);
+        this.routerThread.setName("simulated-master-router");
+        this.routerThread.setDaemon(true);
+        this.routerThread.start();
+        return this;
+    }
+
+    /**
+     * @param nodeID the identity of the worker
+     * @return a client which connects a worker in memory
+     */
+    public Client newClient(String nodeID) {
+        return new InMemoryClient(nodeID);
+    }
+
+    /**
+     * @return number of workers which sent client_ready
+     */
+    public int getWorkerCount() {
+        return this.workers.size();
+    }
+
+    public boolean awaitWorkers(int count, Duration timeout) throws InterruptedException {
+        return this.await(timeout, () -> this.workers.size() >= count);
+    }
+
+    /**
+     * Distribute users across the workers as evenly as possible, like the master does.
+     *
+     * @param users total number of users
+     */
+    public void spawn(int users) {
+        List<Worker> targets = this.sortedWorkers();
+        if (targets.isEmpty()) {
+            throw new IllegalStateException("No worker is connected");
+        }
+        for (int i = 0; i < targets.size(); i++) {
+            Worker worker = targets.get(i);
+            int count = users / targets.size() + (i < users % targets.size() ? 1 : 0);
+            worker.spawned = false;
+            this.sendTo(worker, Message.create(s -> s
+                .type("spawn")
+                .putData("user_classes_count", Map.of(USER_CLASS, count))
+                .putData("host", "")
+                .nodeId(worker.nodeID)));
+        }
+    }
+
+    /**
+     * @return true if every worker reported spawning_complete for the last spawn
+     */
+    public boolean awaitSpawned(Duration timeout) throws InterruptedException {
+        return this.await(timeout, () -> this.workers.values().stream().allMatch(w -> w.spawned));
+    }
+
+    public void stop() {
+        for (Worker worker : this.workers.values()) {
+            worker.stopped = false;
+            this.sendTo(worker, Message.create(s -> s.type("stop").nodeId(worker.nodeID)));
+        }
+    }
+
+    /**
+     * @return true if every worker reported client_stopped after the last stop
+     */
+    public boolean awaitStopped(Duration timeout) throws InterruptedException {
+        return this.await(timeout, () -> this.workers.values().stream().allMatch(w -> w.stopped));
+    }
+
+    /**
+     * @return true once the number of reports received reaches the count
+     */
+    public boolean awaitReports(long count, Duration timeout) throws InterruptedException {
+        return this.await(timeout, () -> this.numReports.sum() >= count);
+    }
+
+    /**
+     * @return sum of user_count in the last report of every worker
+     */
+    public int getUserCount() {
+        return this.workers.values().stream().mapToInt(w -> w.userCount).sum();
+    }
+
+    public long getNumReports() {
+        return this.numReports.sum();
+    }
+
+    public long getNumRequests() {
+        return this.numRequests.sum();
+    }
+
+    public long getNumFailures() {
+        return this.numFailures.sum();
+    }
+
+    /**
+     * @return number of requests by "method name"
+     */
+    public Map<String, Long> getRequestsByName() {
+        Map<String, Long> result = new ConcurrentHashMap<>();
+        this.requestsByName.forEach((key, count) -> result.put(key, count.sum()));
+        return result;
+    }
+
+    public long getReportBytes() {
+        return this.reportBytes.sum();
+    }
+
+    public long getMaxReportBytes() {
+        return this.maxReportBytes.get();
+    }
+
+    public long getMeanReportLatencyNanos() {
+        long reports = this.numReports.sum();
+        return reports == 0 ? 0 : this.reportLatencyNanos.sum() / reports;
+    }
+
+    public long getMaxReportLatencyNanos() {
+        return this.maxReportLatencyNanos.get();
+    }
+
+    /**
+     * Forget aggregated stats and report metrics, workers stay connected.
+     */
+    public void resetStats() {
+        this.numReports.reset();
+        this.reportBytes.reset();
+        this.maxReportBytes.reset();
+        this.reportLatencyNanos.reset();
+        this.maxReportLatencyNanos.reset();
+        this.numRequests.reset();
+        this.numFailures.reset();
+        this.requestsByName.clear();
+    }
+
+    /**
+     * Ask every worker to quit, a {@link com.github.myzhan.locust4j.runtime.Runner} exits the JVM when it's asked to.
+     */
+    public void quit() {
+        for (Worker worker : this.workers.values()) {
+            this.sendTo(worker, Message.create(s -> s.type("quit").nodeId(worker.nodeID)));
+        }
+    }
+
+    /**
+     * Release the transports, receiving in-memory workers fail afterwards.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        for (Worker worker : this.workers.values()) {
+            if (null != worker.inbox) {
+                worker.inbox.offer(CLOSED);
+            }
+        }
+        if (null != this.routerThread) {
+            try {
+                this.routerThread.join(1000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            this.context.close();
+        }
+    }
+
+    private void onMessage(byte[] bytes, long receivedNanos, BlockingQueue<byte[]> inbox, byte[] identity) {
+        Message message = MessageDeser.deserialise(bytes);
+        String nodeID = message.nodeId().orElse(null == identity ? "" : new String(identity));
+        switch (message.type()) {
+            case "client_ready" -> {
+                Worker worker = this.workers.compute(nodeID, (key, existing) ->
+                    null == existing ? new Worker(nodeID, this.workerIndex.getAndIncrement(), inbox, identity) : existing);
+                this.sendTo(worker, Message.create(s -> s.type("ack").putData("index", worker.index).nodeId(nodeID)));
+            }
+            case "heartbeat" -> {
+                Worker worker = this.workers.get(nodeID);
+                if (null == worker) {
+                    // like the master, ask an unknown worker to register again
+                    this.sendTo(new Worker(nodeID, -1, inbox, identity),
+                        Message.create(s -> s.type("reconnect").nodeId(nodeID)));
+                } else {
+                    this.sendTo(worker, Message.create(s -> s.type("heartbeat").nodeId(nodeID)));
+                }
+            }
+            case "spawning_complete" -> this.withWorker(nodeID, w -> {
+                if (message.data().get("count") instanceof Number count) {
+                    w.userCount = count.intValue();
+                }
+                w.spawned = true;
+            });
+            case "client_stopped" -> this.withWorker(nodeID, w -> w.stopped = true);
+            case "quit" -> this.workers.remove(nodeID);
+            case "stats" -> this.onStats(nodeID, message.data(), bytes.length, receivedNanos);
+            default -> {
+                // spawning and exceptions need no reply
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void onStats(String nodeID, Map<String, Object> data, int size, long receivedNanos) {
+        Object userCount = data.get("user_count");
+        if (userCount instanceof Number) {
+            this.withWorker(nodeID, w -> w.userCount = ((Number) userCount).intValue());
+        }
+        Object stats = data.get("stats");
+        if (stats instanceof List) {
+            for (Map<String, Object> entry : (List<Map<String, Object>>) stats) {
+                this.requestsByName.computeIfAbsent(entry.get("method") + " " + entry.get("name"), k -> new LongAdder())
+                    .add(toLong(entry.get("num_requests")));
+            }
+        }
+        Object total = data.get("stats_total");
+        if (total instanceof Map) {
+            this.numRequests.add(toLong(((Map<String, Object>) total).get("num_requests")));
+            this.numFailures.add(toLong(((Map<String, Object>) total).get("num_failures")));
+        }
+        long latency = System.nanoTime() - receivedNanos;
+        this.reportBytes.add(size);
+        this.maxReportBytes.accumulate(size);
+        this.reportLatencyNanos.add(latency);
+        this.maxReportLatencyNanos.accumulate(latency);
+        this.numReports.increment();
+    }
+
+    private void withWorker(String nodeID, Consumer<Worker> action) {
+        Worker worker = this.workers.get(nodeID);
+        if (null != worker) {
+            action.accept(worker);
+        }
+    }
+
+    private List<Worker> sortedWorkers() {
+        List<Worker> result = new ArrayList<>(this.workers.values());
+        result.sort((a, b) -> Integer.compare(a.index, b.index));
+        return Collections.unmodifiableList(result);
+    }
+
+    private void sendTo(Worker worker, Message message) {
+        byte[] bytes;
+        try {
+            bytes = MessageDeser.serialise(message);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Failed to serialize a " + message.type() + " message", ex);
+        }
+        if (null != worker.inbox) {
+            worker.inbox.offer(bytes);
+        } else {
+            this.routerOutbox.offer(new byte[][] {worker.identity, bytes});
+        }
+    }
+
+    /**
+     * The ROUTER socket is only used by this thread, it polls for frames and flushes the outbox in between.
+     */
+    private void route() {
+        ZMQ.Poller poller = this.context.createPoller(1);
+        poller.register(this.routerSocket, ZMQ.Poller.POLLIN);
+        try {
+            while (!this.closed) {
+                poller.poll(POLL_MILLIS);
+                byte[] identity;
+                while (null != (identity = this.routerSocket.recv(ZMQ.DONTWAIT))) {
+                    byte[] bytes = this.routerSocket.recv();
+                    try {
+                        this.onMessage(bytes, System.nanoTime(), null, identity);
+                    } catch (RuntimeException ex) {
+                        logger.error("Failed to handle a message from {}", new String(identity), ex);
+                    }
+                }
+                byte[][] outgoing;
+                while (null != (outgoing = this.routerOutbox.poll())) {
+                    this.routerSocket.sendMore(outgoing[0]);
+                    this.routerSocket.send(outgoing[1], 0);
+                }
+            }
+        } catch (ZMQException ex) {
+            if (!this.closed) {
+                logger.error("Simulated master router failed", ex);
+            }
+        } finally {
+            poller.close();
+        }
+    }
+
+    private boolean await(Duration timeout, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    private static long toLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static class Worker {
+        private final String nodeID;
+        private final int index;
+        /**
+         * Set for in-memory workers, ZeroMQ workers are addressed by their identity.
+         */
+        private final BlockingQueue<byte[]> inbox;
+        private final byte[] identity;
+        private volatile int userCount;
+        private volatile boolean spawned;
+        private volatile boolean stopped;
+
+        private Worker(String nodeID, int index, BlockingQueue<byte[]> inbox, byte[] identity) {
+            this.nodeID = nodeID;
+            this.index = index;
+            this.inbox = inbox;
+            this.identity = identity;
+        }
+    }
+
+    /**
+     * Messages are serialized on send and handled by the calling thread, like a worker and a master would.
+     */
+    private class InMemoryClient implements Client {
+        private final String nodeID;
+        private final BlockingQueue<byte[]> inbox = new LinkedBlockingQueue<>();
+
+        private InMemoryClient(String nodeID) {
+            this.nodeID = nodeID;
+        }
+
+        @Override
+        public Message recv() throws IOException {
+            byte[] bytes;
+            try {
+                bytes = this.inbox.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while receiving a simulated message", ex);
+            }
+            if (bytes == CLOSED) {
+                this.inbox.offer(CLOSED);
+                throw new IOException("Simulated master is closed");
+            }
+            return MessageDeser.deserialise(bytes);
+        }
+
+        @Override
+        public void send(Message message) throws IOException {
+            if (closed) {
+                throw new IOException("Simulated master is closed");
+            }
+            long start = System.nanoTime();
+            onMessage(MessageDeser.serialise(message), start, this.inbox, this.nodeID.getBytes());
+        }
+
+        @Override
+        public void close() {
+            workers.remove(this.nodeID);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.github.myzhan.locust4j.rpc;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.github.myzhan.locust4j.message.LongIntMap;
+import com.github.myzhan.locust4j.message.Message;
+import com.github.myzhan.locust4j.test.MessageAssert;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author myzhan
+ */
+public class SimulatedMasterTest {
+
+    private static Message statsMessage(String nodeID, long numRequests) {
+        Map<String, Object> entry = Map.of(
+            "name", "/index",
+            "method", "GET",
+            "num_requests", numRequests,
+            "num_failures", 1L,
+            "response_times", new LongIntMap(10L, 20L));
+        return Message.create(s -> s
+            .type("stats")
+            .putData("stats", List.of(entry))
+            .putData("stats_total", entry)
+            .putData("errors", Map.of())
+            .putData("user_count", 2)
+            .nodeId(nodeID));
+    }
+
+    @Test
+    public void TestHundredsOfWorkers() throws Exception {
+        try (var master = new SimulatedMaster()) {
+            List<Client> clients = new ArrayList<>();
+            Set<Object> indexes = new HashSet<>();
+            for (int i = 0; i < 200; i++) {
+                String nodeID = "worker-" + i;
+                Client client = master.newClient(nodeID);
+                client.send(Message.create(s -> s.type("client_ready").nodeId(nodeID)));
+                Message ack = client.recv();
+                MessageAssert.assertThat(ack).hasType("ack");
+                indexes.add(ack.data().get("index"));
+                clients.add(client);
+            }
+            assertThat(indexes).hasSize(200);
+            assertThat(master.awaitWorkers(200, Duration.ofSeconds(1))).isTrue();
+
+            master.spawn(450);
+            int users = 0;
+            for (int i = 0; i < clients.size(); i++) {
+                Message spawn = clients.get(i).recv();
+                MessageAssert.assertThat(spawn).hasType("spawn");
+                users += ((Map<String, Integer>) spawn.data().get("user_classes_count")).get("SimulatedUser");
+                String nodeID = "worker-" + i;
+                clients.get(i).send(Message.create(s -> s.type("spawning_complete").nodeId(nodeID)));
+                clients.get(i).send(statsMessage(nodeID, 3));
+            }
+            assertThat(users).isEqualTo(450);
+            assertThat(master.awaitSpawned(Duration.ofSeconds(1))).isTrue();
+            assertThat(master.getNumReports()).isEqualTo(200);
+            assertThat(master.getNumRequests()).isEqualTo(600);
+            assertThat(master.getNumFailures()).isEqualTo(200);
+            assertThat(master.getRequestsByName()).containsEntry("GET /index", 600L);
+            assertThat(master.getUserCount()).isEqualTo(400);
+            assertThat(master.getMaxReportBytes()).isPositive();
+            assertThat(master.getMaxReportLatencyNanos()).isPositive();
+        }
+    }
+
+    @Test
+    public void TestZeromqWorker() throws Exception {
+        var masterPort = ThreadLocalRandom.current().nextInt(1000) + 3072;
+        try (var master = new SimulatedMaster().bind("127.0.0.1", masterPort)) {
+            var client = new ZeromqClient("127.0.0.1", masterPort, "zeromq-worker");
+            client.send(Message.create(s -> s.type("client_ready").nodeId("zeromq-worker")));
+            MessageAssert.assertThat(client.recv()).hasType("ack");
+
+            client.send(statsMessage("zeromq-worker", 5));
+            assertThat(master.awaitReports(1, Duration.ofSeconds(5))).isTrue();
+            assertThat(master.getNumRequests()).isEqualTo(5);
+
+            master.stop();
+            MessageAssert.assertThat(client.recv()).hasType("stop");
+            client.close();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.github.myzhan.locust4j.rpc;
 
+import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.ThreadLocalRandom;
 
@@ -7,6 +8,8 @@ import com.github.myzhan.locust4j.message.Message;
 import com.github.myzhan.locust4j.test.MessageAssert;
 import org.junit.jupiter.api.Test;
 
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
 /**
  * @author myzhan
  */
@@ -33,4 +36,38 @@ public class ZeromqClientTest {
         server.stop();
         client.close();
     }
+
+    @Test
+    public void TestConcurrentSenders() throws Exception {
+        var masterPort = ThreadLocalRandom.current().nextInt(1000) + 2048;
+        var server = new TestServer("0.0.0.0", masterPort).start();
+        var client = new ZeromqClient("0.0.0.0", masterPort, "testClient");
+
+        // the socket is owned by the I/O thread, so senders don't race on it
+        var senders = new Thread[4];
+        for (int i = 0; i < senders.length; i++) {
+            int sender = i;
+            senders[i] = new Thread(() -> {
+                for (int j = 0; j < 100; j++) {
+                    try {
+                        client.send(Message.create(s -> s.type("test").putData("sender", sender).nodeId("node")));
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            });
+            senders[i].start();
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+
+        for (int i = 0; i < 400; i++) {
+            MessageAssert.assertThat(client.recv()).hasType("test");
+        }
+
+        server.stop();
+        client.close();
+        assertThatExceptionOfType(IOException.class).isThrownBy(client::recv);
+    }
 }
@@ -0,0 +1,74 @@
+package com.github.myzhan.locust4j.runtime;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.Map;
+
+import com.github.myzhan.locust4j.message.LongIntMap;
+import com.github.myzhan.locust4j.stats.Stats;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author myzhan
+ */
+public class MetricsServerTest {
+
+    @Test
+    public void TestScrape() throws Exception {
+        var server = new MetricsServer(new Stats(), () -> null);
+        server.start(0);
+        try {
+            Map<String, Object> entry = Map.of(
+                "name", "/say \"hi\"",
+                "method", "GET",
+                "num_requests", 3L,
+                "num_failures", 1L,
+                "total_response_time", 1210L,
+                "total_content_length", 30L,
+                "response_times", new LongIntMap(3L, 7L, 1200L));
+            server.onReport(Map.of("stats", List.of(entry), "num_dropped_events", 2L));
+            server.onReport(Map.of("stats", List.of(entry)));
+
+            var response = HttpClient.newHttpClient().send(
+                HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.getPort() + "/metrics")).build(),
+                HttpResponse.BodyHandlers.ofString());
+
+            assertThat(response.statusCode()).isEqualTo(200);
+            assertThat(response.body())
+                .contains("locust4j_requests_total{method=\"GET\",name=\"/say \\\"hi\\\"\"} 6\n")
+                .contains("locust4j_failures_total{method=\"GET\",name=\"/say \\\"hi\\\"\"} 2\n")
+                .contains("locust4j_response_time_milliseconds_bucket{method=\"GET\",name=\"/say \\\"hi\\\"\",le=\"5\"} 2\n")
+                .contains("locust4j_response_time_milliseconds_bucket{method=\"GET\",name=\"/say \\\"hi\\\"\",le=\"10\"} 4\n")
+                .contains("locust4j_response_time_milliseconds_bucket{method=\"GET\",name=\"/say \\\"hi\\\"\",le=\"+Inf\"} 6\n")
+                .contains("locust4j_response_time_milliseconds_sum{method=\"GET\",name=\"/say \\\"hi\\\"\"} 2420\n")
+                .contains("locust4j_dropped_events_total 2\n")
+                .contains("locust4j_stats_queue_depth 0\n");
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void TestBucketsCountBeyondInt() {
+        var server = new MetricsServer(new Stats(), () -> null);
+        LongIntMap responseTimes = new LongIntMap();
+        responseTimes.add(5L, Integer.MAX_VALUE);
+        Map<String, Object> entry = Map.of(
+            "name", "/busy",
+            "method", "GET",
+            "num_requests", (long) Integer.MAX_VALUE,
+            "response_times", responseTimes);
+        // like a soak test which keeps one bucket busy for hours
+        server.onReport(Map.of("stats", List.of(entry)));
+        server.onReport(Map.of("stats", List.of(entry)));
+
+        assertThat(server.scrape())
+            .contains("locust4j_response_time_milliseconds_bucket{method=\"GET\",name=\"/busy\",le=\"5\"} 4294967294\n")
+            .contains("locust4j_response_time_milliseconds_count{method=\"GET\",name=\"/busy\"} 4294967294\n");
+    }
+}
@@ -3,14 +3,24 @@ package com.github.myzhan.locust4j.runtime;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.github.myzhan.locust4j.AbstractAsyncTask;
 import com.github.myzhan.locust4j.AbstractTask;
 import com.github.myzhan.locust4j.LocustTestHelper;
+import com.github.myzhan.locust4j.message.LongIntMap;
 import com.github.myzhan.locust4j.message.Message;
+import com.github.myzhan.locust4j.rpc.MessageDeser;
 import com.github.myzhan.locust4j.stats.Stats;
 import org.assertj.core.api.Assertions;
 import org.junit.Assert;
@@ -18,6 +28,8 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.InOrder;
 import org.mockito.Mockito;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
 
 import static com.github.myzhan.locust4j.test.MessageAssert.assertThat;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -85,6 +97,80 @@ public class RunnerTest {
         runner.stop();
     }
 
+    @Test
+    public void TestStartSpawningVirtualThreads() throws Exception {
+        CountDownLatch executed = new CountDownLatch(1);
+        AtomicBoolean virtual = new AtomicBoolean();
+        runner.setTasks(Collections.singletonList((AbstractTask) new TestTask() {
+            @Override
+            public void execute() {
+                virtual.set(Thread.currentThread().isVirtual());
+                executed.countDown();
+                super.execute();
+            }
+        }));
+        runner.setVirtualThreads(true);
+        runner.startSpawning(1000);
+        assertThat(runner.numClients).isEqualTo(1000);
+        assertThat(executed.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(virtual.get()).isTrue();
+        runner.stop();
+    }
+
+    @Test
+    public void TestStartSpawningAsyncUsers() throws Exception {
+        ScheduledExecutorService client = Executors.newSingleThreadScheduledExecutor();
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        AtomicInteger stopped = new AtomicInteger();
+        runner.setTasks(Collections.singletonList((AbstractTask) new AbstractAsyncTask() {
+            @Override
+            public int getWeight() {
+                return 1;
+            }
+
+            @Override
+            public String getName() {
+                return "async";
+            }
+
+            @Override
+            public CompletionStage<?> executeAsync() {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                CompletableFuture<Void> response = new CompletableFuture<>();
+                client.schedule(() -> {
+                    inFlight.decrementAndGet();
+                    response.complete(null);
+                }, 50, TimeUnit.MILLISECONDS);
+                return response;
+            }
+
+            @Override
+            public void onStop() {
+                stopped.incrementAndGet();
+            }
+        }));
+        runner.startSpawning(2000);
+        assertThat(runner.numClients).isEqualTo(2000);
+
+        // every user is in flight at once, without a thread of its own
+        long deadline = System.currentTimeMillis() + 5000;
+        while (maxInFlight.get() < 2000 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(maxInFlight.get()).isEqualTo(2000);
+        assertThat(Thread.getAllStackTraces().keySet().stream()
+            .filter(thread -> thread.getName().startsWith("locust4j-worker#"))).isEmpty();
+
+        runner.stop();
+        deadline = System.currentTimeMillis() + 5000;
+        while (stopped.get() < 2000 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(stopped.get()).isEqualTo(2000);
+        client.shutdownNow();
+    }
+
     @Test
     public void TestOnInvalidSpawnMessage() {
         runner.getReady();
@@ -172,6 +258,40 @@ public class RunnerTest {
     }
 
 
+    @Test
+    public void TestSpawnAtSpawnRate() throws Exception {
+        runner.setHeartbeatStopped(true);
+        runner.getReady();
+
+        long start = System.currentTimeMillis();
+        client.getFromServerQueue().offer(locustSpawnMessage(10, 20));
+        assertThat(client.getToServerQueue().take()).hasType("spawning");
+
+        // users are spawned one by one, and the master is told when all of them are
+        long deadline = System.currentTimeMillis() + 5000;
+        while (runner.numClients == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(runner.numClients).isBetween(1, 9);
+        Message spawnComplete = client.getToServerQueue().poll(5, TimeUnit.SECONDS);
+        assertThat(spawnComplete).hasType("spawning_complete");
+        assertEquals(10, spawnComplete.data().get("count"));
+        assertThat(System.currentTimeMillis() - start).isGreaterThanOrEqualTo(400);
+
+        // a stop cancels the ramp
+        client.getFromServerQueue().offer(locustSpawnMessage(100, 10));
+        assertThat(client.getToServerQueue().take()).hasType("spawning");
+        client.getFromServerQueue().offer(Message.create(s -> s.type("stop")));
+        assertThat(client.getToServerQueue().take()).hasType("client_stopped");
+        int stopped = runner.numClients;
+        Thread.sleep(300);
+        assertThat(runner.numClients).isEqualTo(stopped).isLessThan(100);
+        // no spawning_complete of the cancelled ramp
+        assertThat(client.getToServerQueue().poll(100, TimeUnit.MILLISECONDS)).isNull();
+
+        runner.quit();
+    }
+
     @Test
     public void TestSpawningWorkersScaleOut() throws Exception {
         runner.setHeartbeatStopped(true);
@@ -206,7 +326,7 @@ public class RunnerTest {
         orderVerifier.verify(spyThreadPoolExecutor).setCorePoolSize(3);
 
         // Verify that only 3 tasks were submitted in total
-        verify(spyThreadPoolExecutor, times(3)).submit(isA(AbstractTask.class));
+        verify(spyThreadPoolExecutor, times(3)).execute(isA(UserHandle.class));
 
         assertEquals(3, runner.numClients);
 
@@ -247,13 +367,114 @@ public class RunnerTest {
         orderVerifier.verify(spyThreadPoolExecutor).setMaximumPoolSize(2);
 
         // Verify that only 3 tasks were submitted in total
-        verify(spyThreadPoolExecutor, times(3)).submit(isA(AbstractTask.class));
+        verify(spyThreadPoolExecutor, times(3)).execute(isA(UserHandle.class));
 
         assertEquals(2, runner.numClients);
 
         runner.quit();
     }
 
+    @Test
+    public void TestScaleInStopsUsersCooperatively() throws Exception {
+        AtomicBoolean interrupted = new AtomicBoolean();
+        runner.setTasks(Collections.singletonList((AbstractTask) new TestTask() {
+            @Override
+            public void execute() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ex) {
+                    interrupted.set(true);
+                }
+            }
+        }));
+        runner.startSpawning(3);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (runner.getUserCount() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(runner.getUserCount()).isEqualTo(3);
+
+        // stopped users finish their iteration, the live count follows them
+        runner.startSpawning(1);
+        assertThat(runner.numClients).isEqualTo(1);
+        deadline = System.currentTimeMillis() + 5000;
+        while (runner.getUserCount() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(runner.getUserCount()).isEqualTo(1);
+        assertThat(interrupted.get()).isFalse();
+
+        runner.startSpawning(2);
+        assertThat(runner.numClients).isEqualTo(2);
+        runner.stop();
+    }
+
+    @Test
+    public void TestReconnectReplaysBufferedStats() throws Exception {
+        runner.setHeartbeatStopped(true);
+        runner.getReady();
+        this.sendSpawnMessage(1);
+        client.getToServerQueue().clear();
+
+        runner.onMasterLost();
+        assertThat(runner.isMasterConnected()).isFalse();
+        runner.sendStats(statsReport(2, 10));
+        runner.sendStats(statsReport(3, 30));
+        assertThat(client.getToServerQueue()).isEmpty();
+
+        // the master restarted, it answers client_ready with an ack
+        client.getFromServerQueue().offer(Message.create(s -> s.type("reconnect")));
+
+        Message stats = client.getToServerQueue().poll(1, TimeUnit.SECONDS);
+        assertNotNull(stats);
+        assertEquals("stats", stats.type());
+        assertThat(runner.isMasterConnected()).isTrue();
+        Map<String, Object> total = (Map<String, Object>) stats.data().get("stats_total");
+        assertEquals(5L, total.get("num_requests"));
+        assertEquals(10L, total.get("min_response_time"));
+        assertEquals(30L, total.get("max_response_time"));
+        assertEquals(5L, stats.data().get("num_dropped_events"));
+
+        runner.quit();
+    }
+
+    private static Map<String, Object> statsReport(long numRequests, long responseTime) {
+        Map<String, Object> total = new HashMap<>();
+        total.put("name", "Total");
+        total.put("method", "");
+        total.put("num_requests", numRequests);
+        total.put("min_response_time", responseTime);
+        total.put("max_response_time", responseTime);
+        total.put("response_times", new LongIntMap(responseTime));
+        Map<String, Object> data = new HashMap<>();
+        data.put("stats", Collections.singletonList(new HashMap<>(total)));
+        data.put("stats_total", total);
+        data.put("errors", Collections.emptyMap());
+        data.put("num_dropped_events", numRequests);
+        return data;
+    }
+
+    /**
+     * A spawn message like locust 2.x masters send, with the spawn rate among the parsed options.
+     */
+    private static Message locustSpawnMessage(int users, double spawnRate) throws Exception {
+        try (MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+            packer.packArrayHeader(3).packString("spawn");
+            packer.packMapHeader(5);
+            packer.packString("timestamp").packDouble(System.currentTimeMillis() / 1000.0);
+            packer.packString("user_classes_count").packMapHeader(1).packString("dummy").packInt(users);
+            packer.packString("host").packString("http://www.github.com");
+            packer.packString("stop_timeout").packNil();
+            packer.packString("parsed_options").packMapHeader(4);
+            packer.packString("num_users").packInt(users);
+            packer.packString("spawn_rate").packDouble(spawnRate);
+            packer.packString("headless").packBoolean(true);
+            packer.packString("run_time").packNil();
+            packer.packString("master");
+            return MessageDeser.deserialise(packer.toByteArray());
+        }
+    }
+
     private void sendSpawnMessage(int usercount) throws Exception {
         Map<String, Object> spawnData = new HashMap<>();
         Map<String, Integer> userClassesCount = new HashMap<String, Integer>(1);
@@ -0,0 +1,60 @@
+package com.github.myzhan.locust4j.stats;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+/**
+ * @author myzhan
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void TestBuckets() {
+        for (long value : new long[] {0, 1, 127, 128, 129, 255, 256, 1000, 123_456_789, LatencyHistogram.MAX_TRACKABLE_NANOS}) {
+            int index = LatencyHistogram.indexOf(value);
+            assertThat(LatencyHistogram.lowestValueAt(index)).isLessThanOrEqualTo(value);
+            assertThat(LatencyHistogram.highestValueAt(index)).isGreaterThanOrEqualTo(value);
+        }
+        assertThat(LatencyHistogram.indexOf(LatencyHistogram.MAX_TRACKABLE_NANOS))
+            .isEqualTo(LatencyHistogram.bucketCount() - 1);
+    }
+
+    @Test
+    public void TestPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 10000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+
+        assertThat(histogram.getTotalCount()).isEqualTo(10000);
+        assertThat(histogram.getMinValue()).isEqualTo(1000);
+        assertThat(histogram.getMaxValue()).isEqualTo(10_000_000);
+        assertThat(histogram.getValueAtPercentile(50)).isCloseTo(5_000_000L, within(80_000L));
+        assertThat(histogram.getValueAtPercentile(99.9)).isCloseTo(9_990_000L, within(160_000L));
+        assertThat(histogram.getValueAtPercentile(100)).isEqualTo(10_000_000);
+        assertThat(histogram.getValueAtPercentile(90, TimeUnit.MILLISECONDS)).isEqualTo(9);
+    }
+
+    @Test
+    public void TestMergeAndReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        LatencyHistogram other = new LatencyHistogram();
+        other.record(5_000, 3);
+
+        histogram.merge(other);
+        assertThat(histogram.getTotalCount()).isEqualTo(4);
+        assertThat(histogram.getMinValue()).isEqualTo(100);
+        assertThat(histogram.getValueAtPercentile(50)).isCloseTo(5_000L, within(64L));
+
+        LatencyHistogram copy = new LatencyHistogram(histogram);
+        histogram.reset();
+        assertThat(histogram.isEmpty()).isTrue();
+        assertThat(histogram.getValueAtPercentile(99)).isZero();
+        assertThat(copy.getTotalCount()).isEqualTo(4);
+    }
+}
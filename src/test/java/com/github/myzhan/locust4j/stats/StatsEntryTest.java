@@ -2,8 +2,12 @@ package com.github.myzhan.locust4j.stats;
 
 import java.util.Map;
 
+import com.github.myzhan.locust4j.message.GrowableBufferOutput;
 import com.github.myzhan.locust4j.message.LongIntMap;
+import com.github.myzhan.locust4j.message.PackedMap;
 import org.junit.jupiter.api.Test;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -29,6 +33,49 @@ public class StatsEntryTest {
         assertThat(responseTimes.get(59000L).intValue()).isOne();
     }
 
+    @Test
+    public void TestMerge() {
+        StatsEntry entry = new StatsEntry("http", "success");
+        entry.reset();
+        entry.log(20, 10);
+
+        StatsEntry other = new StatsEntry("http", "success");
+        other.reset();
+        other.log(5, 10);
+        other.log(20, 10);
+        other.logError("500 ERROR");
+
+        entry.merge(other);
+
+        assertThat(entry.getNumRequests()).isEqualTo(3);
+        assertThat(entry.getNumFailures()).isEqualTo(1);
+        assertThat(entry.getMinResponseTime()).isEqualTo(5);
+        assertThat(entry.getMaxResponseTime()).isEqualTo(20);
+        assertThat(entry.getTotalResponseTime()).isEqualTo(45);
+        assertThat(entry.getTotalContentLength()).isEqualTo(30);
+        assertThat(entry.getResponseTimes().get(20L).intValue()).isEqualTo(2);
+        assertThat(entry.getResponseTimes().get(5L).intValue()).isOne();
+    }
+
+    @Test
+    public void TestHistogram() {
+        StatsEntry entry = new StatsEntry("http", "success");
+        entry.reset();
+        entry.enableHistogram();
+        entry.logNanos(250_000, 10);
+        entry.logNanos(1_800_000, 10);
+        entry.log(147, 10);
+
+        assertThat(entry.getTotalResponseTime()).isEqualTo(149);
+        assertThat(entry.getMinResponseTime()).isZero();
+        assertThat(entry.getMaxResponseTime()).isEqualTo(147);
+        assertThat(entry.getHistogram().getTotalCount()).isEqualTo(3);
+        assertThat(entry.getResponseTimes().asMap()).containsOnlyKeys(0L, 2L, 150L);
+
+        entry.reset();
+        assertThat(entry.getHistogram().isEmpty()).isTrue();
+    }
+
     @Test
     public void TestGetStrippedReport() {
         StatsEntry entry = new StatsEntry("http", "success");
@@ -61,4 +108,36 @@ public class StatsEntryTest {
         assertThat(entry.getNumFailures()).isZero();
 
     }
+
+    @Test
+    public void TestPackStrippedReport() throws Exception {
+        StatsEntry entry = new StatsEntry("/login", "GET");
+        entry.reset();
+        entry.log(20, 10);
+        entry.log(150, 30);
+        entry.logError("timeout");
+        Map<String, Object> expected = entry.serialize();
+        // the maps of the report are reset in place by packing
+        Map<Long, Integer> expectedResponseTimes = entry.getResponseTimes().asMap();
+
+        GrowableBufferOutput output = new GrowableBufferOutput(16);
+        MessagePacker packer = MessagePack.newDefaultPacker(output);
+        entry.packStrippedReport(packer);
+        packer.flush();
+        Map<String, Object> packed = new PackedMap(output.toByteArray(), StatsEntry.REPORT_SIZE);
+
+        assertThat(packed).containsOnlyKeys(expected.keySet().toArray(new String[0]));
+        for (String key : new String[] {"name", "method"}) {
+            assertThat(packed.get(key)).isEqualTo(expected.get(key));
+        }
+        for (String key : new String[] {"num_requests", "num_failures", "total_response_time", "max_response_time",
+            "min_response_time", "total_content_length", "start_time", "last_request_timestamp"}) {
+            assertThat(packed.get(key)).isEqualTo(((Number) expected.get(key)).longValue());
+        }
+        assertThat(((LongIntMap) packed.get("response_times")).asMap())
+            .isEqualTo(expectedResponseTimes);
+
+        // like getStrippedReport, packing resets the entry
+        assertThat(entry.getNumRequests()).isZero();
+    }
 }
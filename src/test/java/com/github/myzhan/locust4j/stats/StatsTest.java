@@ -2,13 +2,21 @@ package com.github.myzhan.locust4j.stats;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import com.github.myzhan.locust4j.message.LongIntMap;
+import com.github.myzhan.locust4j.ratelimit.AbstractRateLimiter;
+import com.github.myzhan.locust4j.ratelimit.StableRateLimiter;
 import com.github.myzhan.locust4j.utils.Utils;
 import org.junit.Before;
 import org.junit.Test;
 
 import static com.github.myzhan.locust4j.test.StatsEntryAssert.assertThat;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -149,6 +157,355 @@ public class StatsTest {
         assertEquals("Unknown Error", udpError.get("error"));
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void TestStripedRecording() throws Exception {
+        Stats striped = new Stats();
+        striped.setStriped(true);
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 100; j++) {
+                    striped.recordSuccess("http", "success", 10, 1);
+                }
+                striped.recordFailure("http", "failure", 20, "timeout");
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Map<String, Object> report = striped.collectReportData();
+        Map<String, Object> statsTotalReport = (Map<String, Object>) report.get("stats_total");
+        assertEquals(404L, statsTotalReport.get("num_requests"));
+        assertEquals(4L, statsTotalReport.get("num_failures"));
+        assertEquals(4080L, statsTotalReport.get("total_response_time"));
+        assertEquals(2, ((List<Map<String, Object>>) report.get("stats")).size());
+
+        Map<String, Map<String, Object>> errorReport = (Map<String, Map<String, Object>>) report.get("errors");
+        assertEquals(4L, errorReport.get(Utils.md5("http" + "failure" + "timeout")).get("occurrences"));
+
+        // shards are drained and reset after reporting
+        report = striped.collectReportData();
+        statsTotalReport = (Map<String, Object>) report.get("stats_total");
+        assertEquals(0L, statsTotalReport.get("num_requests"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void TestRequestKey() {
+        Stats striped = new Stats();
+        striped.setStriped(true);
+
+        RequestKey key = striped.requestKey("GET", "/login");
+        assertSame(key, striped.requestKey("GET", "/login"));
+        assertNotSame(key, striped.requestKey("POST", "/login"));
+
+        key.success(10, 100);
+        key.success(30, 100);
+        key.failure(50, "timeout");
+        striped.recordSuccess("GET", "/login", 10, 100);
+
+        Map<String, Object> report = striped.collectReportData();
+        List<Map<String, Object>> statsReport = (List<Map<String, Object>>) report.get("stats");
+        assertEquals(1, statsReport.size());
+        assertEquals("/login", statsReport.get(0).get("name"));
+        assertEquals("GET", statsReport.get(0).get("method"));
+        assertEquals(4L, statsReport.get(0).get("num_requests"));
+        assertEquals(1L, statsReport.get(0).get("num_failures"));
+
+        Map<String, Map<String, Object>> errorReport = (Map<String, Map<String, Object>>) report.get("errors");
+        assertEquals(1L, errorReport.get(Utils.md5("GET" + "/login" + "timeout")).get("occurrences"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void TestHistogram() {
+        Stats stats = new Stats();
+        stats.setHistogramEnabled(true);
+
+        RequestKey key = stats.requestKey("RPC", "call");
+        for (int i = 1; i <= 1000; i++) {
+            key.successNanos(i * 1000L, 10);
+        }
+        stats.recordSuccess("RPC", "call", 150, 10);
+
+        Map<String, Object> report = stats.collectReportData();
+
+        List<Map<String, Object>> statsReport = (List<Map<String, Object>>) report.get("stats");
+        assertEquals(1001L, statsReport.get(0).get("num_requests"));
+        assertEquals(651L, statsReport.get(0).get("total_response_time"));
+        LongIntMap responseTimes = (LongIntMap) statsReport.get(0).get("response_times");
+        // sub-millisecond requests are still rounded into 0 or 1 millis for locust
+        assertEquals(1000, responseTimes.get(0L) + responseTimes.get(1L));
+        assertEquals(1, responseTimes.get(150L).intValue());
+
+        LatencyHistogram histogram = stats.getHistogram("RPC", "call");
+        assertEquals(1001, histogram.getTotalCount());
+        assertEquals(1000, histogram.getMinValue());
+        assertEquals(150_000_000, histogram.getMaxValue());
+        assertEquals(500_000, histogram.getValueAtPercentile(50), 500_000 / 60.0);
+        assertEquals(990_000, histogram.getValueAtPercentile(99), 990_000 / 60.0);
+        assertEquals(1001, stats.getTotalHistogram().getTotalCount());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void TestTiming() {
+        Stats stats = new Stats();
+        stats.setStriped(true);
+
+        RequestKey key = stats.requestKey("RPC", "call");
+        assertTrue(key.time(() -> Thread.sleep(2)));
+        assertFalse(key.time("bad", input -> {
+            throw new IllegalArgumentException(input);
+        }));
+        RequestTimer timer = key.newTimer().start();
+        timer.success(100);
+
+        Map<String, Object> report = stats.collectReportData();
+        List<Map<String, Object>> statsReport = (List<Map<String, Object>>) report.get("stats");
+        assertEquals(3L, statsReport.get(0).get("num_requests"));
+        assertEquals(1L, statsReport.get(0).get("num_failures"));
+        assertEquals(100L, statsReport.get(0).get("total_content_length"));
+        assertTrue((Long) statsReport.get(0).get("max_response_time") >= 2);
+
+        Map<String, Map<String, Object>> errorReport = (Map<String, Map<String, Object>>) report.get("errors");
+        assertEquals("java.lang.IllegalArgumentException: bad",
+            errorReport.get(Utils.md5("RPC" + "call" + "java.lang.IllegalArgumentException: bad")).get("error"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void TestReportSwapsTable() {
+        Stats stats = new Stats();
+        stats.recordSuccess("http", "success", 1, 10);
+        stats.recordFailure("http", "failure", 1, "timeout");
+        stats.collectReportData();
+
+        // the swapped out table is recycled, nothing from the last report is left in it
+        stats.recordSuccess("http", "success", 3, 10);
+        Map<String, Object> report = stats.collectReportData();
+        List<Map<String, Object>> statsReport = (List<Map<String, Object>>) report.get("stats");
+        assertEquals(1, statsReport.size());
+        assertEquals(1L, statsReport.get(0).get("num_requests"));
+        assertEquals(3L, statsReport.get(0).get("total_response_time"));
+        assertTrue(((Map<String, Object>) report.get("errors")).isEmpty());
+
+        report = stats.collectReportData();
+        assertTrue(((List<Map<String, Object>>) report.get("stats")).isEmpty());
+        assertEquals(0L, ((Map<String, Object>) report.get("stats_total")).get("num_requests"));
+    }
+
+    @Test
+    public void TestPipelineMetrics() throws Exception {
+        Stats stats = new Stats();
+        stats.recordSuccess("http", "success", 1, 10);
+        stats.recordFailure("http", "failure", 1, "timeout");
+        Thread.sleep(5);
+
+        PipelineMetrics metrics = stats.getPipelineMetrics();
+        assertEquals(2, metrics.getQueueDepth());
+        assertTrue(metrics.getOldestPendingNanos() >= TimeUnit.MILLISECONDS.toNanos(5));
+        assertFalse(metrics.isLagging());
+
+        stats.collectReportData();
+        metrics = stats.getPipelineMetrics();
+        assertEquals(0, metrics.getQueueDepth());
+        assertEquals(0, metrics.getOldestPendingNanos());
+        assertTrue(metrics.getEventsPerSecond() > 0);
+        assertTrue(metrics.getReportSerializationNanos() > 0);
+        assertEquals(0, metrics.getMessageBacklog());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void TestCardinalityGuard() {
+        Stats stats = new Stats();
+        stats.setMaxEntries(2);
+        stats.setMaxErrors(2);
+        stats.setErrorNormalization(true);
+
+        for (int user = 0; user < 5; user++) {
+            stats.recordSuccess("GET", "/user/" + user, 1, 10);
+        }
+        // folded keys are counted once however often they are recorded
+        stats.recordSuccess("GET", "/user/4", 1, 10);
+        stats.recordFailure("GET", "/user/0", 1, "timeout after 1001ms");
+        stats.recordFailure("GET", "/user/0", 1, "timeout after 1002ms");
+        stats.recordFailure("GET", "/user/0", 1, "request 123e4567-e89b-12d3-a456-426614174000 refused");
+        stats.recordFailure("GET", "/user/0", 1, "connection reset");
+        // queries don't register keys
+        assertNull(stats.getHistogram("GET", "/user/9"));
+
+        Map<String, Object> report = stats.collectReportData();
+        List<Map<String, Object>> statsReport = (List<Map<String, Object>>) report.get("stats");
+        assertEquals(3, statsReport.size());
+        Map<String, Object> other = statsReport.stream()
+            .filter(entry -> "<other>".equals(entry.get("name"))).findFirst().orElseThrow();
+        assertEquals(4L, other.get("num_requests"));
+        assertEquals(3L, report.get("num_folded_entries"));
+
+        Map<String, Map<String, Object>> errorReport = (Map<String, Map<String, Object>>) report.get("errors");
+        assertEquals(3, errorReport.size());
+        assertEquals(2L, errorReport.get(Utils.md5("GET" + "/user/0" + "timeout after <n>ms")).get("occurrences"));
+        assertTrue(errorReport.containsKey(Utils.md5("GET" + "/user/0" + "request <uuid> refused")));
+        assertEquals(1L, errorReport.get(Utils.md5("GET" + "/user/0" + "<other>")).get("occurrences"));
+        assertEquals(1L, report.get("num_folded_errors"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void TestCoordinatedOmissionCorrection() {
+        Stats stats = new Stats();
+        stats.setStriped(true);
+        stats.setCoordinatedOmissionCorrection(true);
+
+        RequestKey key = stats.requestKey("RPC", "call");
+        stats.setIntendedStartNanos(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(500));
+        key.time(() -> { });
+        // the intended start time is only used by the first request
+        key.newTimer().start().success(0);
+
+        Map<String, Object> report = stats.collectReportData();
+        List<Map<String, Object>> statsReport = (List<Map<String, Object>>) report.get("stats");
+        assertEquals(2L, statsReport.get(0).get("num_requests"));
+        assertTrue((Long) statsReport.get(0).get("max_response_time") >= 500);
+        assertTrue((Long) statsReport.get(0).get("min_response_time") < 500);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void TestCoordinatedOmissionCorrectionBeforeRateLimiterStarts() {
+        Stats stats = new Stats();
+        stats.setStriped(true);
+        stats.setCoordinatedOmissionCorrection(true);
+
+        // permits handed out before the first period have no intended start time
+        AbstractRateLimiter rateLimiter = new StableRateLimiter(10);
+        RequestKey key = stats.requestKey("RPC", "call");
+        for (int i = 0; i < 3; i++) {
+            assertFalse(rateLimiter.acquire());
+            stats.setIntendedStartNanos(rateLimiter.getIntendedStartNanos(), rateLimiter.getMissedPermits(),
+                rateLimiter.getMissedSpanNanos());
+            key.time(() -> Thread.sleep(1));
+        }
+
+        Map<String, Object> report = stats.collectReportData();
+        List<Map<String, Object>> statsReport = (List<Map<String, Object>>) report.get("stats");
+        assertEquals(3L, statsReport.get(0).get("num_requests"));
+        assertTrue((Long) statsReport.get(0).get("max_response_time") < 100);
+    }
+
+    @Test
+    public void TestCoordinatedOmissionCorrectionAcrossPeriods() throws Exception {
+        Stats stats = new Stats();
+        stats.setStriped(true);
+        stats.setHistogramEnabled(true);
+        stats.setCoordinatedOmissionCorrection(true);
+        AbstractRateLimiter rateLimiter = new StableRateLimiter(10, 100, TimeUnit.MILLISECONDS);
+        rateLimiter.start();
+        RequestKey key = stats.requestKey("RPC", "call");
+
+        for (int i = 0; i < 20; i++) {
+            timeWithPermit(stats, rateLimiter, key);
+        }
+        // the system under test stalls for several periods, the request is in flight and no permit is taken
+        while (rateLimiter.acquire()) {
+            // out of permits, wait for the next period
+        }
+        stats.setIntendedStartNanos(rateLimiter.getIntendedStartNanos(), 0, 0);
+        key.time(() -> Thread.sleep(500));
+        rateLimiter.release();
+        for (int i = 0; i < 20; i++) {
+            timeWithPermit(stats, rateLimiter, key);
+        }
+        rateLimiter.stop();
+        stats.collectReportData();
+
+        // permits of the stalled periods are recorded as if they waited for the stall
+        LatencyHistogram histogram = stats.getHistogram("RPC", "call");
+        assertTrue(histogram.getTotalCount() >= 41 + 30);
+        assertTrue(histogram.getValueAtPercentile(25, TimeUnit.MILLISECONDS) < 50);
+        assertTrue(histogram.getValueAtPercentile(75, TimeUnit.MILLISECONDS) >= 50);
+        assertTrue(histogram.getMaxValue() >= TimeUnit.MILLISECONDS.toNanos(250));
+    }
+
+    private static void timeWithPermit(Stats stats, AbstractRateLimiter rateLimiter, RequestKey key) {
+        while (rateLimiter.acquire()) {
+            // out of permits, wait for the next period
+        }
+        stats.setIntendedStartNanos(rateLimiter.getIntendedStartNanos(), rateLimiter.getMissedPermits(),
+            rateLimiter.getMissedSpanNanos());
+        key.time(() -> { });
+        rateLimiter.release();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void TestCoordinatedOmissionCorrectionIsBounded() {
+        Stats stats = new Stats();
+        stats.setStriped(true);
+        stats.setCoordinatedOmissionCorrection(true);
+        RequestKey key = stats.requestKey("RPC", "call");
+
+        // a stall of 1000 seconds at 1000 permits per second
+        long now = System.nanoTime();
+        stats.setIntendedStartNanos(now, 1_000_000, TimeUnit.SECONDS.toNanos(1000));
+        key.time(() -> { });
+
+        Map<String, Object> report = stats.collectReportData();
+        List<Map<String, Object>> statsReport = (List<Map<String, Object>>) report.get("stats");
+        assertEquals(1_000_001L, statsReport.get(0).get("num_requests"));
+        long totalResponseTime = ((Number) statsReport.get(0).get("total_response_time")).longValue();
+        // about half of the stall on average
+        assertEquals(500_000_000_000L, totalResponseTime, 500_000_000_000L * 0.01);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void TestDropWhenRingIsFull() {
+        Stats bounded = new Stats(4);
+        bounded.setOverflowPolicy(OverflowPolicy.DROP);
+
+        for (int i = 0; i < 6; i++) {
+            bounded.recordSuccess("http", "success", 10, 1);
+        }
+
+        Map<String, Object> report = bounded.collectReportData();
+        Map<String, Object> statsTotalReport = (Map<String, Object>) report.get("stats_total");
+        assertEquals(4L, statsTotalReport.get("num_requests"));
+        assertEquals(2L, report.get("num_dropped_events"));
+        assertEquals(0L, report.get("num_sampled_events"));
+
+        report = bounded.collectReportData();
+        assertEquals(0L, report.get("num_dropped_events"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void TestSampleWhenRingIsFull() {
+        Stats bounded = new Stats(4);
+        bounded.setOverflowPolicy(OverflowPolicy.SAMPLE);
+
+        for (int i = 0; i < 5; i++) {
+            bounded.recordSuccess("http", "success", 10, 1);
+        }
+        bounded.recordFailure("http", "success", 40, "timeout");
+
+        Map<String, Object> report = bounded.collectReportData();
+        Map<String, Object> statsTotalReport = (Map<String, Object>) report.get("stats_total");
+        assertEquals(6L, statsTotalReport.get("num_requests"));
+        assertEquals(1L, statsTotalReport.get("num_failures"));
+        assertEquals(90L, statsTotalReport.get("total_response_time"));
+        assertEquals(5L, statsTotalReport.get("total_content_length"));
+        assertEquals(0L, report.get("num_dropped_events"));
+        // failures are queued in their own ring, only one success is sampled.
+        assertEquals(1L, report.get("num_sampled_events"));
+    }
+
     @Test
     @SuppressWarnings("unchecked")
     public void TestCollectReportDataResetsStats() {